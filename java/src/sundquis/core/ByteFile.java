@@ -8,16 +8,48 @@
 package sundquis.core;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import sundquis.core.Test.Decl;
 
 /**
  * Implement byte array behavior for large arrays, up to 1 billion bytes.
  * 
- * Not thread-safe
+ * The backing file is held open for the life of the {@code ByteFile}. Reads are positional
+ * and may run concurrently with each other and with writes; writes are serialized.
+ * 
+ * In mapped mode the file is mapped in fixed-size chunks, added as the file grows, and
+ * reads and writes are memory copies. The mappings are released when the disposed
+ * {@code ByteFile} is collected.
+ * 
+ * Otherwise appends are collected in a buffer, written to the file when the buffer fills or
+ * shortly after the first buffered append. Reads see buffered bytes. Use {@link #sync(Sync)}
+ * to make written bytes durable.
+ * 
+ * Small reads of written bytes go through a cache of fixed-size blocks shared by all
+ * files and held off-heap, so that neighbouring records are read from the file once. When
+ * misses are sequential, each miss fetches more of the following blocks.
  */
 public class ByteFile  {
 	
@@ -32,16 +64,197 @@ public class ByteFile  {
 	// Configurable data usage limit to shut down ByteFile (5 GB default)
 	private static long FAIL_LIMIT = Property.get( "failLimit", 5 * GB, Property.LONG );
 	
+	// Configurable default for mapped mode
+	private static boolean MAPPED = Property.get( "mapped", false, Property.BOOLEAN );
+	
+	// Configurable size of each mapped chunk in bytes (64 MB default)
+	private static int CHUNK_SIZE = Property.get( "chunkSize", 64 << 20, Property.INTEGER );
+	
+	// Configurable size of the append buffer in bytes; zero disables buffering (64 KB default)
+	private static int BUFFER_SIZE = Property.get( "bufferSize", 64 << 10, Property.INTEGER );
+	
+	// Configurable longest delay before buffered bytes are written (100 ms default)
+	private static long FLUSH_MILLIS = Property.get( "flushMillis", 100L, Property.LONG );
+	
+	// Configurable policy for sync()
+	private static Sync SYNC = Property.get( "sync", Sync.DATA, Sync::valueOf );
+	
+	// Configurable largest gap in bytes between ranges merged by readMany (512 default)
+	private static int MERGE_GAP = Property.get( "mergeGap", 512, Property.INTEGER );
+	
+	// Configurable largest merged read in bytes for readMany (1 MB default)
+	private static int MERGE_LIMIT = Property.get( "mergeLimit", 1 << 20, Property.INTEGER );
+	
+	// Configurable size of each cached block in bytes (64 KB default)
+	private static int BLOCK_SIZE = Property.get( "blockSize", 64 << 10, Property.INTEGER );
+	
+	// Configurable number of blocks cached across all files (256 default, 0 disables the cache)
+	private static int CACHE_BLOCKS = Property.get( "cacheBlocks", 256, Property.INTEGER );
+	
+	// Configurable most blocks fetched by one sequential miss (8 default)
+	private static int READ_AHEAD = Property.get( "readAhead", 8, Property.INTEGER );
+	
+	/** How far {@link ByteFile#sync(Sync)} pushes written bytes toward the device */
+	@Test.Skip
+	public enum Sync {
+		/** Write buffered bytes to the file; the operating system decides when they reach the device */
+		WRITE,
+		/** Also force the content of the file to the device */
+		DATA,
+		/** Also force file metadata, such as the length, to the device */
+		ALL
+	}
+	
+	// Writes buffered bytes after the delay
+	private static class Flusher {
+		private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor( (r) -> {
+			Thread thread = new Thread( r, "ByteFile.Flusher" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+	
+	// Recently read blocks of all files in direct buffers. The blocks are spread over shards
+	// by key so that readers of different blocks do not contend; each shard evicts its least
+	// recently used block and holds its share of the configured number of blocks.
+	private static class Blocks {
+		
+		@Test.Skip
+		private static class Key {
+			private final ByteFile file;
+			private final int index;
+			
+			private Key( ByteFile file, int index ) {
+				this.file = file;
+				this.index = index;
+			}
+			
+			@Override
+			public boolean equals( Object other ) {
+				return other instanceof Key && ((Key) other).file == this.file && ((Key) other).index == this.index;
+			}
+			
+			@Override
+			public int hashCode() {
+				return 31 * System.identityHashCode( this.file ) + this.index;
+			}
+		}
+		
+		// A power of two
+		private static final int SHARDS = 16;
+		
+		// Access ordered; each buffer's limit is the number of valid bytes. Guarded by the shard.
+		@SuppressWarnings( "unchecked" )
+		private static final LinkedHashMap<Key, ByteBuffer>[] CACHE = (LinkedHashMap<Key, ByteBuffer>[]) new LinkedHashMap<?, ?>[ SHARDS ];
+		
+		static {
+			for ( int i = 0; i < SHARDS; i++ ) {
+				CACHE[i] = new LinkedHashMap<Key, ByteBuffer>( 16, 0.75f, true );
+			}
+		}
+		
+		private static final LongAdder hits = new LongAdder();
+		
+		private static final LongAdder misses = new LongAdder();
+		
+		private static int shard( Key key ) {
+			int h = key.hashCode();
+			return (h ^ (h >>> 16)) & (SHARDS - 1);
+		}
+		
+		/* The share of the configured blocks held by the shard; the shares sum to the configured number */
+		private static int capacity( int shard ) {
+			return CACHE_BLOCKS / SHARDS + (shard < CACHE_BLOCKS % SHARDS ? 1 : 0);
+		}
+		
+		/* Copy a range within one block; false if the block or the range is not cached */
+		private static boolean get( ByteFile file, int position, byte[] dest, int offset, int count ) {
+			int index = position / file.blockSize;
+			Key key = new Key( file, index );
+			LinkedHashMap<Key, ByteBuffer> cache = CACHE[ Blocks.shard( key ) ];
+			int start = position - index * file.blockSize;
+			synchronized ( cache ) {
+				ByteBuffer block = cache.get( key );
+				if ( block != null && start + count <= block.limit() ) {
+					block.get( start, dest, offset, count );
+					hits.increment();
+					return true;
+				}
+			}
+			misses.increment();
+			return false;
+		}
+		
+		/* An empty buffer for a block, reusing the least recently used of its shard if the shard is full */
+		private static ByteBuffer take( ByteFile file, int index ) {
+			int shard = Blocks.shard( new Key( file, index ) );
+			LinkedHashMap<Key, ByteBuffer> cache = CACHE[ shard ];
+			ByteBuffer block = null;
+			synchronized ( cache ) {
+				if ( cache.size() >= Blocks.capacity( shard ) && ! cache.isEmpty() ) {
+					Iterator<ByteBuffer> eldest = cache.values().iterator();
+					block = eldest.next();
+					eldest.remove();
+				}
+			}
+			if ( block == null || block.capacity() != file.blockSize ) {
+				block = ByteBuffer.allocateDirect( file.blockSize );
+			}
+			return block.clear();
+		}
+		
+		/* 
+		 * Cache a loaded block unless the file was written or disposed since the generation.
+		 * Writers change the generation before discarding blocks, so a stale block is either
+		 * refused here or discarded after it is cached.
+		 */
+		private static void put( ByteFile file, int generation, int index, ByteBuffer block ) {
+			Key key = new Key( file, index );
+			int shard = Blocks.shard( key );
+			LinkedHashMap<Key, ByteBuffer> cache = CACHE[ shard ];
+			synchronized ( cache ) {
+				if ( generation == file.generation.get() && file.isOpen()
+					&& (cache.size() < Blocks.capacity( shard ) || cache.containsKey( key )) ) {
+					cache.put( key, block );
+				}
+			}
+		}
+		
+		/* Discard blocks overlapping a range that has been written */
+		private static void invalidate( ByteFile file, int position, int count ) {
+			file.generation.incrementAndGet();
+			if ( count > 0 ) {
+				for ( int index = position / file.blockSize; index <= (position + count - 1) / file.blockSize; index++ ) {
+					Key key = new Key( file, index );
+					LinkedHashMap<Key, ByteBuffer> cache = CACHE[ Blocks.shard( key ) ];
+					synchronized ( cache ) {
+						cache.remove( key );
+					}
+				}
+			}
+		}
+		
+		/* Discard every block of the file */
+		private static void remove( ByteFile file ) {
+			file.generation.incrementAndGet();
+			for ( LinkedHashMap<Key, ByteBuffer> cache : CACHE ) {
+				synchronized ( cache ) {
+					cache.keySet().removeIf( (key) -> key.file == file );
+				}
+			}
+		}
+	}
+	
 
-	// Used to monitor total disk usage and signal warning or failure
-	private static volatile long TOTAL_BYTES = 0L;
+	// Used to monitor total disk usage and signal warning or failure; updated by concurrent writers
+	private static final AtomicLong TOTAL_BYTES = new AtomicLong();
 
 	private static void newBytes( int count ) {
-		TOTAL_BYTES += (long) count;
-		if ( TOTAL_BYTES > WARN_LIMIT ) {
+		long total = TOTAL_BYTES.addAndGet( count );
+		if ( total > WARN_LIMIT ) {
 			Fatal.warning( "Total bytes stored exceeds " + WARN_LIMIT );
 		}
-		if ( TOTAL_BYTES > FAIL_LIMIT ) {
+		if ( total > FAIL_LIMIT ) {
 			Fatal.error( "Total bytes stored exceeds " + FAIL_LIMIT );
 		}
 	}
@@ -50,10 +263,42 @@ public class ByteFile  {
 	
 	
 	// Temporary file holding data
-	private File file;
+	private final File file;
+	
+	// Open until dispose
+	private final FileChannel channel;
+	
+	// Opened by the first asynchronous read
+	private volatile AsynchronousFileChannel asyncChannel;
+	
+	// Current length in bytes; bytes below the length are readable
+	private volatile int length;
 	
-	// Current length in bytes
-	private int length;
+	// Mapped regions of the file, null unless mapped; replaced when a chunk is added
+	private volatile MappedByteBuffer[] chunks;
+	
+	// Bytes per chunk when mapped
+	private final int chunkSize;
+	
+	// Appended bytes not yet written, null when mapped or unbuffered; guarded by this
+	private final byte[] buffer;
+	
+	// Number of bytes in the buffer; guarded by this
+	private int buffered;
+	
+	// Bytes below this position are in the file; the buffer holds the bytes from here to the length
+	private volatile int flushed;
+	
+	// Bytes per cached block
+	private final int blockSize;
+	
+	// Changed when cached blocks may be stale
+	private final AtomicInteger generation;
+	
+	// Block expected at the next sequential miss, and the blocks fetched by the last miss;
+	// a heuristic, updated without locking
+	private int nextMiss;
+	private int window;
 	
 	/** 
 	 * Construct an empty {@code ByteFile} backed by a temporary file.
@@ -64,9 +309,38 @@ public class ByteFile  {
 	 */
 	@Decl( "Creates writeable file" )
 	@Decl( "Creates empty file" )
+	@Decl( "Opens channel" )
+	@Decl( "Mode is configurable" )
 	public ByteFile() {
+		this( ByteFile.MAPPED );
+	}
+	
+	/** 
+	 * Construct an empty {@code ByteFile} backed by a temporary file, optionally mapped
+	 * into memory.
+	 * 
+	 * @param mapped
+	 * 		Whether reads and writes are memory copies to mapped chunks of the file
+	 */
+	@Decl( "Creates empty mapped file" )
+	@Decl( "Maps no chunks until written" )
+	public ByteFile( boolean mapped ) {
 		this.file = new LocalDir().sub( "tmp" ).getTmpFile( "BYTES" );
+		try {
+			this.channel = FileChannel.open( this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+		} catch ( IOException e ) {
+			throw new AppException( e );
+		}
 		this.length = 0;
+		this.chunks = mapped ? new MappedByteBuffer[0] : null;
+		this.chunkSize = ByteFile.CHUNK_SIZE;
+		this.buffer = mapped || ByteFile.BUFFER_SIZE == 0 ? null : new byte[ ByteFile.BUFFER_SIZE ];
+		this.buffered = 0;
+		this.flushed = 0;
+		this.blockSize = ByteFile.BLOCK_SIZE;
+		this.generation = new AtomicInteger();
+		this.nextMiss = -1;
+		this.window = 1;
 	}
 	
 	// FIXME: Short-circuit empty reads and writes
@@ -84,8 +358,8 @@ public class ByteFile  {
 	 * 		Start location in {@code src} of data 
 	 * @param count
 	 * 		Number of bytes to write
-	 * @throws IOException
-	 * 		If {@code RandomAccessFile} operations fail or if the maximum length is exceeded.
+	 * @throws AppException
+	 * 		If channel operations fail.
 	 */
 	@Decl( "Increases length" )
 	@Decl( "Beyond max length throws AssertionError" )
@@ -95,7 +369,11 @@ public class ByteFile  {
 	@Decl( "Throws AssertionError for offset too big" )
 	@Decl( "Throws AssertionError for illegal count" )
 	@Decl( "Increases total bytes" )
-	public void write( int position, byte[] src, int offset, int count ) {
+	@Decl( "Appends are buffered" )
+	@Decl( "Full buffer is written" )
+	@Decl( "Buffer is written after delay" )
+	@Decl( "Overwrite of buffered bytes is consistent" )
+	public synchronized void write( int position, byte[] src, int offset, int count ) {
 		Assert.isTrue( this.isOpen() );
 		Assert.nonNull( src );
 		Assert.isTrue( offset >= 0 );
@@ -106,20 +384,87 @@ public class ByteFile  {
 		int newLength = Math.max( this.length, position + count );
 		Assert.isTrue( (long) newLength <= MAX_LENGTH );
 		
-		try ( RandomAccessFile raf = new RandomAccessFile( this.file, "rw" ) ) {
-			Assert.isTrue( (long) oldLength == raf.length() );
-			raf.seek( (long) position );
-			raf.write( src, offset, count );
-			Assert.isTrue( (long) newLength == raf.length() );
-			this.length = newLength;
-			ByteFile.newBytes( newLength - oldLength );
-		} catch ( FileNotFoundException e ) {
-			Fatal.impossible( "Framework should ensure tmp files exist." );
+		if ( this.chunks != null ) {
+			this.writeMapped( position, src, offset, count );
+		} else if ( this.buffer != null && position == oldLength && count <= this.buffer.length ) {
+			if ( this.buffered + count > this.buffer.length ) {
+				this.flush();
+			}
+			if ( this.buffered == 0 ) {
+				// Holds this file until the delay expires
+				Flusher.EXECUTOR.schedule( this::flushQuietly, FLUSH_MILLIS, TimeUnit.MILLISECONDS );
+			}
+			System.arraycopy( src, offset, this.buffer, this.buffered, count );
+			this.buffered += count;
+		} else {
+			this.flush();
+			this.writeChannel( position, src, offset, count );
+			this.flushed = newLength;
+		}
+		// Publish only after the bytes are written
+		this.length = newLength;
+		ByteFile.newBytes( newLength - oldLength );
+	}
+	
+	private void writeChannel( int position, byte[] src, int offset, int count ) {
+		ByteBuffer buffer = ByteBuffer.wrap( src, offset, count );
+		try {
+			while ( buffer.hasRemaining() ) {
+				this.channel.write( buffer, (long) position + buffer.position() - offset );
+			}
 		} catch ( IOException e ) {
 			throw new AppException( e );
+		} finally {
+			Blocks.invalidate( this, position, count );
+		}
+	}
+	
+	/* Write the buffered bytes to the file. Only called when synchronized. */
+	private void flush() {
+		if ( this.buffered > 0 ) {
+			this.writeChannel( this.flushed, this.buffer, 0, this.buffered );
+			this.flushed += this.buffered;
+			this.buffered = 0;
+		}
+	}
+	
+	/* Scheduled after the first buffered append; bytes stay buffered if the write fails */
+	private synchronized void flushQuietly() {
+		if ( this.isOpen() ) {
+			try {
+				this.flush();
+			} catch ( AppException e ) {
+				Fatal.warning( "Unable to write buffered bytes to " + this.file + ": " + e );
+			}
 		}
 	}
 
+	/* Copy into the chunks, mapping those not yet mapped. Only called by write. */
+	private void writeMapped( int position, byte[] src, int offset, int count ) {
+		MappedByteBuffer[] chunks = this.chunks;
+		int needed = (int) (((long) position + count + this.chunkSize - 1) / this.chunkSize);
+		if ( needed > chunks.length ) {
+			chunks = Arrays.copyOf( chunks, needed );
+			try {
+				for ( int i = this.chunks.length; i < needed; i++ ) {
+					chunks[i] = this.channel.map( FileChannel.MapMode.READ_WRITE, (long) i * this.chunkSize, this.chunkSize );
+				}
+			} catch ( IOException e ) {
+				throw new AppException( e );
+			}
+			this.chunks = chunks;
+		}
+		
+		while ( count > 0 ) {
+			int index = position % this.chunkSize;
+			int n = Math.min( count, this.chunkSize - index );
+			chunks[position / this.chunkSize].put( index, src, offset, n );
+			position += n;
+			offset += n;
+			count -= n;
+		}
+	}
+	
 	/**
 	 * Write the entire contents of the buffer into this {@code ByteFile}.
 	 * 
@@ -127,8 +472,8 @@ public class ByteFile  {
 	 * 		Start location in this ByteFile for the source bytes
 	 * @param src
 	 * 		Bytes to be written
-	 * @throws IOException
-	 * 		If {@code RandomAccessFile} operations fail or if the maximum length is exceeded.
+	 * @throws AppException
+	 * 		If channel operations fail.
 	 */
 	@Test.Skip
 	public void write( int position, byte[] src ) {
@@ -146,7 +491,7 @@ public class ByteFile  {
 	 */
 	@Decl( "Increases length by count" )
 	@Decl( "Increases total bytes by count" )
-	public int add( byte[] src, int offset, int count ) {
+	public synchronized int add( byte[] src, int offset, int count ) {
 		int position = this.length;
 		this.write( position, src, offset, count );
 		return position;
@@ -176,8 +521,9 @@ public class ByteFile  {
 	 * 		Start position in the buffer.
 	 * @param count
 	 * 		Number of bytes to read.
-	 * @throws IOException
-	 * 		If {@code RandomAccessFile} operations fail or if the maximum length is exceeded.
+	 * @throws AppException
+	 * 		If channel operations fail, including when this {@code ByteFile} is disposed
+	 * 		during the read.
 	 */
 	@Decl( "Throws AssertionError on read past EOF" )
 	@Decl( "Throws AssertionError for negative offset" )
@@ -185,6 +531,20 @@ public class ByteFile  {
 	@Decl( "Throws AssertionError for negative count" )
 	@Decl( "Throws AssertionError for count too big" )
 	@Decl( "Is consistent with write" )
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Reads concurrently with writer" )
+	@Decl( "Mapped read is consistent with write" )
+	@Decl( "Mapped read spans chunks" )
+	@Decl( "Mapped read concurrently with writer" )
+	@Decl( "Sees buffered bytes" )
+	@Decl( "Read spans written and buffered bytes" )
+	@Decl( "Cached read is consistent with write" )
+	@Decl( "Repeated read hits cache" )
+	@Decl( "Sequential misses read ahead" )
+	@Decl( "Overwrite replaces cached bytes" )
+	@Decl( "Append extends cached block" )
+	@Decl( "Cache is bounded" )
+	@Decl( "Large read bypasses cache" )
 	public void read( int position, byte[] dest, int offset, int count ) {
 		Assert.isTrue( this.isOpen() );
 		Assert.isTrue( position >= 0 );
@@ -193,11 +553,93 @@ public class ByteFile  {
 		Assert.isTrue( offset + count <= dest.length );
 		Assert.isTrue( count >= 0 );
 		
-		try ( RandomAccessFile raf = new RandomAccessFile( this.file, "r" ) ) {
-			raf.seek( position );
-			raf.read( dest, offset, count );
-		} catch ( FileNotFoundException e ) {
-			Fatal.impossible( "Framework should ensure tmp files exist." );
+		MappedByteBuffer[] chunks = this.chunks;
+		if ( chunks != null ) {
+			while ( count > 0 ) {
+				int index = position % this.chunkSize;
+				int n = Math.min( count, this.chunkSize - index );
+				chunks[position / this.chunkSize].get( index, dest, offset, n );
+				position += n;
+				offset += n;
+				count -= n;
+			}
+			return;
+		}
+		
+		if ( position + count > this.flushed ) {
+			this.readBuffered( position, dest, offset, count );
+		} else {
+			this.readStored( position, dest, offset, count );
+		}
+	}
+	
+	/* Read bytes that may still be buffered; excludes a concurrent flush */
+	private synchronized void readBuffered( int position, byte[] dest, int offset, int count ) {
+		int fromFile = Math.max( 0, Math.min( count, this.flushed - position ) );
+		if ( fromFile > 0 ) {
+			this.readStored( position, dest, offset, fromFile );
+		}
+		// Every byte may have been flushed since the caller checked
+		if ( fromFile < count ) {
+			System.arraycopy( this.buffer, position + fromFile - this.flushed, dest, offset + fromFile, count - fromFile );
+		}
+	}
+	
+	/* Read bytes that are in the file, through the block cache unless the read is large */
+	private void readStored( int position, byte[] dest, int offset, int count ) {
+		if ( CACHE_BLOCKS == 0 || count >= this.blockSize ) {
+			this.readChannel( position, dest, offset, count );
+			return;
+		}
+		
+		while ( count > 0 ) {
+			int index = position / this.blockSize;
+			int n = Math.min( count, (index + 1) * this.blockSize - position );
+			if ( ! Blocks.get( this, position, dest, offset, n ) ) {
+				this.load( index, position, dest, offset, n );
+			}
+			position += n;
+			offset += n;
+			count -= n;
+		}
+	}
+	
+	/* Read the missing block, and the following blocks when misses are sequential */
+	private void load( int index, int position, byte[] dest, int offset, int count ) {
+		this.window = index == this.nextMiss ? Math.min( 2 * this.window, Math.max( 1, READ_AHEAD ) ) : 1;
+		this.nextMiss = index + this.window;
+		
+		int generation = this.generation.get();
+		int flushed = this.flushed;
+		for ( int i = index; i < index + this.window && i * this.blockSize < flushed; i++ ) {
+			int start = i * this.blockSize;
+			ByteBuffer block = Blocks.take( this, i );
+			block.limit( Math.min( this.blockSize, flushed - start ) );
+			try {
+				while ( block.hasRemaining() ) {
+					if ( this.channel.read( block, (long) start + block.position() ) < 0 ) {
+						throw new AppException( "Unexpected end of file: " + this.file );
+					}
+				}
+			} catch ( IOException e ) {
+				throw new AppException( e );
+			}
+			block.position( 0 );
+			if ( i == index ) {
+				block.get( position - start, dest, offset, count );
+			}
+			Blocks.put( this, generation, i, block );
+		}
+	}
+	
+	private void readChannel( int position, byte[] dest, int offset, int count ) {
+		ByteBuffer buffer = ByteBuffer.wrap( dest, offset, count );
+		try {
+			while ( buffer.hasRemaining() ) {
+				if ( this.channel.read( buffer, (long) position + buffer.position() - offset ) < 0 ) {
+					throw new AppException( "Unexpected end of file: " + this.file );
+				}
+			}
 		} catch ( IOException e ) {
 			throw new AppException( e );
 		}
@@ -220,6 +662,147 @@ public class ByteFile  {
 		return result;
 	}
 	
+	/**
+	 * Read many ranges at once. The ranges are sorted by position, and ranges that overlap
+	 * or lie within {@code mergeGap} bytes of each other are read together, up to
+	 * {@code mergeLimit} bytes per read, then copied to their own arrays.
+	 * 
+	 * @param positions
+	 * 		Location of each range
+	 * @param counts
+	 * 		Number of bytes in each range
+	 * @return
+	 * 		The bytes of each range, in the order requested
+	 */
+	@Decl( "Throws AssertionError for null" )
+	@Decl( "Throws AssertionError for mismatched lengths" )
+	@Decl( "Throws AssertionError on read past EOF" )
+	@Decl( "Is consistent with write" )
+	@Decl( "Handles overlapping ranges" )
+	@Decl( "Handles empty ranges" )
+	@Decl( "Sees buffered bytes" )
+	@Decl( "Splits reads at merge limit" )
+	public byte[][] readMany( int[] positions, int[] counts ) {
+		Assert.nonNull( positions );
+		Assert.nonNull( counts );
+		Assert.isTrue( positions.length == counts.length );
+		
+		// Sort the requests by position, keeping the index in the low bits
+		int n = positions.length;
+		long[] order = new long[ n ];
+		byte[][] result = new byte[ n ][];
+		for ( int i = 0; i < n; i++ ) {
+			Assert.isTrue( positions[i] >= 0 && counts[i] >= 0 );
+			Assert.isTrue( positions[i] + counts[i] <= this.length );  // Read beyond end of file
+			order[i] = ((long) positions[i] << 32) | i;
+			result[i] = new byte[ counts[i] ];
+		}
+		Arrays.sort( order );
+		
+		int first = 0;
+		while ( first < n ) {
+			int start = positions[ (int) order[first] ];
+			int end = start + counts[ (int) order[first] ];
+			int last = first + 1;
+			while ( last < n ) {
+				int i = (int) order[last];
+				int next = Math.max( end, positions[i] + counts[i] );
+				if ( positions[i] > end + MERGE_GAP || next - start > MERGE_LIMIT ) {
+					break;
+				}
+				end = next;
+				last++;
+			}
+			
+			byte[] merged = new byte[ end - start ];
+			this.read( start, merged, 0, merged.length );
+			for ( int k = first; k < last; k++ ) {
+				int i = (int) order[k];
+				System.arraycopy( merged, positions[i] - start, result[i], 0, counts[i] );
+			}
+			first = last;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Read into a new buffer without waiting for the file. Bytes that are buffered or
+	 * mapped are copied before returning; others are read by an asynchronous channel, so
+	 * that many reads may be in progress at once.
+	 * 
+	 * @param position
+	 * 		Location in this {@code ByteFile} to start reading.
+	 * @param count
+	 * 		Number of bytes to read.
+	 * @return
+	 * 		Completes with the bytes, ready to be read from the buffer, or with an
+	 * 		{@code AppException} if the read fails.
+	 */
+	@Decl( "Throws AssertionError on read past EOF" )
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Is consistent with write" )
+	@Decl( "Sees buffered bytes" )
+	@Decl( "Mapped read completes immediately" )
+	@Decl( "Many reads in progress at once" )
+	public CompletableFuture<ByteBuffer> readAsync( int position, int count ) {
+		Assert.isTrue( this.isOpen() );
+		Assert.isTrue( position >= 0 );
+		Assert.isTrue( count >= 0 );
+		Assert.isTrue( position + count <= this.length );  // Read beyond end of file
+		
+		if ( this.chunks != null || position + count > this.flushed || count == 0 ) {
+			return CompletableFuture.completedFuture( ByteBuffer.wrap( this.read( position, count ) ) );
+		}
+		
+		CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+		try {
+			this.readAsync( this.asyncChannel(), ByteBuffer.allocate( count ), position, result );
+		} catch ( AppException e ) {
+			result.completeExceptionally( e );
+		}
+		return result;
+	}
+	
+	private AsynchronousFileChannel asyncChannel() {
+		AsynchronousFileChannel asyncChannel = this.asyncChannel;
+		if ( asyncChannel == null ) {
+			synchronized ( this ) {
+				Assert.isTrue( this.isOpen() );
+				if ( this.asyncChannel == null ) {
+					try {
+						this.asyncChannel = AsynchronousFileChannel.open( this.file.toPath(), StandardOpenOption.READ );
+					} catch ( IOException e ) {
+						throw new AppException( e );
+					}
+				}
+				asyncChannel = this.asyncChannel;
+			}
+		}
+		return asyncChannel;
+	}
+	
+	/* Read the remainder of the buffer, continuing after partial reads, then complete the result */
+	private void readAsync( AsynchronousFileChannel channel, ByteBuffer buffer, long position, CompletableFuture<ByteBuffer> result ) {
+		channel.read( buffer, position + buffer.position(), null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed( Integer count, Void attachment ) {
+				if ( count < 0 ) {
+					result.completeExceptionally( new AppException( "Unexpected end of file: " + ByteFile.this.file ) );
+				} else if ( buffer.hasRemaining() ) {
+					ByteFile.this.readAsync( channel, buffer, position, result );
+				} else {
+					result.complete( buffer.flip() );
+				}
+			}
+
+			@Override
+			public void failed( Throwable exc, Void attachment ) {
+				result.completeExceptionally( new AppException( exc ) );
+			}
+		});
+	}
+	
 	/**
 	 * Determine if this {@code ByteFile} can hold {@code count} new bytes.
 	 * 
@@ -236,16 +819,70 @@ public class ByteFile  {
 	@Decl( "True for new" )
 	@Decl( "False after dispose" )
 	public boolean isOpen() {
-		return this.file != null;
+		return this.channel.isOpen();
+	}
+	
+	/**
+	 * Write buffered bytes to the file and, as determined by the policy, force the content
+	 * of the file to the device.
+	 * 
+	 * @param policy
+	 * @throws AppException
+	 * 		If channel operations fail.
+	 */
+	@Decl( "Throws AssertionError for null policy" )
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Writes buffered bytes" )
+	@Decl( "Forces mapped chunks" )
+	public synchronized void sync( Sync policy ) {
+		Assert.nonNull( policy );
+		Assert.isTrue( this.isOpen() );
+		
+		this.flush();
+		if ( policy == Sync.WRITE ) {
+			return;
+		}
+		if ( this.chunks != null ) {
+			for ( MappedByteBuffer chunk : this.chunks ) {
+				chunk.force();
+			}
+		}
+		try {
+			this.channel.force( policy == Sync.ALL );
+		} catch ( IOException e ) {
+			throw new AppException( e );
+		}
+	}
+	
+	/** Sync with the configured policy, {@code Sync.DATA} by default. */
+	@Decl( "Writes buffered bytes" )
+	public void sync() {
+		this.sync( ByteFile.SYNC );
 	}
 	
 	/** Close this {@code ByteFile} and release resources. */
 	@Decl( "Releases resources" )
-	public void dispose() {
-		if ( this.file != null && this.file.delete() ) {
+	@Decl( "Releases cached blocks" )
+	@Decl( "Closes channel" )
+	@Decl( "Closes asynchronous channel" )
+	@Decl( "Is idempotent" )
+	public synchronized void dispose() {
+		if ( ! this.channel.isOpen() ) {
+			return;
+		}
+		try {
+			this.channel.close();
+			if ( this.asyncChannel != null ) {
+				this.asyncChannel.close();
+			}
+		} catch ( IOException e ) {
+			Fatal.warning( "Unable to close " + this.file + ": " + e );
+		}
+		Blocks.remove( this );
+
+		if ( this.file.delete() ) {
 			ByteFile.newBytes( -1 * this.length );
 		}
-		this.file = null;
 	}
 
 	@Override
@@ -300,6 +937,15 @@ public class ByteFile  {
 					MAX_LENGTH = 1 * GB;
 					WARN_LIMIT = 2 * GB;
 					FAIL_LIMIT = 5 * GB;
+					MAPPED = false;
+					CHUNK_SIZE = 64 << 20;
+					BUFFER_SIZE = 64 << 10;
+					FLUSH_MILLIS = 100L;
+					MERGE_GAP = 512;
+					MERGE_LIMIT = 1 << 20;
+					BLOCK_SIZE = 64 << 10;
+					CACHE_BLOCKS = 256;
+					READ_AHEAD = 8;
 				}
 			};
 		}
@@ -310,6 +956,38 @@ public class ByteFile  {
 			tc.assertEqual( bf.length, 0 );
 		}
 
+		@Test.Impl( src = "public ByteFile()", desc = "Opens channel" )
+		public void ByteFile_OpensChannel( TestCase tc ) {
+			tc.assertTrue( bf.channel.isOpen() );
+		}
+
+		@Test.Impl( src = "public ByteFile()", desc = "Mode is configurable" )
+		public void ByteFile_ModeIsConfigurable( TestCase tc ) {
+			tc.assertTrue( bf.chunks == null );
+			MAPPED = true;
+			ByteFile mapped = new ByteFile();
+			tc.assertTrue( mapped.chunks != null );
+			mapped.dispose();
+		}
+
+		@Test.Impl( src = "public ByteFile(boolean)", desc = "Creates empty mapped file" )
+		public void ByteFile_CreatesEmptyMappedFile( TestCase tc ) {
+			bf.dispose();
+			bf = new ByteFile( true );
+			tc.assertEqual( 0, bf.length );
+			tc.assertTrue( bf.canAppend( 100 ) );
+		}
+
+		@Test.Impl( src = "public ByteFile(boolean)", desc = "Maps no chunks until written" )
+		public void ByteFile_MapsNoChunksUntilWritten( TestCase tc ) {
+			CHUNK_SIZE = 64;
+			bf.dispose();
+			bf = new ByteFile( true );
+			tc.assertEqual( 0, bf.chunks.length );
+			bf.write( 100, BYTES, 0, 10 );
+			tc.assertEqual( 2, bf.chunks.length );
+		}
+
 		@Test.Impl( src = "public ByteFile()", desc = "Creates writeable file" )
 		public void ByteFile_CreatesWriteableFile( TestCase tc ) {
 			tc.assertTrue( bf.file.canWrite() );
@@ -426,6 +1104,100 @@ public class ByteFile  {
 			bf.read( BYTES.length - 5, BUF, 0, 6 );
 		}
 					
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Throws AssertionError after dispose" )
+		public void read_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			bf.add( BYTES );
+			bf.dispose();
+			tc.expectError( AssertionError.class );
+			bf.read( 0, BUF, 0, 10 );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Reads concurrently with writer" )
+		public void read_ReadsConcurrentlyWithWriter( TestCase tc ) throws InterruptedException {
+			// Record n holds the byte n % 128, 100 times
+			int records = 2000;
+			CountDownLatch first = new CountDownLatch( 1 );
+			AtomicBoolean done = new AtomicBoolean( false );
+			AtomicBoolean pass = new AtomicBoolean( true );
+			AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			Thread writer = new Thread( () -> {
+				byte[] record = new byte[100];
+				for ( int n = 0; n < records; n++ ) {
+					Arrays.fill( record, (byte) (n % 128) );
+					bf.add( record );
+					first.countDown();
+				}
+				done.set( true );
+			});
+			List<Thread> readers = new ArrayList<Thread>();
+			for ( int r = 0; r < 4; r++ ) {
+				readers.add( new Thread( () -> {
+					try {
+						first.await();
+						byte[] dest = new byte[100];
+						java.util.Random random = new java.util.Random();
+						while ( ! done.get() ) {
+							int n = random.nextInt( bf.length / 100 );
+							bf.read( n * 100, dest, 0, 100 );
+							for ( byte b : dest ) {
+								if ( b != (byte) (n % 128) ) {
+									pass.set( false );
+								}
+							}
+						}
+					} catch ( Throwable e ) {
+						failure.compareAndSet( null, e );
+					}
+				}));
+			}
+			writer.start();
+			for ( Thread reader : readers ) {
+				reader.start();
+			}
+			writer.join();
+			for ( Thread reader : readers ) {
+				reader.join();
+			}
+			tc.assertEqual( 100 * records, bf.length );
+			tc.assertEqual( null, failure.get() );
+			tc.assertTrue( pass.get() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Mapped read is consistent with write" )
+		public void read_MappedReadIsConsistentWithWrite( TestCase tc ) {
+			bf.dispose();
+			bf = new ByteFile( true );
+			int first = bf.add( BYTES );
+			int second = bf.add( "Another string".getBytes() );
+			bf.write( 2, "FAIRLY".getBytes() );
+			tc.assertEqual( "A FAIRLY long string that we use for testing", new String( bf.read( first, BYTES.length ) ) );
+			tc.assertEqual( "Another string", new String( bf.read( second, 14 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Mapped read spans chunks" )
+		public void read_MappedReadSpansChunks( TestCase tc ) {
+			CHUNK_SIZE = 16;
+			bf.dispose();
+			bf = new ByteFile( true );
+			for ( int i = 0; i < 10; i++ ) {
+				bf.add( BYTES );
+			}
+			boolean pass = true;
+			for ( int i = 0; i < 10; i++ ) {
+				pass &= new String( BYTES ).equals( new String( bf.read( i * BYTES.length, BYTES.length ) ) );
+			}
+			tc.assertTrue( pass );
+			tc.assertEqual( (10 * BYTES.length + 15) / 16, bf.chunks.length );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Mapped read concurrently with writer" )
+		public void read_MappedReadConcurrentlyWithWriter( TestCase tc ) throws InterruptedException {
+			CHUNK_SIZE = 4096;
+			bf.dispose();
+			bf = new ByteFile( true );
+			this.read_ReadsConcurrentlyWithWriter( tc );
+		}
+
 		@Test.Impl( src = "public byte[] ByteFile.read(int, int)", desc = "Is consistent with write", weight = 5 )
 		public void read2_IsConsistentWithWrite( TestCase tc ) {
 			String[] args = {
@@ -486,10 +1258,403 @@ public class ByteFile  {
 
 		@Test.Impl( src = "public void ByteFile.dispose()", desc = "Releases resources" )
 		public void dispose_ReleasesResources( TestCase tc ) {
-			long total = TOTAL_BYTES;
+			long total = TOTAL_BYTES.get();
+			bf.add( BYTES );
+			bf.dispose();
+			tc.assertEqual( total, TOTAL_BYTES.get() );
+		}
+					
+		// Bytes in the file itself
+		private long fileSize() {
+			try {
+				return bf.channel.size();
+			} catch ( IOException e ) {
+				throw new AppException( e );
+			}
+		}
+
+		@Test.Impl( src = "public void ByteFile.write(int, byte[], int, int)", desc = "Appends are buffered" )
+		public void write_AppendsAreBuffered( TestCase tc ) {
+			bf.add( BYTES );
+			bf.add( BYTES );
+			tc.assertEqual( 2 * BYTES.length, bf.length );
+			tc.assertEqual( 0L, this.fileSize() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.write(int, byte[], int, int)", desc = "Full buffer is written" )
+		public void write_FullBufferIsWritten( TestCase tc ) {
+			BUFFER_SIZE = 100;
+			bf.dispose();
+			bf = new ByteFile();
+			bf.add( BYTES );
+			bf.add( BYTES );
+			bf.add( BYTES );
+			tc.assertEqual( 2L * BYTES.length, this.fileSize() );
+			tc.assertEqual( "A fairly", new String( bf.read( 2 * BYTES.length, 8 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.write(int, byte[], int, int)", desc = "Buffer is written after delay" )
+		public void write_BufferIsWrittenAfterDelay( TestCase tc ) throws InterruptedException {
+			FLUSH_MILLIS = 10L;
+			bf.add( BYTES );
+			Thread.sleep( 200L );
+			tc.assertEqual( (long) BYTES.length, this.fileSize() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.write(int, byte[], int, int)", desc = "Overwrite of buffered bytes is consistent" )
+		public void write_OverwriteOfBufferedBytesIsConsistent( TestCase tc ) {
+			bf.add( BYTES );
+			bf.write( 2, "FAIRLY".getBytes() );
+			bf.add( "!".getBytes() );
+			tc.assertEqual( "A FAIRLY long string that we use for testing!", new String( bf.read( 0, BYTES.length + 1 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Sees buffered bytes" )
+		public void read_SeesBufferedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			tc.assertEqual( 0L, this.fileSize() );
+			tc.assertEqual( new String( BYTES ), new String( bf.read( 0, BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Read spans written and buffered bytes" )
+		public void read_ReadSpansWrittenAndBufferedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			bf.add( BYTES );
+			tc.assertEqual( (long) BYTES.length, this.fileSize() );
+			tc.assertEqual( "testingA fairly", new String( bf.read( BYTES.length - 7, 15 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Cached read is consistent with write" )
+		public void read_CachedReadIsConsistentWithWrite( TestCase tc ) {
+			BLOCK_SIZE = 16;
+			bf.dispose();
+			bf = new ByteFile();
+			for ( int n = 0; n < 1000; n++ ) {
+				bf.add( String.format( "%05d", n ).getBytes() );
+			}
+			bf.sync( Sync.WRITE );
+			java.util.Random random = new java.util.Random( 42 );
+			boolean pass = true;
+			for ( int i = 0; i < 2000; i++ ) {
+				int n = random.nextInt( 999 );
+				pass &= String.format( "%05d%05d", n, n + 1 ).equals( new String( bf.read( 5 * n, 10 ) ) );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Repeated read hits cache" )
+		public void read_RepeatedReadHitsCache( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			bf.read( 2, 6 );
+			long hits = Blocks.hits.sum();
+			long misses = Blocks.misses.sum();
+			for ( int i = 0; i < 10; i++ ) {
+				tc.assertEqual( "fairly", new String( bf.read( 2, 6 ) ) );
+			}
+			tc.assertEqual( hits + 10, Blocks.hits.sum() );
+			tc.assertEqual( misses, Blocks.misses.sum() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Sequential misses read ahead" )
+		public void read_SequentialMissesReadAhead( TestCase tc ) {
+			BLOCK_SIZE = 16;
+			bf.dispose();
+			bf = new ByteFile();
+			for ( int n = 0; n < 1000; n++ ) {
+				bf.add( String.format( "%04d", n ).getBytes() );
+			}
+			bf.sync( Sync.WRITE );
+			long misses = Blocks.misses.sum();
+			boolean pass = true;
+			for ( int n = 0; n < 1000; n++ ) {
+				pass &= String.format( "%04d", n ).equals( new String( bf.read( 4 * n, 4 ) ) );
+			}
+			tc.assertTrue( pass );
+			// 250 blocks, fetched 1, 2, 4, then 8 at a time
+			tc.assertEqual( misses + 34, Blocks.misses.sum() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Overwrite replaces cached bytes" )
+		public void read_OverwriteReplacesCachedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			tc.assertEqual( "fairly", new String( bf.read( 2, 6 ) ) );
+			bf.write( 2, "barely".getBytes() );
+			tc.assertEqual( "barely", new String( bf.read( 2, 6 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Append extends cached block" )
+		public void read_AppendExtendsCachedBlock( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			tc.assertEqual( "testing", new String( bf.read( BYTES.length - 7, 7 ) ) );
+			bf.add( "appended".getBytes() );
+			bf.sync( Sync.WRITE );
+			tc.assertEqual( "testingappended", new String( bf.read( BYTES.length - 7, 15 ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Cache is bounded" )
+		public void read_CacheIsBounded( TestCase tc ) {
+			BLOCK_SIZE = 16;
+			CACHE_BLOCKS = 10;
+			bf.dispose();
+			bf = new ByteFile();
+			for ( int n = 0; n < 1000; n++ ) {
+				bf.add( String.format( "%04d", n ).getBytes() );
+			}
+			bf.sync( Sync.WRITE );
+			for ( int n = 0; n < 1000; n += 7 ) {
+				bf.read( 4 * n, 4 );
+			}
+			int size = 0;
+			for ( LinkedHashMap<Blocks.Key, ByteBuffer> cache : Blocks.CACHE ) {
+				synchronized ( cache ) {
+					size += cache.size();
+				}
+			}
+			tc.assertTrue( size <= 10 );
+		}
+
+		@Test.Impl( src = "public void ByteFile.read(int, byte[], int, int)", desc = "Large read bypasses cache" )
+		public void read_LargeReadBypassesCache( TestCase tc ) {
+			BLOCK_SIZE = 16;
+			bf.dispose();
+			bf = new ByteFile();
 			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			long misses = Blocks.misses.sum();
+			tc.assertEqual( new String( BYTES ), new String( bf.read( 0, BYTES.length ) ) );
+			tc.assertEqual( misses, Blocks.misses.sum() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.dispose()", desc = "Releases cached blocks" )
+		public void dispose_ReleasesCachedBlocks( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			bf.read( 2, 6 );
+			bf.dispose();
+			boolean pass = true;
+			for ( LinkedHashMap<Blocks.Key, ByteBuffer> cache : Blocks.CACHE ) {
+				synchronized ( cache ) {
+					for ( Blocks.Key key : cache.keySet() ) {
+						pass &= key.file != bf;
+					}
+				}
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public void ByteFile.sync(ByteFile.Sync)", desc = "Throws AssertionError for null policy" )
+		public void sync_ThrowsAssertionerrorForNullPolicy( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			bf.sync( null );
+		}
+
+		@Test.Impl( src = "public void ByteFile.sync(ByteFile.Sync)", desc = "Throws AssertionError after dispose" )
+		public void sync_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			bf.dispose();
+			tc.expectError( AssertionError.class );
+			bf.sync( Sync.DATA );
+		}
+
+		@Test.Impl( src = "public void ByteFile.sync(ByteFile.Sync)", desc = "Writes buffered bytes" )
+		public void sync_WritesBufferedBytes( TestCase tc ) {
+			boolean pass = true;
+			for ( Sync policy : Sync.values() ) {
+				bf.add( BYTES );
+				bf.sync( policy );
+				pass &= this.fileSize() == bf.length;
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public void ByteFile.sync(ByteFile.Sync)", desc = "Forces mapped chunks" )
+		public void sync_ForcesMappedChunks( TestCase tc ) {
+			CHUNK_SIZE = 16;
+			bf.dispose();
+			bf = new ByteFile( true );
+			bf.add( BYTES );
+			bf.sync( Sync.ALL );
+			tc.assertEqual( new String( BYTES ), new String( bf.read( 0, BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public void ByteFile.sync()", desc = "Writes buffered bytes" )
+		public void sync2_WritesBufferedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync();
+			tc.assertEqual( (long) BYTES.length, this.fileSize() );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Throws AssertionError for null" )
+		public void readMany_ThrowsAssertionerrorForNull( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			bf.readMany( null, new int[0] );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Throws AssertionError for mismatched lengths" )
+		public void readMany_ThrowsAssertionerrorForMismatchedLengths( TestCase tc ) {
+			bf.add( BYTES );
+			tc.expectError( AssertionError.class );
+			bf.readMany( new int[] { 0, 1 }, new int[] { 1 } );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Throws AssertionError on read past EOF" )
+		public void readMany_ThrowsAssertionerrorOnReadPastEof( TestCase tc ) {
+			bf.add( BYTES );
+			tc.expectError( AssertionError.class );
+			bf.readMany( new int[] { 0, BYTES.length - 5 }, new int[] { 5, 6 } );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Is consistent with write" )
+		public void readMany_IsConsistentWithWrite( TestCase tc ) {
+			for ( int n = 0; n < 1000; n++ ) {
+				bf.add( String.format( "%04d", n ).getBytes() );
+			}
+			bf.sync( Sync.WRITE );
+			// Every third record, in descending order
+			int[] positions = new int[ 334 ];
+			int[] counts = new int[ 334 ];
+			for ( int i = 0; i < 334; i++ ) {
+				positions[i] = 4 * (999 - 3 * i);
+				counts[i] = 4;
+			}
+			byte[][] bytes = bf.readMany( positions, counts );
+			boolean pass = true;
+			for ( int i = 0; i < 334; i++ ) {
+				pass &= String.format( "%04d", 999 - 3 * i ).equals( new String( bytes[i] ) );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Handles overlapping ranges" )
+		public void readMany_HandlesOverlappingRanges( TestCase tc ) {
+			bf.add( BYTES );
+			byte[][] bytes = bf.readMany( new int[] { 9, 2, 2, 0 }, new int[] { 11, 11, 6, 1 } );
+			tc.assertEqual( "long string", new String( bytes[0] ) );
+			tc.assertEqual( "fairly long", new String( bytes[1] ) );
+			tc.assertEqual( "fairly", new String( bytes[2] ) );
+			tc.assertEqual( "A", new String( bytes[3] ) );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Handles empty ranges" )
+		public void readMany_HandlesEmptyRanges( TestCase tc ) {
+			bf.add( BYTES );
+			byte[][] bytes = bf.readMany( new int[] { 5, 2 }, new int[] { 0, 6 } );
+			tc.assertEqual( 0, bytes[0].length );
+			tc.assertEqual( "fairly", new String( bytes[1] ) );
+			tc.assertEqual( 0, bf.readMany( new int[0], new int[0] ).length );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Sees buffered bytes" )
+		public void readMany_SeesBufferedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			bf.add( "buffered".getBytes() );
+			byte[][] bytes = bf.readMany( new int[] { BYTES.length - 7, BYTES.length }, new int[] { 7, 8 } );
+			tc.assertEqual( "testing", new String( bytes[0] ) );
+			tc.assertEqual( "buffered", new String( bytes[1] ) );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteFile.readMany(int[], int[])", desc = "Splits reads at merge limit" )
+		public void readMany_SplitsReadsAtMergeLimit( TestCase tc ) {
+			MERGE_LIMIT = 10;
+			MERGE_GAP = 0;
+			bf.add( BYTES );
+			byte[][] bytes = bf.readMany( new int[] { 0, 2, 9, 14 }, new int[] { 1, 6, 4, 30 } );
+			tc.assertEqual( "A", new String( bytes[0] ) );
+			tc.assertEqual( "fairly", new String( bytes[1] ) );
+			tc.assertEqual( "long", new String( bytes[2] ) );
+			tc.assertEqual( "string that we use for testing", new String( bytes[3] ) );
+		}
+
+		private static String string( ByteBuffer buffer ) {
+			byte[] bytes = new byte[ buffer.remaining() ];
+			buffer.get( bytes );
+			return new String( bytes );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Throws AssertionError on read past EOF" )
+		public void readAsync_ThrowsAssertionerrorOnReadPastEof( TestCase tc ) {
+			bf.add( BYTES );
+			tc.expectError( AssertionError.class );
+			bf.readAsync( BYTES.length - 5, 6 );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Throws AssertionError after dispose" )
+		public void readAsync_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			bf.add( BYTES );
+			bf.dispose();
+			tc.expectError( AssertionError.class );
+			bf.readAsync( 0, 10 );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Is consistent with write" )
+		public void readAsync_IsConsistentWithWrite( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			tc.assertEqual( "fairly long", string( bf.readAsync( 2, 11 ).join() ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Sees buffered bytes" )
+		public void readAsync_SeesBufferedBytes( TestCase tc ) {
+			bf.add( BYTES );
+			CompletableFuture<ByteBuffer> future = bf.readAsync( 0, BYTES.length );
+			tc.assertTrue( future.isDone() );
+			tc.assertEqual( new String( BYTES ), string( future.join() ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Mapped read completes immediately" )
+		public void readAsync_MappedReadCompletesImmediately( TestCase tc ) {
+			bf.dispose();
+			bf = new ByteFile( true );
+			bf.add( BYTES );
+			CompletableFuture<ByteBuffer> future = bf.readAsync( 2, 6 );
+			tc.assertTrue( future.isDone() );
+			tc.assertEqual( "fairly", string( future.join() ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteFile.readAsync(int, int)", desc = "Many reads in progress at once" )
+		public void readAsync_ManyReadsInProgressAtOnce( TestCase tc ) {
+			for ( int n = 0; n < 1000; n++ ) {
+				bf.add( String.format( "%04d", n ).getBytes() );
+			}
+			bf.sync( Sync.WRITE );
+			List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+			for ( int n = 0; n < 1000; n++ ) {
+				futures.add( bf.readAsync( 4 * n, 4 ) );
+			}
+			boolean pass = true;
+			for ( int n = 0; n < 1000; n++ ) {
+				pass &= String.format( "%04d", n ).equals( string( futures.get( n ).join() ) );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public void ByteFile.dispose()", desc = "Closes asynchronous channel" )
+		public void dispose_ClosesAsynchronousChannel( TestCase tc ) {
+			bf.add( BYTES );
+			bf.sync( Sync.WRITE );
+			bf.readAsync( 0, 10 ).join();
+			bf.dispose();
+			tc.assertFalse( bf.asyncChannel.isOpen() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.dispose()", desc = "Closes channel" )
+		public void dispose_ClosesChannel( TestCase tc ) {
+			bf.dispose();
+			tc.assertFalse( bf.channel.isOpen() );
+			tc.assertFalse( bf.file.exists() );
+		}
+
+		@Test.Impl( src = "public void ByteFile.dispose()", desc = "Is idempotent" )
+		public void dispose_IsIdempotent( TestCase tc ) {
+			long total = TOTAL_BYTES.get();
+			bf.add( BYTES );
+			bf.dispose();
 			bf.dispose();
-			tc.assertEqual( total, TOTAL_BYTES );
+			tc.assertEqual( total, TOTAL_BYTES.get() );
 		}
 					
 		@Test.Impl( src = "public int ByteFile.add(byte[])", desc = "Increases length by src length" )
@@ -501,25 +1666,25 @@ public class ByteFile  {
 					
 		@Test.Impl( src = "public int ByteFile.add(byte[])", desc = "Increases total bytes by count" )
 		public void add_IncreasesTotalBytesByCount( TestCase tc ) {
-			long total = TOTAL_BYTES;
+			long total = TOTAL_BYTES.get();
 			bf.add( BYTES );
 			bf.add( BYTES );
-			tc.assertEqual( total + 2 * BYTES.length, TOTAL_BYTES );
+			tc.assertEqual( total + 2 * BYTES.length, TOTAL_BYTES.get() );
 		}
 		
 		@Test.Impl( src = "public int ByteFile.add(byte[], int, int)", desc = "Increases total bytes by count" )
 		public void add2_IncreasesTotalBytesByCount( TestCase tc ) {
-			long total = TOTAL_BYTES;
+			long total = TOTAL_BYTES.get();
 			bf.add( BYTES,  0, 12 );
 			bf.add( BYTES,  0, 14 );
 			bf.add( BYTES,  0, 16 );
-			tc.assertEqual( total + 42, TOTAL_BYTES );
+			tc.assertEqual( total + 42, TOTAL_BYTES.get() );
 		}
 		
 		@Test.Impl( src = "public void ByteFile.write(int, byte[], int, int)", desc = "Increases total bytes" )
 		public void write_IncreasesTotalBytes( TestCase tc ) {
 			bf.write( 110, BYTES, 0, 20 );
-			tc.assertEqual( (long) 130, TOTAL_BYTES );
+			tc.assertEqual( (long) 130, TOTAL_BYTES.get() );
 		}
 					
 		
@@ -0,0 +1,903 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import sundquis.core.Test.Decl;
+
+/**
+ * Append-only byte storage addressed by {@code long}, spread over a sequence of
+ * {@code ByteFile} segments.
+ *
+ * Bytes are appended to the active segment; when it cannot hold an addition a new
+ * segment is started, so allocation never searches. A record never spans segments. The
+ * address of a byte is its segment index times the segment size plus its position in the
+ * segment, so reads locate their segment by division.
+ *
+ * Appends are serialized; reads do not lock and may run concurrently with appends.
+ * 
+ * Freed bytes are recorded per segment. A segment other than the active one is retired
+ * once all of its bytes are freed, and its file is disposed by the second call to
+ * {@link #reclaim()} after that, so that a read that began before retirement can finish
+ * even if a call to {@code reclaim} comes right after the retirement. Live
+ * records may be moved out of a sparse segment with {@link #relocate(long, int)}.
+ */
+public class ByteStore {
+
+	// Configurable address space per segment in bytes (1 GB default)
+	private static long SEGMENT_SIZE = Property.get( "segmentSize", 1000000000L, Property.LONG );
+	
+	// Configurable fraction of freed bytes at which a segment is sparse (0.5 default)
+	private static double SPARSE_RATIO = Property.get( "sparseRatio", 0.5, Property.DOUBLE );
+
+
+	// Bytes per segment in the address space; fixed for the life of the store
+	private final long segmentSize;
+
+	// Replaced when a segment is started or retired; the last is active, retired are null
+	private volatile ByteFile[] segments;
+
+	// Bytes appended to each segment; guarded by this
+	private int[] used;
+
+	// Bytes freed in each segment; guarded by this
+	private int[] dead;
+
+	// Segments retired since the previous call to reclaim; guarded by this
+	private List<ByteFile> retired;
+
+	// Segments retired before the previous call to reclaim, disposed by the next; guarded by this
+	private List<ByteFile> draining;
+
+	// Bytes stored and not freed; guarded by this
+	private long length;
+
+	/** Construct an empty store. Segments are started as needed. */
+	@Decl( "Creates empty store" )
+	@Decl( "Starts no segments" )
+	public ByteStore() {
+		this( ByteStore.SEGMENT_SIZE );
+	}
+	
+	/* Also used to give tests of other classes small segments */
+	ByteStore( long segmentSize ) {
+		this.segmentSize = segmentSize;
+		this.segments = new ByteFile[0];
+		this.used = new int[0];
+		this.dead = new int[0];
+		this.retired = new ArrayList<ByteFile>();
+		this.draining = new ArrayList<ByteFile>();
+		this.length = 0L;
+	}
+
+	/**
+	 * Append the bytes to this store.
+	 *
+	 * @param src
+	 * @return
+	 * 		The address of the first byte
+	 */
+	@Decl( "Throws AssertionError for null" )
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Throws AssertionError for record larger than segment" )
+	@Decl( "Empty record needs no space" )
+	@Decl( "Addresses are consecutive within segment" )
+	@Decl( "Starts segment when active segment is full" )
+	@Decl( "Addresses exceed int range" )
+	public synchronized long add( byte[] src ) {
+		Assert.nonNull( src );
+		Assert.isTrue( this.isOpen() );
+		Assert.isTrue( src.length <= this.segmentSize );
+
+		ByteFile[] segments = this.segments;
+		int last = segments.length - 1;
+		if ( src.length == 0 ) {
+			return last < 0 ? 0L : last * this.segmentSize + this.used[last];
+		}
+
+		ByteFile active = last < 0 ? null : segments[last];
+		if ( active == null || this.used[last] + src.length > this.segmentSize || ! active.canAppend( src.length ) ) {
+			active = new ByteFile();
+			segments = Arrays.copyOf( segments, segments.length + 1 );
+			segments[++last] = active;
+			this.used = Arrays.copyOf( this.used, segments.length );
+			this.dead = Arrays.copyOf( this.dead, segments.length );
+			this.segments = segments;
+			// The previous segment may already be entirely free
+			if ( last > 0 ) {
+				this.retireIfFree( last - 1 );
+			}
+		}
+
+		int position = active.add( src );
+		this.used[last] = position + src.length;
+		this.length += src.length;
+		return last * this.segmentSize + position;
+	}
+
+	/**
+	 * Read bytes stored by one call to {@code add} into the destination buffer.
+	 *
+	 * @param address
+	 * 		Address of the first byte
+	 * @param dest
+	 * @param offset
+	 * 		Start position in the buffer
+	 * @param count
+	 * 		Number of bytes to read
+	 */
+	@Decl( "Throws AssertionError for negative address" )
+	@Decl( "Throws AssertionError for unknown segment" )
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Is consistent with add" )
+	@Decl( "Reads earlier segments" )
+	@Decl( "Reads concurrently with add" )
+	public void read( long address, byte[] dest, int offset, int count ) {
+		Assert.isTrue( address >= 0L );
+		Assert.nonNull( dest );
+
+		ByteFile[] segments = Assert.nonNull( this.segments );
+		if ( count == 0 ) {
+			return;
+		}
+		int index = (int) (address / this.segmentSize);
+		Assert.isTrue( index < segments.length );
+		ByteFile segment = segments[index];
+		if ( segment == null ) {
+			throw new AppException( "Segment retired: " + address );
+		}
+		segment.read( (int) (address % this.segmentSize), dest, offset, count );
+	}
+
+	/**
+	 * Read bytes stored by one call to {@code add} without waiting for the file, as for
+	 * {@link ByteFile#readAsync(int, int)}.
+	 *
+	 * @param address
+	 * @param count
+	 * @return
+	 * 		Completes with the bytes, or with an {@code AppException} if the segment has
+	 * 		been retired or the read fails.
+	 */
+	@Decl( "Throws AssertionError for unknown segment" )
+	@Decl( "Is consistent with add" )
+	@Decl( "Fails for retired segment" )
+	public CompletableFuture<ByteBuffer> readAsync( long address, int count ) {
+		Assert.isTrue( address >= 0L );
+
+		ByteFile[] segments = Assert.nonNull( this.segments );
+		if ( count == 0 ) {
+			return CompletableFuture.completedFuture( ByteBuffer.allocate( 0 ) );
+		}
+		int index = (int) (address / this.segmentSize);
+		Assert.isTrue( index < segments.length );
+		ByteFile segment = segments[index];
+		if ( segment == null ) {
+			return CompletableFuture.failedFuture( new AppException( "Segment retired: " + address ) );
+		}
+		return segment.readAsync( (int) (address % this.segmentSize), count );
+	}
+
+	/**
+	 * Construct a new {@code byte} array and read into it.
+	 *
+	 * @param address
+	 * @param count
+	 * @return
+	 */
+	@Decl( "Is consistent with add" )
+	public byte[] read( long address, int count ) {
+		byte[] result = new byte[ count ];
+		this.read( address, result, 0, count );
+		return result;
+	}
+
+	/**
+	 * Read many records at once. The records are grouped by segment and each group is read
+	 * with {@link ByteFile#readMany(int[], int[])}, so nearby records share reads.
+	 *
+	 * @param addresses
+	 * 		Address of each record
+	 * @param counts
+	 * 		Length of each record
+	 * @return
+	 * 		The bytes of each record, in the order requested
+	 */
+	@Decl( "Throws AssertionError for mismatched lengths" )
+	@Decl( "Throws AssertionError for unknown segment" )
+	@Decl( "Throws AppException for retired segment" )
+	@Decl( "Is consistent with add" )
+	@Decl( "Reads across segments" )
+	public byte[][] readMany( long[] addresses, int[] counts ) {
+		Assert.nonNull( addresses );
+		Assert.nonNull( counts );
+		Assert.isTrue( addresses.length == counts.length );
+
+		ByteFile[] segments = Assert.nonNull( this.segments );
+		int n = addresses.length;
+		Integer[] order = new Integer[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			Assert.isTrue( addresses[i] >= 0L );
+			Assert.isTrue( addresses[i] / this.segmentSize < segments.length );
+			order[i] = i;
+		}
+		Arrays.sort( order, (i, j) -> Long.compare( addresses[i], addresses[j] ) );
+
+		byte[][] result = new byte[ n ][];
+		int first = 0;
+		while ( first < n ) {
+			int index = (int) (addresses[ order[first] ] / this.segmentSize);
+			int last = first + 1;
+			while ( last < n && addresses[ order[last] ] / this.segmentSize == index ) {
+				last++;
+			}
+			ByteFile segment = segments[index];
+			if ( segment == null ) {
+				throw new AppException( "Segment retired: " + addresses[ order[first] ] );
+			}
+			int[] positions = new int[ last - first ];
+			int[] lengths = new int[ last - first ];
+			for ( int k = first; k < last; k++ ) {
+				positions[k - first] = (int) (addresses[ order[k] ] % this.segmentSize);
+				lengths[k - first] = counts[ order[k] ];
+			}
+			byte[][] bytes = segment.readMany( positions, lengths );
+			for ( int k = first; k < last; k++ ) {
+				result[ order[k] ] = bytes[k - first];
+			}
+			first = last;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Record that the bytes stored by one call to {@code add} are no longer needed. Retires
+	 * their segment if all of its bytes are free and it is not active.
+	 * 
+	 * @param address
+	 * @param count
+	 */
+	@Decl( "Throws AssertionError after dispose" )
+	@Decl( "Throws AssertionError for retired segment" )
+	@Decl( "Throws AssertionError for freeing more than used" )
+	@Decl( "Reduces length" )
+	@Decl( "Retires segment when all bytes freed" )
+	@Decl( "Keeps active segment" )
+	public synchronized void free( long address, int count ) {
+		Assert.isTrue( this.isOpen() );
+		Assert.isTrue( address >= 0L && count >= 0 );
+		int index = (int) (address / this.segmentSize);
+		Assert.isTrue( index < this.segments.length && this.segments[index] != null );
+		Assert.isTrue( this.dead[index] + count <= this.used[index] );
+		
+		this.dead[index] += count;
+		this.length -= count;
+		this.retireIfFree( index );
+	}
+	
+	/* Only called when synchronized */
+	private void retireIfFree( int index ) {
+		ByteFile[] segments = this.segments;
+		if ( index < segments.length - 1 && segments[index] != null && this.dead[index] == this.used[index] ) {
+			this.retired.add( segments[index] );
+			segments = segments.clone();
+			segments[index] = null;
+			this.segments = segments;
+		}
+	}
+	
+	/**
+	 * Determine if the segment holding the address has freed enough of its bytes, as
+	 * configured by {@code sparseRatio}, that its live records should be relocated. The
+	 * active segment is never sparse.
+	 * 
+	 * @param address
+	 * @return
+	 */
+	@Decl( "False for active segment" )
+	@Decl( "True when enough bytes freed" )
+	@Decl( "False for retired segment" )
+	public synchronized boolean isSparse( long address ) {
+		int index = (int) (address / this.segmentSize);
+		ByteFile[] segments = this.segments;
+		return segments != null && index < segments.length - 1 && segments[index] != null
+			&& this.dead[index] >= SPARSE_RATIO * this.used[index];
+	}
+	
+	/**
+	 * Copy the bytes stored by one call to {@code add} to the active segment and free the
+	 * original. Reads at the original address remain valid through the next {@code reclaim}.
+	 * 
+	 * @param address
+	 * @param count
+	 * @return
+	 * 		The new address
+	 */
+	@Decl( "Is consistent with add" )
+	@Decl( "Frees original" )
+	@Decl( "Original readable through next reclaim" )
+	public synchronized long relocate( long address, int count ) {
+		long moved = this.add( this.read( address, count ) );
+		this.free( address, count );
+		return moved;
+	}
+	
+	/**
+	 * Dispose the files of segments retired before the previous call. Segments retired
+	 * since then are kept until the next call, so callers must only ensure that no read
+	 * of a retired address lasts across two calls.
+	 * 
+	 * @return
+	 * 		The number of segments disposed
+	 */
+	@Decl( "Disposes retired segments" )
+	@Decl( "Keeps newly retired segments" )
+	@Decl( "Keeps live segments" )
+	public synchronized int reclaim() {
+		Assert.isTrue( this.isOpen() );
+		
+		for ( ByteFile segment : this.draining ) {
+			segment.dispose();
+		}
+		int count = this.draining.size();
+		this.draining = this.retired;
+		this.retired = new ArrayList<ByteFile>();
+		return count;
+	}
+
+	/** Bytes stored and not freed */
+	@Decl( "Is sum of added lengths" )
+	public synchronized long length() {
+		return this.length;
+	}
+
+	/** Number of segments started */
+	@Decl( "Counts segments" )
+	public int segments() {
+		ByteFile[] segments = this.segments;
+		return segments == null ? 0 : segments.length;
+	}
+
+	/**
+	 * Sync each segment with the given policy.
+	 *
+	 * @param policy
+	 */
+	@Decl( "Writes buffered bytes" )
+	public synchronized void sync( ByteFile.Sync policy ) {
+		Assert.isTrue( this.isOpen() );
+		
+		for ( ByteFile segment : this.segments ) {
+			if ( segment != null ) {
+				segment.sync( policy );
+			}
+		}
+	}
+
+	/** Determine if this store can accept read and add requests */
+	@Decl( "True for new" )
+	@Decl( "False after dispose" )
+	public boolean isOpen() {
+		return this.segments != null;
+	}
+
+	/** Dispose every segment */
+	@Decl( "Releases segments" )
+	public synchronized void dispose() {
+		if ( this.segments != null ) {
+			this.reclaim();
+			this.reclaim();
+			for ( ByteFile segment : this.segments ) {
+				if ( segment != null ) {
+					segment.dispose();
+				}
+			}
+			this.segments = null;
+		}
+	}
+
+	@Override
+	@Decl( "Indicates length and segments" )
+	public String toString() {
+		return "ByteStore(Length = " + this.length() + ", Segments = " + this.segments() + ")";
+	}
+
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return ByteStore.class;
+		}
+
+		private static final byte[] BYTES = "A fairly long string that we use for testing".getBytes();
+
+		private ByteStore store;
+
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				public void call() {
+					SEGMENT_SIZE = 100L;
+					store = new ByteStore();
+				}
+			};
+		}
+
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				public void call() {
+					store.dispose();
+					store = null;
+					SEGMENT_SIZE = 1000000000L;
+				}
+			};
+		}
+
+		@Test.Impl( src = "public ByteStore()", desc = "Creates empty store" )
+		public void ByteStore_CreatesEmptyStore( TestCase tc ) {
+			tc.assertEqual( 0L, store.length() );
+		}
+
+		@Test.Impl( src = "public ByteStore()", desc = "Starts no segments" )
+		public void ByteStore_StartsNoSegments( TestCase tc ) {
+			tc.assertEqual( 0, store.segments() );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Throws AssertionError for null" )
+		public void add_ThrowsAssertionerrorForNull( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			store.add( null );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Throws AssertionError after dispose" )
+		public void add_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			store.dispose();
+			tc.expectError( AssertionError.class );
+			store.add( BYTES );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Throws AssertionError for record larger than segment" )
+		public void add_ThrowsAssertionerrorForRecordLargerThanSegment( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			store.add( new byte[101] );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Empty record needs no space" )
+		public void add_EmptyRecordNeedsNoSpace( TestCase tc ) {
+			store.add( new byte[0] );
+			tc.assertEqual( 0, store.segments() );
+			tc.assertEqual( 0, store.read( store.add( new byte[0] ), 0 ).length );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Addresses are consecutive within segment" )
+		public void add_AddressesAreConsecutiveWithinSegment( TestCase tc ) {
+			tc.assertEqual( 0L, store.add( "abc".getBytes() ) );
+			tc.assertEqual( 3L, store.add( "defg".getBytes() ) );
+			tc.assertEqual( 7L, store.add( "h".getBytes() ) );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Starts segment when active segment is full" )
+		public void add_StartsSegmentWhenActiveSegmentIsFull( TestCase tc ) {
+			store.add( BYTES );
+			store.add( BYTES );
+			tc.assertEqual( 1, store.segments() );
+			tc.assertEqual( 100L, store.add( BYTES ) );
+			tc.assertEqual( 2, store.segments() );
+		}
+
+		@Test.Impl( src = "public long ByteStore.add(byte[])", desc = "Addresses exceed int range" )
+		public void add_AddressesExceedIntRange( TestCase tc ) {
+			SEGMENT_SIZE = 1L << 30;
+			ByteStore large = new ByteStore();
+			try {
+				long address = 0L;
+				for ( int i = 0; i < 3; i++ ) {
+					address = large.add( BYTES );
+					// Simulate a full segment so that the next record starts another
+					large.used[i] = (int) large.segmentSize;
+				}
+				tc.assertEqual( 2L << 30, address );
+				tc.assertTrue( address > Integer.MAX_VALUE );
+				tc.assertEqual( new String( BYTES ), new String( large.read( address, BYTES.length ) ) );
+			} finally {
+				large.dispose();
+			}
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Throws AssertionError for negative address" )
+		public void read_ThrowsAssertionerrorForNegativeAddress( TestCase tc ) {
+			store.add( BYTES );
+			tc.expectError( AssertionError.class );
+			store.read( -1L, new byte[10], 0, 10 );
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Throws AssertionError for unknown segment" )
+		public void read_ThrowsAssertionerrorForUnknownSegment( TestCase tc ) {
+			store.add( BYTES );
+			tc.expectError( AssertionError.class );
+			store.read( 100L, new byte[10], 0, 10 );
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Throws AssertionError after dispose" )
+		public void read_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			store.add( BYTES );
+			store.dispose();
+			tc.expectError( AssertionError.class );
+			store.read( 0L, new byte[10], 0, 10 );
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Is consistent with add" )
+		public void read_IsConsistentWithAdd( TestCase tc ) {
+			long first = store.add( "first".getBytes() );
+			long second = store.add( "second".getBytes() );
+			byte[] dest = new byte[10];
+			store.read( second, dest, 2, 6 );
+			tc.assertEqual( "second", new String( dest, 2, 6 ) );
+			store.read( first, dest, 0, 5 );
+			tc.assertEqual( "first", new String( dest, 0, 5 ) );
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Reads earlier segments" )
+		public void read_ReadsEarlierSegments( TestCase tc ) {
+			List<Long> addresses = new ArrayList<Long>();
+			for ( int i = 0; i < 20; i++ ) {
+				addresses.add( store.add( ("record " + i + " " + new String( BYTES )).getBytes() ) );
+			}
+			boolean pass = true;
+			for ( int i = 0; i < 20; i++ ) {
+				String expected = "record " + i + " " + new String( BYTES );
+				pass &= expected.equals( new String( store.read( addresses.get( i ), expected.length() ) ) );
+			}
+			tc.assertTrue( pass );
+			tc.assertEqual( 20, store.segments() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.read(long, byte[], int, int)", desc = "Reads concurrently with add" )
+		public void read_ReadsConcurrentlyWithAdd( TestCase tc ) throws InterruptedException {
+			int records = 2000;
+			long[] addresses = new long[ records ];
+			CountDownLatch added = new CountDownLatch( records );
+			boolean[] pass = { true };
+			Thread writer = new Thread( () -> {
+				for ( int n = 0; n < records; n++ ) {
+					addresses[n] = store.add( ("#" + n).getBytes() );
+					added.countDown();
+				}
+			});
+			Thread reader = new Thread( () -> {
+				for ( int n = 0; n < records; n++ ) {
+					while ( added.getCount() > records - n - 1 ) {
+						Thread.onSpinWait();
+					}
+					String expected = "#" + n;
+					pass[0] &= expected.equals( new String( store.read( addresses[n], expected.length() ) ) );
+				}
+			});
+			writer.start();
+			reader.start();
+			writer.join();
+			reader.join();
+			tc.assertTrue( pass[0] );
+		}
+
+		@Test.Impl( src = "public byte[] ByteStore.read(long, int)", desc = "Is consistent with add" )
+		public void read2_IsConsistentWithAdd( TestCase tc ) {
+			store.add( BYTES );
+			long address = store.add( BYTES );
+			tc.assertEqual( new String( BYTES ), new String( store.read( address, BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteStore.readMany(long[], int[])", desc = "Throws AssertionError for mismatched lengths" )
+		public void readMany_ThrowsAssertionerrorForMismatchedLengths( TestCase tc ) {
+			long address = store.add( BYTES );
+			tc.expectError( AssertionError.class );
+			store.readMany( new long[] { address }, new int[] { 1, 2 } );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteStore.readMany(long[], int[])", desc = "Throws AssertionError for unknown segment" )
+		public void readMany_ThrowsAssertionerrorForUnknownSegment( TestCase tc ) {
+			store.add( BYTES );
+			tc.expectError( AssertionError.class );
+			store.readMany( new long[] { 0L, 500L }, new int[] { 1, 1 } );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteStore.readMany(long[], int[])", desc = "Throws AppException for retired segment" )
+		public void readMany_ThrowsAppexceptionForRetiredSegment( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.add( BYTES );
+			store.free( address, 2 * BYTES.length );
+			tc.expectError( AppException.class );
+			store.readMany( new long[] { address }, new int[] { BYTES.length } );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteStore.readMany(long[], int[])", desc = "Is consistent with add" )
+		public void readMany_IsConsistentWithAdd( TestCase tc ) {
+			long first = store.add( "first".getBytes() );
+			long second = store.add( "second".getBytes() );
+			byte[][] bytes = store.readMany( new long[] { second, first }, new int[] { 6, 5 } );
+			tc.assertEqual( "second", new String( bytes[0] ) );
+			tc.assertEqual( "first", new String( bytes[1] ) );
+		}
+
+		@Test.Impl( src = "public byte[][] ByteStore.readMany(long[], int[])", desc = "Reads across segments" )
+		public void readMany_ReadsAcrossSegments( TestCase tc ) {
+			long[] addresses = new long[ 60 ];
+			int[] counts = new int[ 60 ];
+			for ( int i = 0; i < 60; i++ ) {
+				byte[] record = String.format( "record %03d", i ).getBytes();
+				addresses[59 - i] = store.add( record );
+				counts[59 - i] = record.length;
+			}
+			byte[][] bytes = store.readMany( addresses, counts );
+			boolean pass = true;
+			for ( int i = 0; i < 60; i++ ) {
+				pass &= String.format( "record %03d", i ).equals( new String( bytes[59 - i] ) );
+			}
+			tc.assertTrue( pass );
+			tc.assertEqual( 6, store.segments() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Throws AssertionError after dispose" )
+		public void free_ThrowsAssertionerrorAfterDispose( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.dispose();
+			tc.expectError( AssertionError.class );
+			store.free( address, BYTES.length );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Throws AssertionError for retired segment" )
+		public void free_ThrowsAssertionerrorForRetiredSegment( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.add( BYTES );
+			store.free( address, 2 * BYTES.length );
+			tc.expectError( AssertionError.class );
+			store.free( address, 0 );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Throws AssertionError for freeing more than used" )
+		public void free_ThrowsAssertionerrorForFreeingMoreThanUsed( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.free( address, BYTES.length );
+			tc.expectError( AssertionError.class );
+			store.free( address, 1 );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Reduces length" )
+		public void free_ReducesLength( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.free( address, BYTES.length );
+			tc.assertEqual( (long) BYTES.length, store.length() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Retires segment when all bytes freed" )
+		public void free_RetiresSegmentWhenAllBytesFreed( TestCase tc ) {
+			long first = store.add( BYTES );
+			long second = store.add( BYTES );
+			store.add( BYTES );
+			store.free( first, BYTES.length );
+			tc.assertTrue( store.segments[0] != null );
+			store.free( second, BYTES.length );
+			tc.assertTrue( store.segments[0] == null );
+			tc.assertEqual( 1, store.retired.size() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.free(long, int)", desc = "Keeps active segment" )
+		public void free_KeepsActiveSegment( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.free( address, BYTES.length );
+			tc.assertTrue( store.segments[0] != null );
+			// Retired once another segment is started
+			store.add( new byte[100] );
+			tc.assertTrue( store.segments[0] == null );
+		}
+
+		@Test.Impl( src = "public boolean ByteStore.isSparse(long)", desc = "False for active segment" )
+		public void isSparse_FalseForActiveSegment( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.free( address, BYTES.length );
+			tc.assertFalse( store.isSparse( address ) );
+		}
+
+		@Test.Impl( src = "public boolean ByteStore.isSparse(long)", desc = "True when enough bytes freed" )
+		public void isSparse_TrueWhenEnoughBytesFreed( TestCase tc ) {
+			long first = store.add( BYTES );
+			long second = store.add( BYTES );
+			store.add( BYTES );
+			tc.assertFalse( store.isSparse( second ) );
+			store.free( first, BYTES.length );
+			tc.assertTrue( store.isSparse( second ) );
+		}
+
+		@Test.Impl( src = "public boolean ByteStore.isSparse(long)", desc = "False for retired segment" )
+		public void isSparse_FalseForRetiredSegment( TestCase tc ) {
+			long first = store.add( BYTES );
+			store.add( BYTES );
+			store.free( first, 2 * BYTES.length );
+			tc.assertFalse( store.isSparse( first ) );
+		}
+
+		@Test.Impl( src = "public long ByteStore.relocate(long, int)", desc = "Is consistent with add" )
+		public void relocate_IsConsistentWithAdd( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			long moved = store.relocate( address, BYTES.length );
+			tc.assertEqual( 100L, moved );
+			tc.assertEqual( new String( BYTES ), new String( store.read( moved, BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public long ByteStore.relocate(long, int)", desc = "Frees original" )
+		public void relocate_FreesOriginal( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.relocate( address, BYTES.length );
+			tc.assertEqual( 2L * BYTES.length, store.length() );
+			tc.assertTrue( store.isSparse( address ) );
+		}
+
+		@Test.Impl( src = "public long ByteStore.relocate(long, int)", desc = "Original readable through next reclaim" )
+		public void relocate_OriginalReadableThroughNextReclaim( TestCase tc ) {
+			long first = store.add( BYTES );
+			long second = store.add( BYTES );
+			store.add( BYTES );
+			store.relocate( first, BYTES.length );
+			store.relocate( second, BYTES.length );
+			tc.assertTrue( store.segments[0] == null );
+			ByteFile retired = store.retired.get( 0 );
+			store.reclaim();
+			tc.assertEqual( new String( BYTES ), new String( retired.read( 0, BYTES.length ) ) );
+			store.reclaim();
+			tc.assertFalse( retired.isOpen() );
+		}
+
+		@Test.Impl( src = "public int ByteStore.reclaim()", desc = "Disposes retired segments" )
+		public void reclaim_DisposesRetiredSegments( TestCase tc ) {
+			for ( int i = 0; i < 6; i++ ) {
+				store.free( store.add( BYTES ), BYTES.length );
+			}
+			store.reclaim();
+			tc.assertEqual( 2, store.reclaim() );
+			tc.assertEqual( 0, store.reclaim() );
+		}
+
+		@Test.Impl( src = "public int ByteStore.reclaim()", desc = "Keeps newly retired segments" )
+		public void reclaim_KeepsNewlyRetiredSegments( TestCase tc ) {
+			long first = store.add( BYTES );
+			long second = store.add( BYTES );
+			store.add( BYTES );
+			store.free( first, BYTES.length );
+			store.free( second, BYTES.length );
+			tc.assertEqual( 0, store.reclaim() );
+			tc.assertTrue( store.draining.get( 0 ).isOpen() );
+		}
+
+		@Test.Impl( src = "public int ByteStore.reclaim()", desc = "Keeps live segments" )
+		public void reclaim_KeepsLiveSegments( TestCase tc ) {
+			List<Long> addresses = new ArrayList<Long>();
+			for ( int i = 0; i < 6; i++ ) {
+				addresses.add( store.add( BYTES ) );
+			}
+			store.free( addresses.get( 0 ), BYTES.length );
+			tc.assertEqual( 0, store.reclaim() );
+			tc.assertEqual( new String( BYTES ), new String( store.read( addresses.get( 1 ), BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteStore.readAsync(long, int)", desc = "Throws AssertionError for unknown segment" )
+		public void readAsync_ThrowsAssertionerrorForUnknownSegment( TestCase tc ) {
+			store.add( BYTES );
+			tc.expectError( AssertionError.class );
+			store.readAsync( 100L, 10 );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteStore.readAsync(long, int)", desc = "Is consistent with add" )
+		public void readAsync_IsConsistentWithAdd( TestCase tc ) {
+			store.add( BYTES );
+			long address = store.add( "second".getBytes() );
+			ByteBuffer buffer = store.readAsync( address, 6 ).join();
+			byte[] bytes = new byte[ buffer.remaining() ];
+			buffer.get( bytes );
+			tc.assertEqual( "second", new String( bytes ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture ByteStore.readAsync(long, int)", desc = "Fails for retired segment" )
+		public void readAsync_FailsForRetiredSegment( TestCase tc ) {
+			long address = store.add( BYTES );
+			store.add( BYTES );
+			store.add( BYTES );
+			store.free( address, 2 * BYTES.length );
+			try {
+				store.readAsync( address, BYTES.length ).join();
+				tc.fail();
+			} catch ( CompletionException e ) {
+				tc.assertTrue( e.getCause() instanceof AppException );
+			}
+		}
+
+		@Test.Impl( src = "public long ByteStore.length()", desc = "Is sum of added lengths" )
+		public void length_IsSumOfAddedLengths( TestCase tc ) {
+			store.add( BYTES );
+			store.add( BYTES );
+			store.add( BYTES );
+			tc.assertEqual( 3L * BYTES.length, store.length() );
+		}
+
+		@Test.Impl( src = "public int ByteStore.segments()", desc = "Counts segments" )
+		public void segments_CountsSegments( TestCase tc ) {
+			for ( int i = 0; i < 6; i++ ) {
+				store.add( BYTES );
+			}
+			tc.assertEqual( 3, store.segments() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.sync(ByteFile.Sync)", desc = "Writes buffered bytes" )
+		public void sync_WritesBufferedBytes( TestCase tc ) {
+			store.add( BYTES );
+			store.sync( ByteFile.Sync.WRITE );
+			tc.assertEqual( new String( BYTES ), new String( store.read( 0L, BYTES.length ) ) );
+		}
+
+		@Test.Impl( src = "public boolean ByteStore.isOpen()", desc = "True for new" )
+		public void isOpen_TrueForNew( TestCase tc ) {
+			tc.assertTrue( store.isOpen() );
+		}
+
+		@Test.Impl( src = "public boolean ByteStore.isOpen()", desc = "False after dispose" )
+		public void isOpen_FalseAfterDispose( TestCase tc ) {
+			store.dispose();
+			tc.assertFalse( store.isOpen() );
+		}
+
+		@Test.Impl( src = "public void ByteStore.dispose()", desc = "Releases segments" )
+		public void dispose_ReleasesSegments( TestCase tc ) {
+			store.add( BYTES );
+			store.add( BYTES );
+			store.add( BYTES );
+			ByteFile[] segments = store.segments;
+			store.dispose();
+			boolean closed = true;
+			for ( ByteFile segment : segments ) {
+				closed &= ! segment.isOpen();
+			}
+			tc.assertTrue( closed );
+		}
+
+		@Test.Impl( src = "public String ByteStore.toString()", desc = "Indicates length and segments" )
+		public void toString_IndicatesLengthAndSegments( TestCase tc ) {
+			store.add( BYTES );
+			tc.assertEqual( "ByteStore(Length = " + BYTES.length + ", Segments = 1)", store.toString() );
+		}
+
+	}
+
+
+	public static void main(String[] args) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println("\nDone!");
+	}
+
+}
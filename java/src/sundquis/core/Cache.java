@@ -10,16 +10,77 @@
 package sundquis.core;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import sundquis.core.Test.Decl;
+import sundquis.util.FrequencySketch;
 
-public final class Cache<K extends Comparable<K>, V> {
+/**
+ * Concurrent cache of values.
+ * 
+ * Reads do not lock. A miss registers a future for the key so that the builder runs at
+ * most once per key at a time; other threads missing on the same key wait on that future.
+ * Keys must implement {@code equals} and {@code hashCode} consistently.
+ * 
+ * By default values are held via soft references and may be collected. A cache bounded by
+ * {@link #maximumSize(long)} or {@link #maximumWeight(long, Weigher)} instead holds values
+ * strongly and evicts using a W-TinyLFU policy: new entries enter a small LRU window, and an
+ * entry leaving the window is admitted to the main region only if a frequency sketch
+ * estimates it to be more popular than the entry it would displace.
+ * 
+ * A cache constructed by {@link #sorted(Builder)} keeps its keys in a concurrent skip list
+ * and supports streaming and invalidating ranges of keys.
+ */
+public final class Cache<K, V> {
 	
 
 	/**
@@ -33,294 +94,3763 @@ public final class Cache<K extends Comparable<K>, V> {
 	public interface Builder<K, V> {
 		public V make( K key ) throws AppException;
 	}
+	
+	/**
+	 * Makes values for several keys in one call, for backends where a request for many
+	 * keys costs about the same as a request for one. The result must contain a non-null
+	 * value for every requested key; values for other keys are ignored.
+	 */
+	@Test.Skip
+	@FunctionalInterface
+	public interface BatchBuilder<K, V> {
+		public Map<K, V> makeAll( Collection<K> keys ) throws AppException;
+	}
+	
+	/**
+	 * Determines the relative size of an entry in a cache bounded by weight.
+	 * Weights must be non-negative and must not change while the entry is cached.
+	 */
+	@Test.Skip
+	@FunctionalInterface
+	public interface Weigher<K, V> {
+		public int weigh( K key, V value );
+	}
+
+	/** A SoftReference that also holds the key and the cache, so that the reaper can remove it */
+	private static final class SoftRef<K, V> extends SoftReference<V> {
+
+		private final K key;
+		
+		private final Cache<K, V> owner;
+
+		SoftRef( K key, V value, Cache<K, V> owner ) {
+			super( value, Reaper.QUEUE );
+			this.key = Assert.nonNull( key );
+			this.owner = owner;
+		}
+		
+		void reap() {
+			this.owner.map.computeIfPresent( this.key, (k, node) -> node.soft == this ? null : node );
+			this.owner.collected.increment();
+		}
+	}
+	
+	/* 
+	 * Shared daemon thread that removes entries whose soft references have been cleared,
+	 * so that request threads never do this work. Started on first use.
+	 */
+	private static class Reaper {
+		
+		private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+		
+		static {
+			Thread thread = new Thread( Reaper::reap, "Cache.Reaper" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+		
+		private static void reap() {
+			while ( true ) {
+				try {
+					((SoftRef<?, ?>) QUEUE.remove()).reap();
+				} catch ( InterruptedException e ) {
+					// Daemon; keep reaping
+				} catch ( RuntimeException e ) {
+					Fatal.warning( "Cache reaper: " + e );
+				}
+			}
+		}
+	}
+	
+	/** 
+	 * A cached association. Exactly one of {@code value} or {@code soft} is non-null. 
+	 * A node is never re-bound; storing a new value for a key replaces the node.
+	 */
+	private static final class Node<K, V> {
+		
+		private final K key;
+		
+		// Strong reference, used when the cache is bounded
+		private final V value;
+		
+		// Soft reference, used when the cache is unbounded
+		private final SoftRef<K, V> soft;
+		
+		private final int weight;
+		
+		// System.nanoTime() when stored; only maintained when the cache has timed policies
+		private final long writeTime;
+		
+		// System.nanoTime() when last read; only maintained when expiring after access
+		private volatile long accessTime;
+		
+		// Guarded by the lock
+		private Node<K, V> prev;
+		private Node<K, V> next;
+		private int region;
+		
+		// Guarded by the lock
+		private Node<K, V> timerPrev;
+		private Node<K, V> timerNext;
+		private long deadline;
+		
+		// True if the disk tier holds this node's value; guarded by the lock
+		private boolean saved;
+		
+		Node( K key, V value, int weight, long writeTime, long now ) {
+			this.key = key;
+			this.value = value;
+			this.soft = null;
+			this.weight = weight;
+			this.writeTime = writeTime;
+			this.accessTime = now;
+		}
+		
+		Node( K key, V value, Cache<K, V> owner, long writeTime, long now ) {
+			this.key = key;
+			this.value = null;
+			this.soft = new SoftRef<K, V>( key, value, owner );
+			this.weight = 1;
+			this.writeTime = writeTime;
+			this.accessTime = now;
+		}
+		
+		V get() {
+			return this.soft == null ? this.value : this.soft.get();
+		}
+	}
+	
+	/** Access ordered list of nodes, least recently used first */
+	private static final class AccessOrder<K, V> {
+		
+		// Sentinel; head.next is the first node and head.prev the last
+		private final Node<K, V> head = new Node<K, V>( null, null, 0, 0L, 0L );
+		
+		private long weight = 0L;
+		
+		AccessOrder() {
+			this.head.prev = this.head;
+			this.head.next = this.head;
+		}
+		
+		Node<K, V> first() {
+			return this.head.next == this.head ? null : this.head.next;
+		}
+		
+		Node<K, V> after( Node<K, V> node ) {
+			return node.next == this.head ? null : node.next;
+		}
+		
+		void addLast( Node<K, V> node ) {
+			node.prev = this.head.prev;
+			node.next = this.head;
+			this.head.prev.next = node;
+			this.head.prev = node;
+			this.weight += node.weight;
+		}
+		
+		void remove( Node<K, V> node ) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			this.weight -= node.weight;
+		}
+		
+		void moveToLast( Node<K, V> node ) {
+			this.remove( node );
+			this.addLast( node );
+		}
+		
+		void clear() {
+			this.head.prev = this.head;
+			this.head.next = this.head;
+			this.weight = 0L;
+		}
+	}
+	
+	/**
+	 * Reads waiting to be applied to the eviction policy. A reader adds the node to one of
+	 * several ring buffers, chosen by thread, without locking; a read that finds its buffer
+	 * full is dropped. The buffers are drained into the policy in batches by a thread that
+	 * holds the lock.
+	 */
+	private static final class ReadBuffer<K, V> {
+		
+		private static final int STRIPES = Math.min( 64, Integer.highestOneBit( 4 * Runtime.getRuntime().availableProcessors() - 1 ) << 1 );
+		
+		// Slots per stripe
+		private static final int SIZE = 16;
+		
+		// Counters are spaced a cache line apart so that stripes do not contend
+		private static final int SPACING = 8;
+		
+		private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>( STRIPES * SIZE );
+		
+		// Reads added to each stripe
+		private final AtomicLongArray writes = new AtomicLongArray( STRIPES * SPACING );
+		
+		// Reads drained from each stripe; written only when the lock is held
+		private final AtomicLongArray drained = new AtomicLongArray( STRIPES * SPACING );
+		
+		/* Record a read; true if the stripe is at least half full and should be drained */
+		boolean offer( Node<K, V> node ) {
+			int stripe = ReadBuffer.stripe();
+			int counter = stripe * SPACING;
+			long head = this.drained.get( counter );
+			long tail = this.writes.get( counter );
+			long size = tail - head;
+			if ( size >= SIZE ) {
+				return true;
+			}
+			if ( this.writes.compareAndSet( counter, tail, tail + 1 ) ) {
+				this.slots.lazySet( stripe * SIZE + (int) (tail & (SIZE - 1)), node );
+			}
+			return size + 1 >= SIZE / 2;
+		}
+		
+		/* Apply the recorded reads. Only called when the lock is held. */
+		void drain( Consumer<Node<K, V>> policy ) {
+			for ( int stripe = 0; stripe < STRIPES; stripe++ ) {
+				int counter = stripe * SPACING;
+				long head = this.drained.get( counter );
+				long tail = this.writes.get( counter );
+				for ( ; head < tail; head++ ) {
+					int index = stripe * SIZE + (int) (head & (SIZE - 1));
+					Node<K, V> node = this.slots.get( index );
+					if ( node == null ) {
+						// Claimed but not yet published; taken by the next drain
+						break;
+					}
+					this.slots.lazySet( index, null );
+					policy.accept( node );
+				}
+				this.drained.lazySet( counter, head );
+			}
+		}
+		
+		private static int stripe() {
+			long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+			return (int) (id >>> 32) & (STRIPES - 1);
+		}
+	}
+	
+	/** 
+	 * Window TinyLFU eviction. The window region is 1% of the maximum weight; the main
+	 * region is split into probation and protected (80% of main) segments.
+	 * 
+	 * Reads are recorded in a {@code ReadBuffer} without locking. All other methods are
+	 * called only when the lock is held.
+	 */
+	private static final class Bounded<K, V> {
+		
+		private static final int UNLINKED = 0;
+		private static final int WINDOW = 1;
+		private static final int PROBATION = 2;
+		private static final int PROTECTED = 3;
+		
+		private final long maximum;
+		
+		private final Weigher<K, V> weigher;
+		
+		private final FrequencySketch<K> sketch;
+		
+		private final AccessOrder<K, V> window;
+		private final AccessOrder<K, V> probation;
+		private final AccessOrder<K, V> protect;
+		
+		private final long windowMaximum;
+		private final long protectedMaximum;
+		
+		private final ReadBuffer<K, V> reads;
+		
+		Bounded( long maximum, Weigher<K, V> weigher ) {
+			this.maximum = maximum;
+			this.weigher = weigher;
+			this.sketch = new FrequencySketch<K>( Math.min( maximum, 1L << 16 ) );
+			this.window = new AccessOrder<K, V>();
+			this.probation = new AccessOrder<K, V>();
+			this.protect = new AccessOrder<K, V>();
+			this.windowMaximum = Math.max( 1L, maximum / 100 );
+			this.protectedMaximum = (long) (0.8 * (maximum - this.windowMaximum));
+			this.reads = new ReadBuffer<K, V>();
+		}
+		
+		/* Apply the buffered reads to the policy */
+		void drainReads() {
+			this.reads.drain( this::onRead );
+		}
+		
+		long weight() {
+			return this.window.weight + this.probation.weight + this.protect.weight;
+		}
+		
+		void onRead( Node<K, V> node ) {
+			this.sketch.increment( node.key );
+			switch ( node.region ) {
+			case WINDOW:
+				this.window.moveToLast( node );
+				break;
+			case PROBATION:
+				this.probation.remove( node );
+				this.protect.addLast( node );
+				node.region = PROTECTED;
+				// Demote the overflow back to probation
+				Node<K, V> demoted;
+				while ( this.protect.weight > this.protectedMaximum && (demoted = this.protect.first()) != null ) {
+					this.protect.remove( demoted );
+					this.probation.addLast( demoted );
+					demoted.region = PROBATION;
+				}
+				break;
+			case PROTECTED:
+				this.protect.moveToLast( node );
+				break;
+			default:
+				// Evicted or replaced since it was read
+			}
+		}
+		
+		/* Returns the evicted nodes */
+		List<Node<K, V>> onWrite( Node<K, V> prior, Node<K, V> node, long size ) {
+			this.drainReads();
+			this.sketch.ensureCapacity( size );
+			this.sketch.increment( node.key );
+			if ( prior != null ) {
+				this.unlink( prior );
+			}
+			this.window.addLast( node );
+			node.region = WINDOW;
+			return this.evict();
+		}
+		
+		void unlink( Node<K, V> node ) {
+			switch ( node.region ) {
+			case WINDOW: this.window.remove( node ); break;
+			case PROBATION: this.probation.remove( node ); break;
+			case PROTECTED: this.protect.remove( node ); break;
+			default:
+			}
+			node.region = UNLINKED;
+		}
+		
+		void clear() {
+			this.window.clear();
+			this.probation.clear();
+			this.protect.clear();
+		}
+		
+		/*
+		 * Entries overflowing the window become candidates at the end of probation. While
+		 * over the maximum, the oldest candidate competes with the least recently used
+		 * probation entry (the victim) and the less frequent of the two is evicted.
+		 */
+		private List<Node<K, V>> evict() {
+			Node<K, V> candidate = null;
+			Node<K, V> moved;
+			while ( this.window.weight > this.windowMaximum && (moved = this.window.first()) != null ) {
+				this.window.remove( moved );
+				this.probation.addLast( moved );
+				moved.region = PROBATION;
+				if ( candidate == null ) {
+					candidate = moved;
+				}
+			}
+			
+			List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+			Node<K, V> victim = this.probation.first();
+			while ( this.weight() > this.maximum ) {
+				Node<K, V> loser;
+				if ( candidate == null ) {
+					// No candidates remain; evict from the main region, then the window
+					loser = victim != null ? victim 
+						: this.protect.first() != null ? this.protect.first() : this.window.first();
+					victim = (victim == null) ? null : this.probation.after( victim );
+				} else if ( victim == candidate ) {
+					// Only candidates remain in probation
+					loser = candidate;
+					candidate = this.probation.after( candidate );
+					victim = candidate;
+				} else if ( this.admit( candidate, victim ) ) {
+					loser = victim;
+					victim = this.probation.after( victim );
+				} else {
+					loser = candidate;
+					candidate = this.probation.after( candidate );
+				}
+				if ( loser == null ) {
+					break;
+				}
+				this.unlink( loser );
+				evicted.add( loser );
+			}
+			return evicted;
+		}
+		
+		private boolean admit( Node<K, V> candidate, Node<K, V> victim ) {
+			return this.sketch.frequency( candidate.key ) > this.sketch.frequency( victim.key );
+		}
+	}
+
+	
+	/**
+	 * Hierarchical timing wheel holding nodes by deadline. Level 0 has 64 buckets of about
+	 * one second, level 1 has 64 of about a minute, level 2 has 32 of about an hour, level 3
+	 * has 4 of about a day, and level 4 is a single overflow bucket. Advancing the wheel visits
+	 * only the buckets whose time has passed; nodes found there that are not yet due, such as
+	 * entries read since they were scheduled, move to the bucket for their current deadline.
+	 * 
+	 * All methods are called only when the lock is held.
+	 */
+	private static final class TimerWheel<K, V> {
+		
+		private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+		
+		private static final int[] SHIFT = { 30, 36, 42, 47, 49 };
+		
+		// Nodes due within SPANS[i + 1] of the current time are held at level i
+		private static final long[] SPANS = { 1L << 30, 1L << 36, 1L << 42, 1L << 47, 1L << 49, 1L << 49 };
+		
+		// Sentinels for circular lists of nodes
+		private final List<List<Node<K, V>>> wheel;
+		
+		// Time of the last advance
+		private long nanos;
+		
+		TimerWheel( long now ) {
+			this.wheel = new ArrayList<List<Node<K, V>>>();
+			for ( int buckets : BUCKETS ) {
+				List<Node<K, V>> level = new ArrayList<Node<K, V>>();
+				for ( int i = 0; i < buckets; i++ ) {
+					Node<K, V> sentinel = new Node<K, V>( null, null, 0, 0L, 0L );
+					sentinel.timerPrev = sentinel;
+					sentinel.timerNext = sentinel;
+					level.add( sentinel );
+				}
+				this.wheel.add( level );
+			}
+			this.nanos = now;
+		}
+		
+		/* Add a node that is not in the wheel; node.deadline is set */
+		void schedule( Node<K, V> node ) {
+			Node<K, V> sentinel = this.bucket( node.deadline );
+			node.timerPrev = sentinel.timerPrev;
+			node.timerNext = sentinel;
+			sentinel.timerPrev.timerNext = node;
+			sentinel.timerPrev = node;
+		}
+		
+		void unlink( Node<K, V> node ) {
+			if ( node.timerNext != null ) {
+				node.timerPrev.timerNext = node.timerNext;
+				node.timerNext.timerPrev = node.timerPrev;
+				node.timerPrev = null;
+				node.timerNext = null;
+			}
+		}
+		
+		void clear() {
+			for ( List<Node<K, V>> level : this.wheel ) {
+				for ( Node<K, V> sentinel : level ) {
+					sentinel.timerPrev = sentinel;
+					sentinel.timerNext = sentinel;
+				}
+			}
+		}
+		
+		private Node<K, V> bucket( long deadline ) {
+			// Past deadlines go to the current bucket, which the next advance visits
+			long time = (deadline - this.nanos < 0L) ? this.nanos : deadline;
+			long duration = time - this.nanos;
+			int last = BUCKETS.length - 1;
+			for ( int i = 0; i < last; i++ ) {
+				if ( duration < SPANS[i + 1] ) {
+					int index = (int) ((time >>> SHIFT[i]) & (BUCKETS[i] - 1));
+					return this.wheel.get( i ).get( index );
+				}
+			}
+			return this.wheel.get( last ).get( 0 );
+		}
+		
+		/* Returns the nodes that are due, removed from the wheel */
+		List<Node<K, V>> advance( long now ) {
+			long previous = this.nanos;
+			this.nanos = now;
+			
+			List<Node<K, V>> due = new ArrayList<Node<K, V>>();
+			for ( int i = 0; i < SHIFT.length; i++ ) {
+				long previousTicks = previous >>> SHIFT[i];
+				long currentTicks = now >>> SHIFT[i];
+				if ( currentTicks - previousTicks <= 0L ) {
+					break;
+				}
+				this.expire( i, previousTicks, currentTicks - previousTicks, now, due );
+			}
+			return due;
+		}
+		
+		/* Visit the buckets of a level that the advance has passed */
+		private void expire( int level, long previousTicks, long delta, long now, List<Node<K, V>> due ) {
+			List<Node<K, V>> buckets = this.wheel.get( level );
+			int mask = buckets.size() - 1;
+			int steps = (int) Math.min( 1L + delta, buckets.size() );
+			int start = (int) (previousTicks & mask);
+			for ( int i = 0; i < steps; i++ ) {
+				Node<K, V> sentinel = buckets.get( (start + i) & mask );
+				Node<K, V> node = sentinel.timerNext;
+				sentinel.timerPrev = sentinel;
+				sentinel.timerNext = sentinel;
+				while ( node != sentinel ) {
+					Node<K, V> next = node.timerNext;
+					node.timerPrev = null;
+					node.timerNext = null;
+					if ( node.deadline - now <= 0L ) {
+						due.add( node );
+					} else {
+						this.schedule( node );
+					}
+					node = next;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serialized values held in a {@code ByteStore}. A value is saved in two steps: while
+	 * the lock is held the key is bound to a pending location holding the value, then after
+	 * the lock is released the value is encoded and written and the pending location is
+	 * replaced, unless the key has been saved or removed again in the meantime.
+	 * 
+	 * The bytes of a replaced or removed value are freed. Segments whose bytes are all
+	 * freed are reclaimed, and live values are moved out of sparse segments, by
+	 * {@link #compact()}.
+	 */
+	private static final class DiskTier<K, V> {
+
+		/** Where the bytes for one value are stored */
+		private static final class Location {
+
+			// The value while it waits to be written, otherwise null
+			private final Object value;
+			
+			private final long address;
+			private final int length;
+
+			// From the node that was written; a restored node keeps its original lifetime
+			private final long writeTime;
+			private final long deadline;
+
+			Location( Object value, long address, int length, long writeTime, long deadline ) {
+				this.value = value;
+				this.address = address;
+				this.length = length;
+				this.writeTime = writeTime;
+				this.deadline = deadline;
+			}
+		}
+
+		private final Codec<V> codec;
+
+		private final ConcurrentMap<K, Location> index;
+		
+		private final ByteStore store;
+		
+		// Keys bound to pending locations, in the order saved
+		private final Queue<K> pending;
+		
+		// Bytes freed since the last compaction
+		private final LongAdder freed;
+
+		DiskTier( Codec<V> codec, boolean sorted, ByteStore store ) {
+			this.codec = codec;
+			this.index = sorted ? new ConcurrentSkipListMap<K, Location>() : new ConcurrentHashMap<K, Location>();
+			this.store = store;
+			this.pending = new ConcurrentLinkedQueue<K>();
+			this.freed = new LongAdder();
+		}
+
+		/* Bind the key to a pending location; only called when the lock is held */
+		void save( K key, V value, long writeTime, long deadline ) {
+			this.free( this.index.put( key, new Location( value, 0L, 0, writeTime, deadline ) ) );
+			this.pending.add( key );
+		}
+		
+		/* Write the pending values; called without holding the lock */
+		void drain() {
+			K key;
+			while ( (key = this.pending.poll()) != null ) {
+				Location location = this.index.get( key );
+				if ( location == null || location.value == null ) {
+					// Removed, or written by another thread
+					continue;
+				}
+				Location written;
+				try {
+					@SuppressWarnings( "unchecked" )
+					byte[] data = Assert.nonNull( this.codec.encode( (V) location.value ) );
+					long address = data.length == 0 ? 0L : this.store.add( data );
+					written = new Location( null, address, data.length, location.writeTime, location.deadline );
+				} catch ( RuntimeException | Error e ) {
+					this.index.remove( key, location );
+					throw e;
+				}
+				if ( ! this.index.replace( key, location, written ) ) {
+					this.free( written );
+				}
+			}
+		}
+
+		/* The value; null if the location has been removed or replaced since it was taken */
+		@SuppressWarnings( "unchecked" )
+		V read( K key, Location location ) {
+			if ( location.value != null ) {
+				return (V) location.value;
+			}
+			byte[] data;
+			try {
+				data = this.store.read( location.address, location.length );
+			} catch ( AppException e ) {
+				// Freed and reclaimed during the read
+				if ( this.index.get( key ) != location ) {
+					return null;
+				}
+				throw e;
+			}
+			return this.codec.decode( data );
+		}
+		
+		void remove( K key ) {
+			this.free( this.index.remove( key ) );
+		}
+		
+		void remove( K key, Location location ) {
+			if ( this.index.remove( key, location ) ) {
+				this.free( location );
+			}
+		}
+		
+		/* Remove every entry of a view of the index */
+		void removeAll( Map<K, Location> entries ) {
+			for ( Map.Entry<K, Location> entry : entries.entrySet() ) {
+				this.remove( entry.getKey(), entry.getValue() );
+			}
+		}
+
+		void clear() {
+			this.removeAll( this.index );
+		}
+		
+		private void free( Location location ) {
+			if ( location != null && location.value == null && location.length > 0 ) {
+				this.store.free( location.address, location.length );
+				this.freed.add( location.length );
+			}
+		}
+		
+		/* 
+		 * Dispose the segments retired before the previous pass and, if bytes have been freed, 
+		 * move live values out of sparse segments so that those segments are retired.
+		 */
+		synchronized void compact() {
+			this.store.reclaim();
+			if ( this.freed.sumThenReset() == 0L ) {
+				return;
+			}
+			for ( Map.Entry<K, Location> entry : this.index.entrySet() ) {
+				Location location = entry.getValue();
+				if ( location.value != null || location.length == 0 || ! this.store.isSparse( location.address ) ) {
+					continue;
+				}
+				byte[] data;
+				try {
+					data = this.store.read( location.address, location.length );
+				} catch ( AppException e ) {
+					// Removed since the entry was taken
+					continue;
+				}
+				Location moved = new Location( null, this.store.add( data ), location.length, location.writeTime, location.deadline );
+				if ( this.index.replace( entry.getKey(), location, moved ) ) {
+					this.free( location );
+				} else {
+					this.free( moved );
+				}
+			}
+		}
+	}
+
+
+	/** The most recent builder failure for a key, and when the key may next be built */
+	private static final class Failure {
+		
+		private final AppException exception;
+		
+		// Consecutive failures
+		private final int attempts;
+		
+		// System.nanoTime() before which builds fail fast
+		private final long retryAt;
+		
+		Failure( AppException exception, int attempts, long retryAt ) {
+			this.exception = exception;
+			this.attempts = attempts;
+			this.retryAt = retryAt;
+		}
+	}
+
+
+	/** Misses collected to be built together by the batch builder */
+	private static final class Coalescer<K, V> {
+		
+		// Nanoseconds from the first miss until the batch is built
+		private final long window;
+		
+		// A batch of this many keys is built without waiting for the window to close
+		private final int maxKeys;
+		
+		// The open batch, or null; guarded by this
+		private Map<K, CompletableFuture<V>> batch;
+		
+		Coalescer( long window, int maxKeys ) {
+			this.window = window;
+			this.maxKeys = maxKeys;
+			this.batch = null;
+		}
+	}
+
+
+	/** The builder that creates objects for this cache. **/
+	private final Builder<K, V> builder;
+
+	/** The contents of the cache are stored here. **/
+	private final ConcurrentMap<K, Node<K, V>> map;
+	
+	/** Values currently being built, at most one per key, and the load statistics */
+	private final SingleFlight<K, V> loads;
+	
+	/** Guards the eviction policy and timers; not used when the cache has neither */
+	private final ReentrantLock lock;
+	
+	/** Eviction policy; null unless bounded. Configured before the cache is shared. */
+	private Bounded<K, V> bounded;
+	
+	/** Expiration timers; null unless entries expire. Configured before the cache is shared. */
+	private TimerWheel<K, V> timers;
+	
+	// Durations in nanoseconds, zero when not used. Configured before the cache is shared.
+	private long expireAfterWrite;
+	private long expireAfterAccess;
+	private long refreshAfterWrite;
+	
+	/** Runs asynchronous builds; null for the shared default. Configured before the cache is shared. */
+	private Executor executor;
+	
+	/** Used by getAll when not null. Configured before the cache is shared. */
+	private BatchBuilder<K, V> batchBuilder;
+	
+	/** Second tier for values leaving memory; null if none. Configured before the cache is shared. */
+	private DiskTier<K, V> disk;
+	
+	// Backoff after builder failures, in nanoseconds; zero when failures are not cached
+	private long initialBackoff;
+	private long maximumBackoff;
+	
+	/** Recent failures by key; null unless failures are cached. Configured before the cache is shared. */
+	private ConcurrentMap<K, Failure> failures;
+	
+	/** Collects concurrent misses; null unless coalescing. Configured before the cache is shared. */
+	private Coalescer<K, V> coalescer;
+	
+	/** True once periodic cleanUp has been scheduled */
+	private boolean sweeping;
+	
+	/** Where and how to save hot keys; null if not saved. Configured before the cache is shared. */
+	private Snapshot<K, V> snapshot;
+	
+	// Statistics not kept by the loads; LongAdder keeps the counters off the critical path of concurrent readers
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder collected = new LongAdder();
+
+	/** Construct */
+	@Decl( "Null Builder throws Assertion Error" )
+	public Cache( Builder<K, V> builder ) {
+		this( builder, new ConcurrentHashMap<K, Node<K, V>>() );
+	}
+	
+	private Cache( Builder<K, V> builder, ConcurrentMap<K, Node<K, V>> map ) {
+		this.builder = Assert.nonNull( builder );
+		this.map = map;
+		this.loads = new SingleFlight<K, V>();
+		this.lock = new ReentrantLock();
+		this.bounded = null;
+		this.timers = null;
+		this.expireAfterWrite = 0L;
+		this.expireAfterAccess = 0L;
+		this.refreshAfterWrite = 0L;
+		this.executor = null;
+		this.batchBuilder = null;
+		this.disk = null;
+		this.initialBackoff = 0L;
+		this.maximumBackoff = 0L;
+		this.failures = null;
+		this.sweeping = false;
+		this.coalescer = null;
+		this.snapshot = null;
+	}
+	
+	/**
+	 * Construct a cache that keeps its keys in order, in a concurrent skip list, and 
+	 * supports range operations. Lookups cost O(log n) instead of O(1).
+	 * 
+	 * @param builder
+	 * @return
+	 */
+	@Decl( "Null Builder throws Assertion Error" )
+	@Decl( "Supports range operations" )
+	public static <K extends Comparable<? super K>, V> Cache<K, V> sorted( Builder<K, V> builder ) {
+		return new Cache<K, V>( builder, new ConcurrentSkipListMap<K, Node<K, V>>() );
+	}
+	
+	/**
+	 * Bound the number of entries. Values are then held strongly and evicted by the
+	 * W-TinyLFU policy instead of being left to the garbage collector.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param maximum
+	 * 		The maximum number of entries
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive maximum" )
+	@Decl( "Throws AssertionError when not empty" )
+	@Decl( "Size never exceeds maximum" )
+	@Decl( "Frequently used keys survive a scan" )
+	@Decl( "Reads from many threads reach the policy" )
+	public Cache<K, V> maximumSize( long maximum ) {
+		return this.maximumWeight( maximum, (k, v) -> 1 );
+	}
+	
+	/**
+	 * Bound the total weight of entries, as determined by the given {@code Weigher}. Values
+	 * are then held strongly and evicted by the W-TinyLFU policy.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param maximum
+	 * 		The maximum total weight
+	 * @param weigher
+	 * 		Computes the weight of each entry when it is stored
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive maximum" )
+	@Decl( "Throws AssertionError for null weigher" )
+	@Decl( "Total weight never exceeds maximum" )
+	@Decl( "Values are held strongly" )
+	public Cache<K, V> maximumWeight( long maximum, Weigher<K, V> weigher ) {
+		Assert.isTrue( maximum > 0L );
+		Assert.nonNull( weigher );
+		Assert.isTrue( this.bounded == null && this.map.isEmpty() );
+		
+		this.bounded = new Bounded<K, V>( maximum, weigher );
+		return this;
+	}
+	
+	/**
+	 * Entries expire the given duration after they are stored.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param duration
+	 * @param unit
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive duration" )
+	@Decl( "Throws AssertionError when not empty" )
+	@Decl( "Expired entry is rebuilt" )
+	@Decl( "Reads do not extend lifetime" )
+	public Cache<K, V> expireAfterWrite( long duration, TimeUnit unit ) {
+		this.expireAfterWrite = this.timed( duration, unit );
+		this.expiring();
+		return this;
+	}
+	
+	/**
+	 * Entries expire the given duration after they are last read or stored.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param duration
+	 * @param unit
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive duration" )
+	@Decl( "Reads extend lifetime" )
+	@Decl( "Expired entries are removed" )
+	public Cache<K, V> expireAfterAccess( long duration, TimeUnit unit ) {
+		this.expireAfterAccess = this.timed( duration, unit );
+		this.expiring();
+		return this;
+	}
+	
+	/**
+	 * Entries read more than the given duration after they are stored are rebuilt in the
+	 * background on the executor for this cache. The current value continues to be returned 
+	 * until the new value is stored; if the rebuild fails the current value is kept.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param duration
+	 * @param unit
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive duration" )
+	@Decl( "Stale value returned while refreshing" )
+	@Decl( "Refreshed value replaces stale value" )
+	@Decl( "Failed refresh keeps stale value" )
+	public Cache<K, V> refreshAfterWrite( long duration, TimeUnit unit ) {
+		this.refreshAfterWrite = this.timed( duration, unit );
+		return this;
+	}
+
+	/**
+	 * Keep values that leave memory in temporary {@code ByteFile} storage, serialized by
+	 * the given {@code Codec}. A miss reads the saved value, if any, before calling the
+	 * builder. A bounded cache saves a value when it is evicted; an unbounded cache cannot
+	 * save a value after its soft reference is cleared, so it saves every value when stored.
+	 * Expired values are not restored. Values are encoded and written after the lock is
+	 * released. The space of replaced and removed values is reclaimed by {@link #cleanUp()},
+	 * which then runs periodically.
+	 *
+	 * Must be called before the cache is used or shared.
+	 *
+	 * @param codec
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for null codec" )
+	@Decl( "Throws AssertionError when not empty" )
+	@Decl( "Evicted value restored without build" )
+	@Decl( "Collected value restored without build" )
+	@Decl( "Expired value is not restored" )
+	@Decl( "Put replaces saved value" )
+	@Decl( "Batch excludes restored keys" )
+	@Decl( "Replaced values are freed" )
+	@Decl( "Removed values are freed" )
+	@Decl( "Clean up reclaims freed segments" )
+	@Decl( "Clean up moves values out of sparse segments" )
+	public Cache<K, V> diskTier( Codec<V> codec ) {
+		Assert.nonNull( codec );
+		Assert.isTrue( this.disk == null && this.map.isEmpty() );
+
+		this.disk = new DiskTier<K, V>( codec, this.map instanceof ConcurrentNavigableMap, new ByteStore() );
+		this.sweeping();
+		return this;
+	}
+
+	private long timed( long duration, TimeUnit unit ) {
+		Assert.isTrue( duration > 0L );
+		Assert.nonNull( unit );
+		Assert.isTrue( this.map.isEmpty() );
+		
+		return unit.toNanos( duration );
+	}
+	
+	/* Start timers and a periodic sweep of expired entries */
+	private void expiring() {
+		if ( this.timers == null ) {
+			this.timers = new TimerWheel<K, V>( System.nanoTime() );
+			this.sweeping();
+		}
+	}
+	
+	/* Schedule a periodic cleanUp, once */
+	private void sweeping() {
+		if ( ! this.sweeping ) {
+			this.sweeping = true;
+			Cache.schedule( this, Cache::cleanUp, 1L, TimeUnit.SECONDS );
+		}
+	}
+	
+	/**
+	 * Remember an {@code AppException} thrown by the builder for a key, and for a time fail
+	 * requests that would build that key by throwing the same exception, instead of calling
+	 * the builder. The time starts at {@code initial} and doubles with each consecutive
+	 * failure, up to {@code maximum}. A successful build clears the failure, as does a
+	 * period of {@code maximum} after the backoff without another attempt.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param initial
+	 * @param maximum
+	 * @param unit
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive initial" )
+	@Decl( "Throws AssertionError for maximum less than initial" )
+	@Decl( "Fails fast with cached exception" )
+	@Decl( "Retries after backoff" )
+	@Decl( "Backoff doubles on repeated failure" )
+	@Decl( "Backoff is capped at maximum" )
+	@Decl( "Success clears failure" )
+	@Decl( "Batch excludes keys backing off" )
+	public Cache<K, V> failureBackoff( long initial, long maximum, TimeUnit unit ) {
+		this.initialBackoff = this.timed( initial, unit );
+		this.maximumBackoff = unit.toNanos( maximum );
+		Assert.isTrue( this.maximumBackoff >= this.initialBackoff );
+		
+		this.failures = new ConcurrentHashMap<K, Failure>();
+		this.sweeping();
+		return this;
+	}
+	
+	/* The cached exception if the key is backing off; null otherwise */
+	private AppException backingOff( K key ) {
+		Failure failure = (this.failures == null) ? null : this.failures.get( key );
+		if ( failure == null || System.nanoTime() - failure.retryAt >= 0L ) {
+			return null;
+		}
+		return failure.exception;
+	}
+	
+	/* Record a failed build, extending the backoff if the key failed recently */
+	private void failed( K key, AppException exception ) {
+		if ( this.failures == null ) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		this.failures.compute( key, (k, prior) -> {
+			int attempts = (prior == null || this.isStale( prior, now )) ? 1 : prior.attempts + 1;
+			long backoff = this.initialBackoff << Math.min( attempts - 1, 30 );
+			if ( backoff <= 0L || backoff > this.maximumBackoff ) {
+				backoff = this.maximumBackoff;
+			}
+			return new Failure( exception, attempts, now + backoff );
+		});
+	}
+	
+	/* True if the failure is too old to extend the backoff */
+	private boolean isStale( Failure failure, long now ) {
+		return now - failure.retryAt > this.maximumBackoff;
+	}
+	
+	/* True if any timed policy is configured */
+	private boolean isTimed() {
+		return this.timers != null || this.refreshAfterWrite > 0L;
+	}
+	
+	/* True if writes must be made under the lock */
+	private boolean isLocking() {
+		return this.bounded != null || this.timers != null || this.disk != null;
+	}
+	
+	private long deadline( Node<K, V> node ) {
+		long deadline = Long.MAX_VALUE;
+		if ( this.expireAfterWrite > 0L ) {
+			deadline = node.writeTime + this.expireAfterWrite;
+		}
+		if ( this.expireAfterAccess > 0L ) {
+			long accessDeadline = node.accessTime + this.expireAfterAccess;
+			deadline = (deadline == Long.MAX_VALUE || accessDeadline - deadline < 0L) ? accessDeadline : deadline;
+		}
+		return deadline;
+	}
+	
+	/* The live value of the node; null if collected or expired */
+	private V valueOf( Node<K, V> node, long now ) {
+		V value = (node == null) ? null : node.get();
+		if ( value != null && this.timers != null && now - this.deadline( node ) >= 0L ) {
+			value = null;
+		}
+		return value;
+	}
+
+	/**
+	 * Return the value corresponding to the given key. If the value is not currently
+	 * held the associated builder is used to construct an instance.
+	 * 
+	 * @param key
+	 * @return
+	 * @throws AppException		If the builder is unable to construct the value.
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Values are not null" )
+	@Decl( "From empty cache returns valid object" )
+	@Decl( "Stored uncolllectable object returns same object" )
+	@Decl( "Put Get stress test" )
+	@Decl( "Multi thread stress test" )
+	@Decl( "Keys need not be comparable" )
+	@Decl( "Builder called once per key under contention" )
+	@Decl( "Failed build is not cached" )
+	@Decl( "Collected entries are removed in the background" )
+	public V get( K key ) throws AppException {
+		Assert.nonNull( key );
+
+		V value = this.lookup( key );
+		if ( value == null ) {
+			value = this.load( key );
+		}
+
+		return Assert.nonNull( value );
+	}
+	
+	/**
+	 * Return a future for the value corresponding to the given key. If the value is not
+	 * currently held the builder is run on the executor for this cache; concurrent requests 
+	 * for a key that is being built receive the same future.
+	 * 
+	 * If the builder fails the future completes exceptionally with the builder's exception.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Completes with built value" )
+	@Decl( "Held value is already complete" )
+	@Decl( "Concurrent requests share one future" )
+	@Decl( "Failure completes exceptionally" )
+	public CompletableFuture<V> getAsync( K key ) {
+		Assert.nonNull( key );
+		
+		V value = this.lookup( key );
+		if ( value != null ) {
+			return CompletableFuture.completedFuture( value );
+		}
+		
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> inFlight = this.loads.loading.putIfAbsent( key, mine );
+		if ( inFlight != null ) {
+			return inFlight;
+		}
+		
+		if ( this.coalescer != null ) {
+			Map<K, CompletableFuture<V>> full = this.coalesce( key, mine );
+			if ( full != null ) {
+				this.dispatch( full );
+			}
+			return mine;
+		}
+		
+		try {
+			this.executor().execute( () -> {
+				try {
+					this.complete( key, mine );
+				} catch ( RuntimeException | Error e ) {
+					// Delivered through the future
+				}
+			});
+		} catch ( RejectedExecutionException e ) {
+			this.loads.loading.remove( key, mine );
+			mine.completeExceptionally( new AppException( e ) );
+		}
+		return mine;
+	}
+	
+	/* Shared daemon threads for asynchronous builds; created on first use */
+	private static class Loader {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool( (r) -> {
+			Thread thread = new Thread( r, "Cache.Loader" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+	
+	private Executor executor() {
+		return this.executor == null ? Loader.EXECUTOR : this.executor;
+	}
+	
+	/**
+	 * Run asynchronous builds on the given executor instead of the shared pool of
+	 * daemon threads.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param executor
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for null executor" )
+	@Decl( "Builds run on executor" )
+	public Cache<K, V> executor( Executor executor ) {
+		this.executor = Assert.nonNull( executor );
+		return this;
+	}
+	
+	/**
+	 * Use the given {@code BatchBuilder} to make all missing values in a call to
+	 * {@link #getAll(Collection)} at once.
+	 * 
+	 * Must be called before the cache is used or shared.
+	 * 
+	 * @param batchBuilder
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for null batch builder" )
+	public Cache<K, V> batchBuilder( BatchBuilder<K, V> batchBuilder ) {
+		this.batchBuilder = Assert.nonNull( batchBuilder );
+		return this;
+	}
+	
+	/**
+	 * Build concurrent misses together. The first miss opens a batch that collects the keys 
+	 * missed by any thread, through {@code get} or {@code getAsync}, until the window closes
+	 * or the batch holds {@code maxKeys} keys; the batch builder then makes all of them in
+	 * one call. A failed batch fails every request waiting on it.
+	 * 
+	 * Requires a batch builder. Must be called before the cache is used or shared.
+	 * 
+	 * @param window
+	 * 		The longest a miss waits for other misses
+	 * @param unit
+	 * @param maxKeys
+	 * 		The largest batch
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError without batch builder" )
+	@Decl( "Throws AssertionError for non positive window" )
+	@Decl( "Throws AssertionError for non positive max keys" )
+	@Decl( "Concurrent misses built together" )
+	@Decl( "Full batch built without waiting" )
+	@Decl( "Single miss built after window" )
+	@Decl( "Asynchronous misses built together" )
+	@Decl( "Batch failure fails waiting requests" )
+	@Decl( "Open window does not keep cache reachable" )
+	public Cache<K, V> coalesceMisses( long window, TimeUnit unit, int maxKeys ) {
+		Assert.nonNull( this.batchBuilder );
+		Assert.isTrue( maxKeys > 0 );
+		
+		this.coalescer = new Coalescer<K, V>( this.timed( window, unit ), maxKeys );
+		return this;
+	}
+	
+	/**
+	 * Return the values corresponding to the given keys, in the iteration order of the keys.
+	 * 
+	 * Keys not currently held and not being built by another thread are made together: by one
+	 * call to the batch builder if there is one, otherwise one at a time by the builder. All of 
+	 * the values from a batch are stored before any of them is visible to waiting threads.
+	 * Keys already being built by other threads are excluded from the batch and awaited.
+	 * 
+	 * @param keys
+	 * @return
+	 * @throws AppException		If a value cannot be made.
+	 */
+	@Decl( "Null collection throws AssertionError" )
+	@Decl( "Null key throws AssertionError" )
+	@Decl( "Returns value for every key" )
+	@Decl( "Batch builder called once for missing keys" )
+	@Decl( "Held keys excluded from batch" )
+	@Decl( "Keys being built are excluded from batch" )
+	@Decl( "Batch failure throws AppException" )
+	@Decl( "Missing batch value throws AppException" )
+	public Map<K, V> getAll( Collection<K> keys ) throws AppException {
+		Assert.nonNull( keys );
+		for ( K key : keys ) {
+			Assert.nonNull( key );
+		}
+		
+		Map<K, V> held = new HashMap<K, V>();
+		Map<K, CompletableFuture<V>> mine = new LinkedHashMap<K, CompletableFuture<V>>();
+		Map<K, CompletableFuture<V>> others = new HashMap<K, CompletableFuture<V>>();
+		for ( K key : keys ) {
+			if ( held.containsKey( key ) || mine.containsKey( key ) || others.containsKey( key ) ) {
+				continue;
+			}
+			V value = this.lookup( key );
+			if ( value != null ) {
+				held.put( key, value );
+				continue;
+			}
+			CompletableFuture<V> future = new CompletableFuture<V>();
+			CompletableFuture<V> inFlight = this.loads.loading.putIfAbsent( key, future );
+			if ( inFlight == null ) {
+				mine.put( key, future );
+			} else {
+				others.put( key, inFlight );
+			}
+		}
+		
+		if ( ! mine.isEmpty() ) {
+			this.completeAll( mine );
+		}
+		
+		Map<K, V> result = new LinkedHashMap<K, V>();
+		for ( K key : keys ) {
+			if ( ! result.containsKey( key ) ) {
+				V value = held.get( key );
+				if ( value == null ) {
+					CompletableFuture<V> future = mine.get( key );
+					value = Cache.await( future == null ? others.get( key ) : future );
+				}
+				result.put( key, value );
+			}
+		}
+		return result;
+	}
+	
+	/* Build values for registered futures; failures are delivered through the futures */
+	private void completeAll( Map<K, CompletableFuture<V>> mine ) {
+		if ( this.batchBuilder == null ) {
+			for ( Map.Entry<K, CompletableFuture<V>> entry : mine.entrySet() ) {
+				try {
+					this.complete( entry.getKey(), entry.getValue() );
+				} catch ( RuntimeException | Error e ) {
+					// Delivered through the future
+				}
+			}
+			return;
+		}
+		
+		try {
+			// Values may have been stored since the misses, or saved to disk
+			Map<K, V> built = new HashMap<K, V>();
+			long now = this.isTimed() ? System.nanoTime() : 0L;
+			for ( K key : mine.keySet() ) {
+				V value = this.valueOf( this.map.get( key ), now );
+				if ( value == null && this.disk != null ) {
+					value = this.restore( key, now );
+				}
+				if ( value != null ) {
+					built.put( key, value );
+				}
+			}
+			List<K> missing = new ArrayList<K>();
+			for ( K key : mine.keySet() ) {
+				AppException cached = this.backingOff( key );
+				if ( cached != null ) {
+					mine.get( key ).completeExceptionally( cached );
+				} else if ( ! built.containsKey( key ) ) {
+					missing.add( key );
+				}
+			}
+			if ( ! missing.isEmpty() ) {
+				Map<K, V> made = this.buildAll( missing );
+				this.storeAll( made );
+				built.putAll( made );
+			}
+			for ( Map.Entry<K, CompletableFuture<V>> entry : mine.entrySet() ) {
+				entry.getValue().complete( built.get( entry.getKey() ) );
+			}
+		} catch ( RuntimeException | Error e ) {
+			for ( CompletableFuture<V> future : mine.values() ) {
+				future.completeExceptionally( e );
+			}
+		} finally {
+			for ( Map.Entry<K, CompletableFuture<V>> entry : mine.entrySet() ) {
+				this.loads.loading.remove( entry.getKey(), entry.getValue() );
+			}
+		}
+	}
+	
+	/* Call the batch builder, recording the outcome; the result holds exactly the requested keys */
+	private Map<K, V> buildAll( Collection<K> keys ) {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			Map<K, V> made = Assert.nonNull( this.batchBuilder.makeAll( Collections.unmodifiableCollection( keys ) ) );
+			Map<K, V> built = new HashMap<K, V>();
+			for ( K key : keys ) {
+				V value = made.get( key );
+				if ( value == null ) {
+					throw new AppException( "Batch builder made no value for " + key );
+				}
+				built.put( key, value );
+			}
+			success = true;
+			if ( this.failures != null ) {
+				this.failures.keySet().removeAll( keys );
+			}
+			return built;
+		} catch ( AppException e ) {
+			for ( K key : keys ) {
+				this.failed( key, e );
+			}
+			throw e;
+		} finally {
+			this.loads.loadTime.add( System.nanoTime() - start );
+			(success ? this.loads.loadSuccesses : this.loads.loadFailures).add( keys.size() );
+		}
+	}
+	
+	/* The held value, recording a hit or miss; null on a miss */
+	private V lookup( K key ) {
+		long now = this.isTimed() ? System.nanoTime() : 0L;
+		Node<K, V> node = this.map.get( key );
+		V value = this.valueOf( node, now );
+		if ( value == null ) {
+			this.loads.misses.increment();
+		} else {
+			this.loads.hits.increment();
+			this.afterRead( node, now );
+		}
+		return value;
+	}
+	
+	/* 
+	 * Record the access for the eviction policy in the read buffer, draining the buffer if
+	 * it is filling and no other thread holds the lock. Timers are not touched; an entry
+	 * whose access time has moved is rescheduled when its old deadline passes.
+	 */
+	private void afterRead( Node<K, V> node, long now ) {
+		if ( this.expireAfterAccess > 0L ) {
+			node.accessTime = now;
+		}
+		if ( this.refreshAfterWrite > 0L && now - node.writeTime >= this.refreshAfterWrite ) {
+			this.refresh( node );
+		}
+		
+		Bounded<K, V> bounded = this.bounded;
+		if ( bounded != null && bounded.reads.offer( node ) && this.lock.tryLock() ) {
+			try {
+				bounded.drainReads();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+	
+	/* Rebuild in the background; the current value is served until the new one is stored */
+	private void refresh( Node<K, V> node ) {
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		if ( this.loads.loading.putIfAbsent( node.key, mine ) != null ) {
+			return;
+		}
+		
+		try {
+			this.executor().execute( () -> {
+				try {
+					V value = this.build( node.key );
+					this.replace( node, value );
+					mine.complete( value );
+				} catch ( RuntimeException | Error e ) {
+					mine.completeExceptionally( e );
+				} finally {
+					this.loads.loading.remove( node.key, mine );
+				}
+			});
+		} catch ( RejectedExecutionException e ) {
+			this.loads.loading.remove( node.key, mine );
+			mine.completeExceptionally( new AppException( e ) );
+		}
+	}
+	
+	/*
+	 * The first thread to miss on a key registers a future and runs the builder.
+	 * Other threads missing on the same key wait for that future instead of building.
+	 */
+	private V load( K key ) {
+		if ( this.coalescer == null ) {
+			return this.loads.load( key, this::held, this::build, this::store );
+		}
+		
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> inFlight = this.loads.loading.putIfAbsent( key, mine );
+		if ( inFlight != null ) {
+			return Cache.await( inFlight );
+		}
+		
+		Map<K, CompletableFuture<V>> full = this.coalesce( key, mine );
+		if ( full != null ) {
+			this.completeAll( full );
+		}
+		return Cache.await( mine );
+	}
+	
+	/*
+	 * Add a registered miss to the open batch, opening one if needed. A batch is built
+	 * by the thread whose miss fills it, or on the executor when its window closes.
+	 * Returns the batch if this miss filled it, otherwise null.
+	 */
+	private Map<K, CompletableFuture<V>> coalesce( K key, CompletableFuture<V> mine ) {
+		Coalescer<K, V> coalescer = this.coalescer;
+		synchronized ( coalescer ) {
+			if ( coalescer.batch == null ) {
+				Map<K, CompletableFuture<V>> opened = new LinkedHashMap<K, CompletableFuture<V>>();
+				coalescer.batch = opened;
+				// Holds the cache weakly, like the periodic tasks, so the task must not capture it
+				WeakReference<Cache<K, V>> ref = new WeakReference<Cache<K, V>>( this );
+				Batcher.EXECUTOR.schedule( () -> Cache.closeWindow( ref, opened ), coalescer.window, TimeUnit.NANOSECONDS );
+			}
+			coalescer.batch.put( key, mine );
+			if ( coalescer.batch.size() < coalescer.maxKeys ) {
+				return null;
+			}
+			Map<K, CompletableFuture<V>> full = coalescer.batch;
+			coalescer.batch = null;
+			return full;
+		}
+	}
+	
+	/* Runs on the batcher thread; fails the batch if the cache is no longer reachable */
+	private static <K, V> void closeWindow( WeakReference<Cache<K, V>> ref, Map<K, CompletableFuture<V>> batch ) {
+		Cache<K, V> cache = ref.get();
+		if ( cache == null ) {
+			AppException failure = new AppException( "Cache no longer reachable" );
+			for ( CompletableFuture<V> future : batch.values() ) {
+				future.completeExceptionally( failure );
+			}
+			return;
+		}
+		cache.closeWindow( batch );
+	}
+	
+	/* The batch may already have been built when it filled */
+	private void closeWindow( Map<K, CompletableFuture<V>> batch ) {
+		synchronized ( this.coalescer ) {
+			if ( this.coalescer.batch != batch ) {
+				return;
+			}
+			this.coalescer.batch = null;
+		}
+		this.dispatch( batch );
+	}
+	
+	/* Build the batch on the executor */
+	private void dispatch( Map<K, CompletableFuture<V>> batch ) {
+		try {
+			this.executor().execute( () -> this.completeAll( batch ) );
+		} catch ( RejectedExecutionException e ) {
+			AppException failure = new AppException( e );
+			for ( Map.Entry<K, CompletableFuture<V>> entry : batch.entrySet() ) {
+				this.loads.loading.remove( entry.getKey(), entry.getValue() );
+				entry.getValue().completeExceptionally( failure );
+			}
+		}
+	}
+	
+	/* Build the value for a registered future, then complete and deregister it */
+	private V complete( K key, CompletableFuture<V> mine ) {
+		return this.loads.complete( key, mine, this::held, this::build, this::store );
+	}
+	
+	/* The value stored or saved for the key, without recording a hit or miss; null if neither */
+	private V held( K key ) {
+		long now = this.timers == null ? 0L : System.nanoTime();
+		V value = this.valueOf( this.map.get( key ), now );
+		return value == null ? this.restore( key, now ) : value;
+	}
+	
+	/* Call the builder, recording the outcome; fails fast while backing off */
+	private V build( K key ) {
+		AppException cached = this.backingOff( key );
+		if ( cached != null ) {
+			throw cached;
+		}
+		
+		try {
+			V value = this.loads.build( key, this.builder::make );
+			if ( this.failures != null ) {
+				this.failures.remove( key );
+			}
+			return value;
+		} catch ( AppException e ) {
+			this.failed( key, e );
+			throw e;
+		}
+	}
+	
+	/* Wait for another thread's build; failures are re-thrown in this thread. Shared within the package. */
+	static <V> V await( CompletableFuture<V> future ) {
+		try {
+			return future.join();
+		} catch ( CompletionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new AppException( cause );
+		}
+	}
+	
+	/*
+	 * Single-flight loading shared within the package. The first thread to miss on a key
+	 * registers a future and builds; other threads missing on the same key wait for it.
+	 * Each cache supplies its own steps: held finds a value stored since the miss, build
+	 * makes one, and store binds it.
+	 */
+	static final class SingleFlight<K, V> {
+		
+		/** Futures for values currently being built, at most one per key */
+		final ConcurrentMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<K, CompletableFuture<V>>();
+		
+		// Statistics; LongAdder keeps the counters off the critical path of concurrent readers
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+		final LongAdder loadSuccesses = new LongAdder();
+		final LongAdder loadFailures = new LongAdder();
+		final LongAdder loadTime = new LongAdder();
+		
+		/* Build the value after a miss, or wait for the thread already building it */
+		V load( K key, Function<K, V> held, Function<K, V> build, BiConsumer<K, V> store ) {
+			CompletableFuture<V> mine = new CompletableFuture<V>();
+			CompletableFuture<V> inFlight = this.loading.putIfAbsent( key, mine );
+			if ( inFlight != null ) {
+				return Cache.await( inFlight );
+			}
+			return this.complete( key, mine, held, build, store );
+		}
+		
+		/* Build the value for a registered future, then complete and deregister it */
+		V complete( K key, CompletableFuture<V> mine, Function<K, V> held, Function<K, V> build, BiConsumer<K, V> store ) {
+			try {
+				// A previous loader may have finished between our miss and our registration
+				V value = held.apply( key );
+				if ( value == null ) {
+					value = build.apply( key );
+					store.accept( key, value );
+				}
+				mine.complete( value );
+				return value;
+			} catch ( RuntimeException | Error e ) {
+				mine.completeExceptionally( e );
+				throw e;
+			} finally {
+				this.loading.remove( key, mine );
+			}
+		}
+		
+		/* Call the builder, recording the outcome */
+		V build( K key, Function<K, V> make ) {
+			long start = System.nanoTime();
+			boolean success = false;
+			try {
+				V value = Assert.nonNull( make.apply( key ) );
+				success = true;
+				return value;
+			} finally {
+				this.loadTime.add( System.nanoTime() - start );
+				(success ? this.loadSuccesses : this.loadFailures).increment();
+			}
+		}
+		
+		CacheStats stats( long evictions, long collected ) {
+			return new CacheStats( this.hits.sum(), this.misses.sum(), this.loadSuccesses.sum(), this.loadFailures.sum(),
+				this.loadTime.sum(), evictions, collected );
+		}
+	}
+	
+	/* Bind the key to a new node, evicting and scheduling expiration as needed */
+	private void store( K key, V value ) {
+		Node<K, V> node = this.newNode( key, value );
+		if ( ! this.isLocking() ) {
+			this.map.put( key, node );
+			return;
+		}
+		
+		this.lock.lock();
+		try {
+			this.link( node );
+		} finally {
+			this.lock.unlock();
+		}
+		this.writeSaved();
+	}
+	
+	/* Bind several keys; all are linked under one acquisition of the lock */
+	private void storeAll( Map<K, V> values ) {
+		List<Node<K, V>> nodes = new ArrayList<Node<K, V>>();
+		for ( Map.Entry<K, V> entry : values.entrySet() ) {
+			nodes.add( this.newNode( entry.getKey(), entry.getValue() ) );
+		}
+		if ( ! this.isLocking() ) {
+			for ( Node<K, V> node : nodes ) {
+				this.map.put( node.key, node );
+			}
+			return;
+		}
+		
+		this.lock.lock();
+		try {
+			for ( Node<K, V> node : nodes ) {
+				this.link( node );
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.writeSaved();
+	}
+	
+	/* Bind a refreshed value unless the entry has changed since the refresh started */
+	private void replace( Node<K, V> current, V value ) {
+		Node<K, V> node = this.newNode( current.key, value );
+		if ( ! this.isLocking() ) {
+			this.map.replace( current.key, current, node );
+			return;
+		}
+		
+		this.lock.lock();
+		try {
+			if ( this.map.get( current.key ) == current ) {
+				this.link( node );
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.writeSaved();
+	}
+	
+	private Node<K, V> newNode( K key, V value ) {
+		long now = this.isTimed() ? System.nanoTime() : 0L;
+		return this.newNode( key, value, now, now );
+	}
+	
+	private Node<K, V> newNode( K key, V value, long writeTime, long now ) {
+		Bounded<K, V> bounded = this.bounded;
+		if ( bounded == null ) {
+			return new Node<K, V>( key, value, this, writeTime, now );
+		}
+		
+		int weight = bounded.weigher.weigh( key, value );
+		Assert.isTrue( weight >= 0 );
+		return new Node<K, V>( key, value, weight, writeTime, now );
+	}
+	
+	/* Only called when the lock is held */
+	private void link( Node<K, V> node ) {
+		Node<K, V> prior = this.map.put( node.key, node );
+		
+		TimerWheel<K, V> timers = this.timers;
+		if ( timers != null ) {
+			if ( prior != null ) {
+				timers.unlink( prior );
+			}
+			node.deadline = this.deadline( node );
+			timers.schedule( node );
+			this.expire( timers.advance( System.nanoTime() ) );
+		}
+		
+		Bounded<K, V> bounded = this.bounded;
+		if ( bounded != null ) {
+			for ( Node<K, V> victim : bounded.onWrite( prior, node, this.map.size() ) ) {
+				if ( timers != null ) {
+					timers.unlink( victim );
+				}
+				this.map.remove( victim.key, victim );
+				this.evictions.increment();
+				this.save( victim, victim.value );
+			}
+		}
+		
+		DiskTier<K, V> disk = this.disk;
+		if ( disk != null && ! node.saved ) {
+			if ( bounded == null ) {
+				// A soft reference gives no notice before it is cleared, so write through
+				this.save( node, node.get() );
+			} else {
+				// The saved copy, if any, is stale; the new value is saved when evicted
+				disk.remove( node.key );
+			}
+		}
+	}
+	
+	/* 
+	 * Save the value to the disk tier unless already there; it is written by writeSaved.
+	 * Only called when the lock is held.
+	 */
+	private void save( Node<K, V> node, V value ) {
+		DiskTier<K, V> disk = this.disk;
+		if ( disk == null || node.saved || value == null ) {
+			return;
+		}
+		
+		long deadline = this.timers == null ? Long.MAX_VALUE : this.deadline( node );
+		disk.save( node.key, value, node.writeTime, deadline );
+		node.saved = true;
+	}
+	
+	/* Write the values saved while the lock was held. Called after releasing the lock. */
+	private void writeSaved() {
+		if ( this.disk != null ) {
+			this.disk.drain();
+		}
+	}
+	
+	/* 
+	 * The value saved on disk for the key, which is bound again in memory; null if none
+	 * or if it would have expired.
+	 */
+	private V restore( K key, long now ) {
+		DiskTier<K, V> disk = this.disk;
+		DiskTier.Location location = (disk == null) ? null : disk.index.get( key );
+		if ( location == null ) {
+			return null;
+		}
+		if ( this.timers != null && now - location.deadline >= 0L ) {
+			disk.remove( key, location );
+			return null;
+		}
+		
+		V value = disk.read( key, location );
+		if ( value == null ) {
+			return null;
+		}
+		Node<K, V> node = this.newNode( key, value, location.writeTime, now );
+		node.saved = true;
+		this.lock.lock();
+		try {
+			// Link only if the saved copy is still current
+			if ( disk.index.get( key ) == location ) {
+				this.link( node );
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.writeSaved();
+		return value;
+	}
+	
+	/* 
+	 * Remove nodes taken from the timer wheel whose deadline has passed. Nodes read since 
+	 * they were scheduled are rescheduled. Only called when the lock is held.
+	 */
+	private void expire( List<Node<K, V>> due ) {
+		long now = System.nanoTime();
+		for ( Node<K, V> node : due ) {
+			node.deadline = this.deadline( node );
+			if ( now - node.deadline < 0L ) {
+				this.timers.schedule( node );
+			} else if ( this.map.remove( node.key, node ) ) {
+				if ( this.bounded != null ) {
+					this.bounded.unlink( node );
+				}
+				if ( this.disk != null ) {
+					this.disk.remove( node.key );
+				}
+				this.evictions.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Perform pending maintenance: apply buffered reads to the eviction policy, remove
+	 * entries that have expired, failures too old to extend a backoff, and reclaim the
+	 * space of values replaced or removed from the disk tier. Maintenance is
+	 * otherwise performed as a side effect of reads and writes, and periodically when
+	 * entries expire, failures are cached or there is a disk tier.
+	 * Entries whose soft references have been collected are removed in the background.
+	 */
+	@Decl( "Removes expired entries" )
+	@Decl( "Removes stale failures" )
+	public void cleanUp() {
+		ConcurrentMap<K, Failure> failures = this.failures;
+		if ( failures != null ) {
+			long now = System.nanoTime();
+			failures.values().removeIf( (failure) -> this.isStale( failure, now ) );
+		}
+		
+		Bounded<K, V> bounded = this.bounded;
+		if ( bounded != null ) {
+			this.lock.lock();
+			try {
+				bounded.drainReads();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		
+		TimerWheel<K, V> timers = this.timers;
+		if ( timers != null ) {
+			this.lock.lock();
+			try {
+				this.expire( timers.advance( System.nanoTime() ) );
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		
+		DiskTier<K, V> disk = this.disk;
+		if ( disk != null ) {
+			disk.compact();
+		}
+	}
+
+	/**
+	 * The held entries with keys from {@code from}, inclusive, to {@code to}, exclusive, in
+	 * key order. Missing keys are not built, and the stream does not affect statistics or
+	 * the eviction policy. The stream is weakly consistent: it reflects some of the changes
+	 * made while it is traversed, and never fails because of them.
+	 * 
+	 * Only for caches constructed by {@link #sorted(Builder)}.
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	@Decl( "Throws AssertionError when not sorted" )
+	@Decl( "Throws AssertionError for null bound" )
+	@Decl( "Throws AssertionError for reversed bounds" )
+	@Decl( "Streams held entries in key order" )
+	@Decl( "Excludes upper bound" )
+	@Decl( "Does not build missing keys" )
+	public Stream<Map.Entry<K, V>> streamRange( K from, K to ) {
+		long now = this.isTimed() ? System.nanoTime() : 0L;
+		return this.range( this.map, from, to ).values().stream()
+			.<Map.Entry<K, V>>map( (node) -> {
+				V value = this.valueOf( node, now );
+				return value == null ? null : new AbstractMap.SimpleImmutableEntry<K, V>( node.key, value );
+			})
+			.filter( (entry) -> entry != null );
+	}
+	
+	/**
+	 * Remove the entries with keys from {@code from}, inclusive, to {@code to}, exclusive,
+	 * including values saved in the disk tier. Builds in progress are not cancelled.
+	 * 
+	 * Removal does not lock unless the cache is bounded, expires entries or has a disk
+	 * tier; it then holds the lock while unlinking each entry from the policy.
+	 * Only for caches constructed by {@link #sorted(Builder)}.
+	 * 
+	 * @param from
+	 * @param to
+	 * @return
+	 * 		The number of entries removed from memory
+	 */
+	@Decl( "Throws AssertionError when not sorted" )
+	@Decl( "Removes keys in range" )
+	@Decl( "Keeps keys outside range" )
+	@Decl( "Bounded cache weight is reduced" )
+	@Decl( "Removes saved values" )
+	public int invalidateRange( K from, K to ) {
+		return this.invalidate( from, to );
+	}
+	
+	/**
+	 * Remove the entries whose keys start with the given prefix, as for 
+	 * {@link #invalidateRange(Object, Object)}.
+	 * 
+	 * Only for caches constructed by {@link #sorted(Builder)} with {@code String} keys.
+	 * 
+	 * @param prefix
+	 * @return
+	 * 		The number of entries removed from memory
+	 */
+	@Decl( "Throws AssertionError for null prefix" )
+	@Decl( "Removes keys with prefix" )
+	@Decl( "Keeps other keys" )
+	@Decl( "Empty prefix removes all" )
+	@Decl( "Handles maximal character" )
+	@SuppressWarnings( "unchecked" )
+	public int invalidatePrefix( String prefix ) {
+		Assert.nonNull( prefix );
+		
+		return this.invalidate( (K) prefix, (K) Cache.successor( prefix ) );
+	}
+	
+	/* The least string greater than every string with the prefix; null if there is none */
+	private static String successor( String prefix ) {
+		int i = prefix.length() - 1;
+		while ( i >= 0 && prefix.charAt( i ) == Character.MAX_VALUE ) {
+			i--;
+		}
+		return i < 0 ? null : prefix.substring( 0, i ) + (char) (prefix.charAt( i ) + 1);
+	}
+	
+	/* The keys from {@code from}, inclusive, to {@code to}, exclusive; unbounded above if {@code to} is null */
+	@SuppressWarnings( "unchecked" )
+	private <T> ConcurrentNavigableMap<K, T> range( Map<K, T> map, K from, K to ) {
+		Assert.isTrue( map instanceof ConcurrentNavigableMap );
+		Assert.nonNull( from );
+		
+		ConcurrentNavigableMap<K, T> sorted = (ConcurrentNavigableMap<K, T>) map;
+		if ( to == null ) {
+			return sorted.tailMap( from, true );
+		}
+		Assert.isTrue( ((Comparable<? super K>) from).compareTo( to ) <= 0 );
+		return sorted.subMap( from, true, to, false );
+	}
+	
+	private int invalidate( K from, K to ) {
+		ConcurrentNavigableMap<K, Node<K, V>> range = this.range( this.map, from, to );
+		int removed = 0;
+		if ( ! this.isLocking() ) {
+			for ( Node<K, V> node : range.values() ) {
+				removed += this.map.remove( node.key, node ) ? 1 : 0;
+			}
+			return removed;
+		}
+		
+		for ( Node<K, V> node : range.values() ) {
+			this.lock.lock();
+			try {
+				if ( this.map.remove( node.key, node ) ) {
+					removed++;
+					if ( this.bounded != null ) {
+						this.bounded.unlink( node );
+					}
+					if ( this.timers != null ) {
+						this.timers.unlink( node );
+					}
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		// After memory, so that values saved by evictions during removal are also dropped
+		if ( this.disk != null ) {
+			this.disk.removeAll( this.range( this.disk.index, from, to ) );
+		}
+		return removed;
+	}
+
+	/**
+	 * Store a key-value pair. Values are held via a soft reference and may be collected.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Null value throws Assertion Error" )
+	public void put( K key, V value ) {
+		Assert.nonNull( key );
+		Assert.nonNull( value );
+
+		this.store( key, value );
+	}
+	
+	/**
+	 * Remove all associations.
+	 */
+	// How important is this? To test need a custom value that has some non-reconstructed state
+	//@Decl( "Then get() retrieves distinct instance" )
+	@Decl( "Then get() retrieves equivalent value" )
+	@Decl( "Cache empty after" )
+	@Decl( "Bounded cache empty after" )
+	@Decl( "Discards disk tier" )
+	public void flush() {
+		if ( ! this.isLocking() ) {
+			this.map.clear();
+			return;
+		}
+		
+		this.lock.lock();
+		try {
+			if ( this.bounded != null ) {
+				for ( Node<K, V> node : this.map.values() ) {
+					this.bounded.unlink( node );
+				}
+			}
+			if ( this.timers != null ) {
+				this.timers.clear();
+			}
+			if ( this.disk != null ) {
+				this.disk.clear();
+			}
+			this.map.clear();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+
+	/**
+	 * A snapshot of the counters for this cache. Counters are updated without locking, so
+	 * a snapshot taken during concurrent activity may be slightly inconsistent.
+	 * 
+	 * @return
+	 */
+	@Decl( "Counts hits and misses" )
+	@Decl( "Counts load successes and failures" )
+	@Decl( "Records load time" )
+	@Decl( "Counts evictions" )
+	public CacheStats stats() {
+		return this.loads.stats( this.evictions.sum(), this.collected.sum() );
+	}
+	
+	/* Shared daemon thread for periodic tasks; created on first use */
+	private static class Scheduler {
+		private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor( (r) -> {
+			Thread thread = new Thread( r, "Cache.Scheduler" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+	
+	/* 
+	 * Shared daemon thread that closes batch windows; kept apart from the periodic tasks so 
+	 * that a window of a few milliseconds never waits behind a cleanUp pass and its disk work
+	 */
+	private static class Batcher {
+		private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor( (r) -> {
+			Thread thread = new Thread( r, "Cache.Batcher" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	}
+	
+	/* 
+	 * Run the task periodically for as long as the cache is reachable. The scheduled task 
+	 * holds the cache weakly, so the task itself must not capture the cache.
+	 */
+	private static <K, V> void schedule( Cache<K, V> cache, Consumer<Cache<K, V>> task, long period, TimeUnit unit ) {
+		WeakReference<Cache<K, V>> ref = new WeakReference<Cache<K, V>>( cache );
+		Scheduler.EXECUTOR.scheduleAtFixedRate( () -> {
+			Cache<K, V> target = ref.get();
+			if ( target == null ) {
+				// Throwing suppresses subsequent executions
+				throw new AppException( "Cache no longer reachable" );
+			}
+			task.accept( target );
+		}, period, period, unit );
+	}
+	
+	/* Writes the current statistics and the activity since the previous report */
+	@Test.Skip
+	private static class StatsReport<K, V> implements Consumer<Cache<K, V>> {
+		
+		private final Trace trace;
+		
+		private CacheStats previous = new CacheStats( 0, 0, 0, 0, 0, 0, 0 );
+		
+		StatsReport( Trace trace ) {
+			this.trace = trace;
+		}
+		
+		@Override
+		public void accept( Cache<K, V> cache ) {
+			CacheStats current = cache.stats();
+			this.trace.write( cache + " " + current );
+			this.trace.write( "Interval " + current.minus( this.previous ) );
+			this.previous = current;
+		}
+	}
+	
+	/**
+	 * Periodically write the statistics for this cache, and the activity since the
+	 * previous report, to a {@code Trace} with the given topic. Reporting stops once
+	 * the cache is no longer reachable.
+	 * 
+	 * @param topic
+	 * 		Trace topic, between 3 and 20 characters
+	 * @param period
+	 * 		Time between reports
+	 * @param unit
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for non positive period" )
+	@Decl( "Throws AssertionError for invalid topic" )
+	@Decl( "Returns this cache" )
+	public Cache<K, V> reportStats( String topic, long period, TimeUnit unit ) {
+		Assert.isTrue( period > 0L );
+		Assert.nonNull( unit );
+		
+		Cache.schedule( this, new StatsReport<K, V>( new Trace( topic ) ), period, unit );
+		return this;
+	}
+
+	// Keys per batch builder call during a warm start
+	private static final int WARM_BATCH = 64;
+	
+	/* Configuration for saving the hottest keys, and optionally their values, to a file */
+	private static class Snapshot<K, V> {
+		
+		private final File file;
+		
+		private final int count;
+		
+		private final Codec<K> keys;
+		
+		// Null if values are not saved
+		private final Codec<V> values;
+		
+		Snapshot( File file, int count, Codec<K> keys, Codec<V> values ) {
+			this.file = file;
+			this.count = count;
+			this.keys = keys;
+			this.values = values;
+		}
+	}
+	
+	/* Saves a snapshot at shutdown if the cache is still reachable */
+	@Test.Skip
+	private static class SnapshotOnShutdown<K, V> implements App.OnShutdown {
+		
+		private final WeakReference<Cache<K, V>> ref;
+		
+		SnapshotOnShutdown( Cache<K, V> cache ) {
+			this.ref = new WeakReference<Cache<K, V>>( cache );
+		}
+		
+		@Override
+		public void terminate() {
+			Cache<K, V> cache = this.ref.get();
+			if ( cache != null ) {
+				cache.snapshot();
+			}
+		}
+	}
+	
+	/**
+	 * At shutdown, save the hottest keys to a file in the {@code cache} sub-directory of
+	 * the application root, so that a later run can preload them with {@link #warmStart()}.
+	 * If a value codec is given the values are saved too, and a warm start restores them
+	 * without calling the builder. Values are not saved if entries expire after write or are
+	 * refreshed, since their age would be lost.
+	 * 
+	 * A bounded cache saves the keys that its frequency sketch estimates to be the most 
+	 * popular; an unbounded cache has no estimate and saves any held keys.
+	 * 
+	 * @param name
+	 * 		Name of the snapshot file; distinct for each cache
+	 * @param count
+	 * 		Maximum number of keys saved
+	 * @param keyCodec
+	 * @param valueCodec
+	 * 		Null to save keys only
+	 * @return
+	 * 		this Cache
+	 */
+	@Decl( "Throws AssertionError for empty name" )
+	@Decl( "Throws AssertionError for non positive count" )
+	@Decl( "Throws AssertionError for null key codec" )
+	@Decl( "Returns this cache" )
+	public Cache<K, V> snapshotOnShutdown( String name, int count, Codec<K> keyCodec, Codec<V> valueCodec ) {
+		Assert.nonEmpty( name );
+		Assert.isTrue( count > 0 );
+		Assert.nonNull( keyCodec );
+		
+		File file = new LocalDir().sub( "cache" ).getFile( name, LocalDir.Type.DATA );
+		this.snapshot = new Snapshot<K, V>( file, count, keyCodec, valueCodec );
+		App.get().terminateOnShutdown( new SnapshotOnShutdown<K, V>( this ) );
+		return this;
+	}
+	
+	/**
+	 * Save the snapshot configured by {@link #snapshotOnShutdown(String, int, Codec, Codec)} 
+	 * now. The file is replaced atomically.
+	 * 
+	 * @throws AppException		If the file cannot be written.
+	 */
+	@Decl( "Throws AssertionError when not configured" )
+	@Decl( "Saves hottest keys" )
+	@Decl( "Saves at most count keys" )
+	public void snapshot() {
+		Snapshot<K, V> snapshot = Assert.nonNull( this.snapshot );
+		
+		List<Node<K, V>> nodes = this.hottest( snapshot.count );
+		boolean aging = this.expireAfterWrite > 0L || this.refreshAfterWrite > 0L;
+		File tmp = new File( snapshot.file.getPath() + ".new" );
+		try {
+			try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) ) {
+				out.writeInt( nodes.size() );
+				for ( Node<K, V> node : nodes ) {
+					Cache.write( out, snapshot.keys.encode( node.key ) );
+					V value = (snapshot.values == null || aging) ? null : node.get();
+					Cache.write( out, value == null ? null : snapshot.values.encode( value ) );
+				}
+			}
+			Files.move( tmp.toPath(), snapshot.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch ( IOException e ) {
+			throw new AppException( e );
+		}
+	}
+	
+	/* Length-prefixed bytes; length -1 for null */
+	private static void write( DataOutputStream out, byte[] bytes ) throws IOException {
+		if ( bytes == null ) {
+			out.writeInt( -1 );
+		} else {
+			out.writeInt( bytes.length );
+			out.write( bytes );
+		}
+	}
+	
+	private static byte[] read( DataInputStream in ) throws IOException {
+		int length = in.readInt();
+		if ( length < 0 ) {
+			return null;
+		}
+		byte[] bytes = new byte[ length ];
+		in.readFully( bytes );
+		return bytes;
+	}
+	
+	/* Held nodes, most popular first when the cache is bounded */
+	private List<Node<K, V>> hottest( int count ) {
+		List<Node<K, V>> nodes = new ArrayList<Node<K, V>>( this.map.values() );
+		Bounded<K, V> bounded = this.bounded;
+		if ( bounded != null ) {
+			Map<Node<K, V>, Integer> frequencies = new IdentityHashMap<Node<K, V>, Integer>();
+			this.lock.lock();
+			try {
+				bounded.drainReads();
+				for ( Node<K, V> node : nodes ) {
+					frequencies.put( node, bounded.sketch.frequency( node.key ) );
+				}
+			} finally {
+				this.lock.unlock();
+			}
+			nodes.sort( Comparator.comparing( frequencies::get, Comparator.reverseOrder() ) );
+		}
+		return nodes.subList( 0, Math.min( count, nodes.size() ) );
+	}
+	
+	/**
+	 * Preload the keys saved by a previous run. Saved values are stored directly; other keys
+	 * are built in parallel on the executor for this cache, in batches if there is a batch 
+	 * builder. Keys that fail to build are skipped. Completes immediately if there is no snapshot.
+	 * 
+	 * Call before the cache receives traffic, and join the result to wait for the preload.
+	 * 
+	 * @return
+	 * 		Completes when all saved keys have been loaded or have failed
+	 * @throws AppException		If the snapshot cannot be read.
+	 */
+	@Decl( "Throws AssertionError when not configured" )
+	@Decl( "Completes immediately without snapshot" )
+	@Decl( "Restores saved values without build" )
+	@Decl( "Builds saved keys" )
+	@Decl( "Batch builder called for saved keys" )
+	@Decl( "Failed build does not fail warm start" )
+	public CompletableFuture<Void> warmStart() {
+		Snapshot<K, V> snapshot = Assert.nonNull( this.snapshot );
+		if ( ! snapshot.file.exists() ) {
+			return CompletableFuture.completedFuture( null );
+		}
+		
+		List<K> keys = new ArrayList<K>();
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( snapshot.file ) ) ) ) {
+			int count = in.readInt();
+			for ( int i = 0; i < count; i++ ) {
+				K key = snapshot.keys.decode( Cache.read( in ) );
+				byte[] value = Cache.read( in );
+				if ( value == null || snapshot.values == null ) {
+					keys.add( key );
+				} else {
+					this.store( key, snapshot.values.decode( value ) );
+				}
+			}
+		} catch ( IOException e ) {
+			throw new AppException( e );
+		}
+		
+		List<CompletableFuture<?>> loads = new ArrayList<CompletableFuture<?>>();
+		if ( this.batchBuilder == null ) {
+			for ( K key : keys ) {
+				loads.add( this.getAsync( key ) );
+			}
+		} else {
+			for ( int i = 0; i < keys.size(); i += WARM_BATCH ) {
+				List<K> batch = keys.subList( i, Math.min( i + WARM_BATCH, keys.size() ) );
+				loads.add( CompletableFuture.runAsync( () -> this.getAll( batch ), this.executor() ) );
+			}
+		}
+		return CompletableFuture.allOf( loads.stream()
+			.map( (load) -> load.handle( (v, e) -> null ) )
+			.toArray( CompletableFuture[]::new ) );
+	}
+
+	@Override
+	@Test.Decl( "Result is not null" )
+	@Test.Decl( "Result is not empty" )
+	public String toString() {
+		return "Cache(" + this.map.size() + " keys)";
+	}
+
+	
+	
+	
+	
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return Cache.class;
+		}
+
+		private static class MyBuilder implements Builder<Integer, String> {
+			@Override
+			public String make( Integer key ) throws AppException {
+				return Strings.rightJustify( key.toString(), 50, '_' );
+			}
+		}
+		
+		private static class Agent extends Thread {
+			private static int ITERATIONS = 100;		// Stress: 1000
+			private static int MAXIMUM = 1000;			// Stress: 10000
+			private static Cache<Integer, String> cache = new Cache<Integer, String>( new MyBuilder() );
+			private static void dispose() {
+				Agent.cache.flush();
+				Agent.cache = null;
+			}
+			
+			@Override
+			public void run() {
+				for ( int i = 0; i < ITERATIONS; i++ ) {
+					cache.get( (int) (Math.random() * MAXIMUM) );
+					cache.put( i,  "[" + i + "]" );
+					Thread.yield();
+				}
+			}
+			
+			public Thread init() {
+				this.start();
+				return this;
+			}
+		}
+		
+		private Cache<Integer, String> cache;
+		
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				@Override
+				public void call() {
+					cache = new Cache<Integer, String>( new MyBuilder() );
+				}
+				
+			};
+		}
+		
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				@Override
+				public void call() {
+					cache.flush();
+					cache = null;
+				}
+			};
+		}
+		
+		@Test.Impl( src = "public Cache(Cache.Builder)", desc = "Null Builder throws Assertion Error" )
+		public void Cache_NullBuilderThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new Cache<String, String>( null );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "From empty cache returns valid object" )
+		public void get_FromEmptyCacheReturnsValidObject( TestCase tc ) {
+			tc.assertEqual( "_________________________________________________0", 
+				cache.get(0)
+			);
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Multi thread stress test", weight = 10 )
+		public void get_MultiThreadStressTest( TestCase tc ) {
+			tc.afterThis( new Procedure() {
+				public void call() { Agent.dispose(); }
+			});
+			ArrayList<Thread> agents = new ArrayList<Thread>();
+			for ( int i = 0; i < 5; i++ ) {
+				agents.add( new Agent().init() );
+			}
+			for ( Thread thread : agents ) {
+				try {
+					thread.join();
+				} catch ( InterruptedException e ) {
+					e.printStackTrace();
+				}
+			}
+			// Very simplistic test of concurrency. Should add consistency checking?
+			tc.assertTrue( true );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Null key throws Assertion Error" )
+		public void get_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.get( null );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Put Get stress test", weight = 10 )
+		public void get_PutGetStressTest( TestCase tc ) {
+			LinkedList<String> values = new LinkedList<String>();
+			int i;
+			for ( i = 0; i < 10000; i++ ) {
+				values.add( cache.get( 713 * i -12345 ) );
+			}
+			cache.flush();
+			i = 0;
+			for ( String s : values ) {
+				cache.put( i++, s );
+			}
+			boolean getIsConsistent = true;
+			i = 0;
+			for ( String s : values ) {
+				getIsConsistent &= s.equals( cache.get(i++) );
+			}			
+			tc.assertTrue( getIsConsistent );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Stored uncolllectable object returns same object", weight = 10 )
+		public void get_StoredUncolllectableObjectReturnsSameObject( TestCase tc ) {
+			cache = new Cache<Integer, String>( (x) -> Strings.rightJustify( x.toString(), 100000, '_' ) );
+			int curSize = cache.map.size();  // Should be 0
+			int i = 42;
+			String strongReference = cache.get(i++); // Can't be collected; size() now 1
+			while ( cache.map.size() > curSize ) {  // Size decreases after GC
+				curSize = cache.map.size();
+				for ( int j = 0; j < 100; j++ ) {  // Fill cache
+					cache.get( i++ );
+				}
+			}
+			// Some objects have been GC'd, but not our strongly held value
+			tc.assertTrue( strongReference == cache.get(42) );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Collected entries are removed in the background" )
+		public void get_CollectedEntriesAreRemovedInTheBackground( TestCase tc ) {
+			cache.get( 42 );
+			// Simulate collection; enqueue also clears the reference
+			cache.map.get( 42 ).soft.enqueue();
+			for ( int i = 0; i < 100 && cache.map.containsKey( 42 ); i++ ) {
+				sleep( 10L );
+			}
+			tc.assertFalse( cache.map.containsKey( 42 ) );
+			tc.assertEqual( 1L, cache.stats().collectedCount() );
+		}
+
+		@Test.Impl( src = "public void Cache.put(Object, Object)", desc = "Null key throws Assertion Error" )
+		public void put_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( null,  "Foo" );
+		}
+
+		@Test.Impl( src = "public void Cache.put(Object, Object)", desc = "Null value throws Assertion Error" )
+		public void put_NullValueThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( 42,  null );
+		}
+		
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Values are not null" )
+		public void get_ValuesAreNotNull( TestCase tc ) {
+			tc.assertTrue( cache.get(42) != null );
+		}
+
+		@Test.Impl( src = "public void Cache.flush()", desc = "Cache empty after" )
+		public void flush_CacheEmptyAfter( TestCase tc ) {
+			for ( int i = 0; i < 1000; i++ ) {
+				cache.get(i);
+			}
+			cache.flush();
+			tc.assertEqual( cache.map.size(), 0 );
+		}
+
+		@Test.Impl( src = "public void Cache.flush()", desc = "Then get() retrieves equivalent value" )
+		public void flush_ThenGetRetrievesEquivalentValue( TestCase tc ) {
+			String orig = cache.get( 42 );
+			cache.flush();
+			tc.assertEqual( orig ,  cache.get(42) );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Keys need not be comparable" )
+		public void get_KeysNeedNotBeComparable( TestCase tc ) {
+			Cache<List<Integer>, String> lists = new Cache<List<Integer>, String>( (x) -> x.toString() );
+			lists.get( Arrays.asList( 1, 2, 3 ) );
+			tc.assertEqual( "[1, 2, 3]", lists.get( Arrays.asList( 1, 2, 3 ) ) );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Builder called once per key under contention", weight = 5 )
+		public void get_BuilderCalledOncePerKeyUnderContention( TestCase tc ) throws InterruptedException {
+			AtomicInteger builds = new AtomicInteger();
+			CountDownLatch start = new CountDownLatch( 1 );
+			Cache<Integer, String> slow = new Cache<Integer, String>( (x) -> {
+				builds.incrementAndGet();
+				try { Thread.sleep( 50 ); } catch ( InterruptedException e ) {}
+				return "[" + x + "]";
+			});
+			List<String> results = new java.util.Vector<String>();
+			ArrayList<Thread> agents = new ArrayList<Thread>();
+			for ( int i = 0; i < 8; i++ ) {
+				Thread agent = new Thread( () -> {
+					try { start.await(); } catch ( InterruptedException e ) {}
+					results.add( slow.get( 42 ) );
+				});
+				agent.start();
+				agents.add( agent );
+			}
+			start.countDown();
+			for ( Thread agent : agents ) {
+				agent.join();
+			}
+			boolean sameInstance = true;
+			for ( String s : results ) {
+				sameInstance &= s == results.get( 0 );
+			}
+			tc.assertTrue( builds.get() == 1 && results.size() == 8 && sameInstance );
+		}
+
+		@Test.Impl( src = "public Object Cache.get(Object)", desc = "Failed build is not cached" )
+		public void get_FailedBuildIsNotCached( TestCase tc ) {
+			AtomicInteger builds = new AtomicInteger();
+			Cache<Integer, String> flaky = new Cache<Integer, String>( (x) -> {
+				if ( builds.incrementAndGet() == 1 ) {
+					throw new AppException( "First build fails" );
+				}
+				return "[" + x + "]";
+			});
+			try {
+				flaky.get( 42 );
+			} catch ( AppException e ) {}
+			tc.assertEqual( "[42]", flaky.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumSize(long)", desc = "Throws AssertionError for non positive maximum" )
+		public void maximumSize_ThrowsAssertionerrorForNonPositiveMaximum( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.maximumSize( 0 );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumSize(long)", desc = "Throws AssertionError when not empty" )
+		public void maximumSize_ThrowsAssertionerrorWhenNotEmpty( TestCase tc ) {
+			cache.get( 42 );
+			tc.expectError( AssertionError.class );
+			cache.maximumSize( 100 );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumSize(long)", desc = "Size never exceeds maximum", weight = 2 )
+		public void maximumSize_SizeNeverExceedsMaximum( TestCase tc ) {
+			cache.maximumSize( 100 );
+			boolean bounded = true;
+			for ( int i = 0; i < 1000; i++ ) {
+				cache.get( i );
+				bounded &= cache.map.size() <= 100;
+			}
+			tc.assertTrue( bounded );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumSize(long)", desc = "Frequently used keys survive a scan", weight = 2 )
+		public void maximumSize_FrequentlyUsedKeysSurviveAScan( TestCase tc ) {
+			cache.maximumSize( 100 );
+			for ( int n = 0; n < 10; n++ ) {
+				for ( int i = 0; i < 10; i++ ) {
+					cache.get( i );
+				}
+			}
+			for ( int i = 1000; i < 2000; i++ ) {
+				cache.get( i );
+			}
+			boolean survived = true;
+			for ( int i = 0; i < 10; i++ ) {
+				survived &= cache.map.containsKey( i );
+			}
+			tc.assertTrue( survived );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumSize(long)", desc = "Reads from many threads reach the policy", weight = 2 )
+		public void maximumSize_ReadsFromManyThreadsReachThePolicy( TestCase tc ) throws InterruptedException {
+			cache.maximumSize( 100 );
+			for ( int i = 0; i < 10; i++ ) {
+				cache.get( i );
+			}
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int t = 0; t < 8; t++ ) {
+				Thread thread = new Thread( () -> {
+					for ( int n = 0; n < 1000; n++ ) {
+						cache.get( n % 10 );
+					}
+				});
+				thread.start();
+				threads.add( thread );
+			}
+			for ( Thread thread : threads ) {
+				thread.join();
+			}
+			for ( int i = 1000; i < 2000; i++ ) {
+				cache.get( i );
+			}
+			boolean survived = true;
+			for ( int i = 0; i < 10; i++ ) {
+				survived &= cache.map.containsKey( i );
+			}
+			tc.assertTrue( survived );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumWeight(long, Cache.Weigher)", desc = "Throws AssertionError for non positive maximum" )
+		public void maximumWeight_ThrowsAssertionerrorForNonPositiveMaximum( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.maximumWeight( -1L, (k, v) -> v.length() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumWeight(long, Cache.Weigher)", desc = "Throws AssertionError for null weigher" )
+		public void maximumWeight_ThrowsAssertionerrorForNullWeigher( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.maximumWeight( 1000L, null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumWeight(long, Cache.Weigher)", desc = "Total weight never exceeds maximum", weight = 2 )
+		public void maximumWeight_TotalWeightNeverExceedsMaximum( TestCase tc ) {
+			cache.maximumWeight( 1000L, (k, v) -> v.length() );
+			boolean bounded = true;
+			for ( int i = 0; i < 1000; i++ ) {
+				cache.get( (int) (Math.random() * 100) );
+				long total = 0L;
+				for ( Node<Integer, String> node : cache.map.values() ) {
+					total += node.weight;
+				}
+				bounded &= total <= 1000L && total == cache.bounded.weight();
+			}
+			tc.assertTrue( bounded );
+		}
+
+		@Test.Impl( src = "public Cache Cache.maximumWeight(long, Cache.Weigher)", desc = "Values are held strongly" )
+		public void maximumWeight_ValuesAreHeldStrongly( TestCase tc ) {
+			cache.maximumWeight( 1000L, (k, v) -> v.length() );
+			cache.get( 42 );
+			tc.assertTrue( cache.map.get( 42 ).soft == null );
+		}
+
+		@Test.Impl( src = "public void Cache.flush()", desc = "Bounded cache empty after" )
+		public void flush_BoundedCacheEmptyAfter( TestCase tc ) {
+			cache.maximumSize( 100 );
+			for ( int i = 0; i < 1000; i++ ) {
+				cache.get( i );
+			}
+			cache.flush();
+			cache.get( 42 );
+			tc.assertTrue( cache.map.size() == 1 && cache.bounded.weight() == 1L );
+		}
+
+		@Test.Impl( src = "public void Cache.flush()", desc = "Discards disk tier" )
+		public void flush_DiscardsDiskTier( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).maximumSize( 10 ).diskTier( Codec.STRING );
+			for ( int i = 0; i < 100; i++ ) {
+				tiered.get( i );
+			}
+			tiered.flush();
+			tc.assertTrue( tiered.disk.index.isEmpty() );
+			tc.assertEqual( "0:101", tiered.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public CacheStats Cache.stats()", desc = "Counts hits and misses" )
+		public void stats_CountsHitsAndMisses( TestCase tc ) {
+			cache.get( 1 );
+			cache.get( 2 );
+			cache.get( 1 );
+			cache.get( 1 );
+			CacheStats stats = cache.stats();
+			tc.assertEqual( 2L, stats.hitCount() );
+			tc.assertEqual( 2L, stats.missCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats Cache.stats()", desc = "Counts load successes and failures" )
+		public void stats_CountsLoadSuccessesAndFailures( TestCase tc ) {
+			Cache<Integer, String> flaky = new Cache<Integer, String>( (x) -> {
+				if ( x < 0 ) {
+					throw new AppException( "Negative" );
+				}
+				return "[" + x + "]";
+			});
+			flaky.get( 1 );
+			flaky.get( 2 );
+			try {
+				flaky.get( -1 );
+			} catch ( AppException e ) {}
+			CacheStats stats = flaky.stats();
+			tc.assertEqual( 2L, stats.loadSuccessCount() );
+			tc.assertEqual( 1L, stats.loadFailureCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats Cache.stats()", desc = "Records load time" )
+		public void stats_RecordsLoadTime( TestCase tc ) {
+			Cache<Integer, String> slow = new Cache<Integer, String>( (x) -> {
+				try { Thread.sleep( 10 ); } catch ( InterruptedException e ) {}
+				return "[" + x + "]";
+			});
+			slow.get( 42 );
+			tc.assertTrue( slow.stats().totalLoadTime() >= 10000000L );
+		}
+
+		@Test.Impl( src = "public CacheStats Cache.stats()", desc = "Counts evictions" )
+		public void stats_CountsEvictions( TestCase tc ) {
+			cache.maximumSize( 100 );
+			for ( int i = 0; i < 1000; i++ ) {
+				cache.get( i );
+			}
+			tc.assertEqual( 900L, cache.stats().evictionCount() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.reportStats(String, long, TimeUnit)", desc = "Throws AssertionError for non positive period" )
+		public void reportStats_ThrowsAssertionerrorForNonPositivePeriod( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.reportStats( "CACHE", 0L, TimeUnit.SECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.reportStats(String, long, TimeUnit)", desc = "Throws AssertionError for invalid topic" )
+		public void reportStats_ThrowsAssertionerrorForInvalidTopic( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.reportStats( "C", 1L, TimeUnit.SECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.reportStats(String, long, TimeUnit)", desc = "Returns this cache" )
+		public void reportStats_ReturnsThisCache( TestCase tc ) {
+			tc.assertTrue( cache == cache.reportStats( "CACHE", 1L, TimeUnit.HOURS ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.getAsync(Object)", desc = "Null key throws Assertion Error" )
+		public void getAsync_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.getAsync( null );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.getAsync(Object)", desc = "Completes with built value" )
+		public void getAsync_CompletesWithBuiltValue( TestCase tc ) {
+			tc.assertEqual( "_________________________________________________0", cache.getAsync( 0 ).join() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.getAsync(Object)", desc = "Held value is already complete" )
+		public void getAsync_HeldValueIsAlreadyComplete( TestCase tc ) {
+			String value = cache.get( 42 );
+			CompletableFuture<String> future = cache.getAsync( 42 );
+			tc.assertTrue( future.isDone() && future.join() == value );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.getAsync(Object)", desc = "Concurrent requests share one future" )
+		public void getAsync_ConcurrentRequestsShareOneFuture( TestCase tc ) {
+			CountDownLatch release = new CountDownLatch( 1 );
+			Cache<Integer, String> slow = new Cache<Integer, String>( (x) -> {
+				try { release.await(); } catch ( InterruptedException e ) {}
+				return "[" + x + "]";
+			});
+			CompletableFuture<String> first = slow.getAsync( 42 );
+			CompletableFuture<String> second = slow.getAsync( 42 );
+			release.countDown();
+			tc.assertTrue( first == second && "[42]".equals( second.join() ) );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.getAsync(Object)", desc = "Failure completes exceptionally" )
+		public void getAsync_FailureCompletesExceptionally( TestCase tc ) throws InterruptedException {
+			Cache<Integer, String> failing = new Cache<Integer, String>( (x) -> {
+				throw new AppException( "Always fails" );
+			});
+			try {
+				failing.getAsync( 42 ).get();
+				tc.fail();
+			} catch ( ExecutionException e ) {
+				tc.assertTrue( e.getCause() instanceof AppException );
+			}
+		}
+
+		@Test.Impl( src = "public Cache Cache.executor(Executor)", desc = "Throws AssertionError for null executor" )
+		public void executor_ThrowsAssertionerrorForNullExecutor( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.executor( null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.executor(Executor)", desc = "Builds run on executor" )
+		public void executor_BuildsRunOnExecutor( TestCase tc ) {
+			AtomicInteger tasks = new AtomicInteger();
+			cache.executor( (r) -> {
+				tasks.incrementAndGet();
+				r.run();
+			});
+			cache.getAsync( 1 ).join();
+			cache.getAsync( 2 ).join();
+			cache.getAsync( 1 ).join();
+			tc.assertEqual( 2, tasks.get() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.batchBuilder(Cache.BatchBuilder)", desc = "Throws AssertionError for null batch builder" )
+		public void batchBuilder_ThrowsAssertionerrorForNullBatchBuilder( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.batchBuilder( null );
+		}
+		
+		// Records the keys of each batch
+		private static class MyBatchBuilder implements BatchBuilder<Integer, String> {
+			private final List<Collection<Integer>> batches = new java.util.Vector<Collection<Integer>>();
+			@Override
+			public Map<Integer, String> makeAll( Collection<Integer> keys ) throws AppException {
+				this.batches.add( new ArrayList<Integer>( keys ) );
+				Map<Integer, String> result = new HashMap<Integer, String>();
+				for ( Integer key : keys ) {
+					result.put( key, "[" + key + "]" );
+				}
+				return result;
+			}
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Null collection throws AssertionError" )
+		public void getAll_NullCollectionThrowsAssertionerror( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.getAll( null );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Null key throws AssertionError" )
+		public void getAll_NullKeyThrowsAssertionerror( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.getAll( Arrays.asList( 1, null, 3 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Returns value for every key" )
+		public void getAll_ReturnsValueForEveryKey( TestCase tc ) {
+			cache.get( 2 );
+			Map<Integer, String> values = cache.getAll( Arrays.asList( 3, 2, 1, 3 ) );
+			tc.assertEqual( Arrays.asList( 3, 2, 1 ), new ArrayList<Integer>( values.keySet() ) );
+			tc.assertEqual( cache.get( 1 ), values.get( 1 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Batch builder called once for missing keys" )
+		public void getAll_BatchBuilderCalledOnceForMissingKeys( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch );
+			Map<Integer, String> values = cache.getAll( Arrays.asList( 1, 2, 3, 4, 5 ) );
+			tc.assertEqual( 1, batch.batches.size() );
+			tc.assertEqual( "[5]", values.get( 5 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Held keys excluded from batch" )
+		public void getAll_HeldKeysExcludedFromBatch( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch );
+			cache.get( 2 );
+			cache.get( 4 );
+			cache.getAll( Arrays.asList( 1, 2, 3, 4, 5 ) );
+			tc.assertEqual( Arrays.asList( 1, 3, 5 ), batch.batches.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Keys being built are excluded from batch" )
+		public void getAll_KeysBeingBuiltAreExcludedFromBatch( TestCase tc ) {
+			CountDownLatch release = new CountDownLatch( 1 );
+			Cache<Integer, String> slow = new Cache<Integer, String>( (x) -> {
+				try { release.await(); } catch ( InterruptedException e ) {}
+				return "[" + x + "]";
+			});
+			MyBatchBuilder batch = new MyBatchBuilder() {
+				@Override
+				public Map<Integer, String> makeAll( Collection<Integer> keys ) throws AppException {
+					release.countDown();
+					return super.makeAll( keys );
+				}
+			};
+			slow.batchBuilder( batch );
+			slow.getAsync( 1 );
+			Map<Integer, String> values = slow.getAll( Arrays.asList( 1, 2, 3 ) );
+			tc.assertEqual( Arrays.asList( 2, 3 ), batch.batches.get( 0 ) );
+			tc.assertEqual( "[1]", values.get( 1 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Batch failure throws AppException" )
+		public void getAll_BatchFailureThrowsAppexception( TestCase tc ) {
+			cache.batchBuilder( (keys) -> { throw new AppException( "Backend down" ); } );
+			tc.expectError( AppException.class );
+			cache.getAll( Arrays.asList( 1, 2, 3 ) );
+		}
+
+		@Test.Impl( src = "public Map Cache.getAll(Collection)", desc = "Missing batch value throws AppException" )
+		public void getAll_MissingBatchValueThrowsAppexception( TestCase tc ) {
+			cache.batchBuilder( (keys) -> new HashMap<Integer, String>() );
+			tc.expectError( AppException.class );
+			cache.getAll( Arrays.asList( 1, 2, 3 ) );
+		}
+
+		// Each value records the build count
+		private static class Counter implements Builder<Integer, String> {
+			private final AtomicInteger builds = new AtomicInteger();
+			@Override
+			public String make( Integer key ) throws AppException {
+				return key + ":" + this.builds.incrementAndGet();
+			}
+		}
+		
+		private static void sleep( long millis ) {
+			try {
+				Thread.sleep( millis );
+			} catch ( InterruptedException e ) {}
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterWrite(long, TimeUnit)", desc = "Throws AssertionError for non positive duration" )
+		public void expireAfterWrite_ThrowsAssertionerrorForNonPositiveDuration( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.expireAfterWrite( 0L, TimeUnit.MILLISECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterWrite(long, TimeUnit)", desc = "Throws AssertionError when not empty" )
+		public void expireAfterWrite_ThrowsAssertionerrorWhenNotEmpty( TestCase tc ) {
+			cache.get( 42 );
+			tc.expectError( AssertionError.class );
+			cache.expireAfterWrite( 1L, TimeUnit.SECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterWrite(long, TimeUnit)", desc = "Expired entry is rebuilt" )
+		public void expireAfterWrite_ExpiredEntryIsRebuilt( TestCase tc ) {
+			Cache<Integer, String> timed = new Cache<Integer, String>( new Counter() ).expireAfterWrite( 50L, TimeUnit.MILLISECONDS );
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+			sleep( 100L );
+			tc.assertEqual( "42:2", timed.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterWrite(long, TimeUnit)", desc = "Reads do not extend lifetime" )
+		public void expireAfterWrite_ReadsDoNotExtendLifetime( TestCase tc ) {
+			Cache<Integer, String> timed = new Cache<Integer, String>( new Counter() ).expireAfterWrite( 300L, TimeUnit.MILLISECONDS );
+			timed.get( 42 );
+			sleep( 200L );
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+			sleep( 200L );
+			tc.assertEqual( "42:2", timed.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterAccess(long, TimeUnit)", desc = "Throws AssertionError for non positive duration" )
+		public void expireAfterAccess_ThrowsAssertionerrorForNonPositiveDuration( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.expireAfterAccess( -1L, TimeUnit.MILLISECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterAccess(long, TimeUnit)", desc = "Reads extend lifetime" )
+		public void expireAfterAccess_ReadsExtendLifetime( TestCase tc ) {
+			Cache<Integer, String> timed = new Cache<Integer, String>( new Counter() ).expireAfterAccess( 300L, TimeUnit.MILLISECONDS );
+			timed.get( 42 );
+			for ( int i = 0; i < 5; i++ ) {
+				sleep( 100L );
+				timed.get( 42 );
+			}
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.expireAfterAccess(long, TimeUnit)", desc = "Expired entries are removed", weight = 2 )
+		public void expireAfterAccess_ExpiredEntriesAreRemoved( TestCase tc ) {
+			cache.expireAfterAccess( 10L, TimeUnit.MILLISECONDS );
+			for ( int i = 0; i < 100; i++ ) {
+				cache.get( i );
+			}
+			// Level 0 buckets of the timer wheel span about one second
+			sleep( 2200L );
+			cache.cleanUp();
+			tc.assertTrue( cache.map.isEmpty() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.refreshAfterWrite(long, TimeUnit)", desc = "Throws AssertionError for non positive duration" )
+		public void refreshAfterWrite_ThrowsAssertionerrorForNonPositiveDuration( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.refreshAfterWrite( 0L, TimeUnit.SECONDS );
+		}
+
+		@Test.Impl( src = "public Cache Cache.refreshAfterWrite(long, TimeUnit)", desc = "Stale value returned while refreshing" )
+		public void refreshAfterWrite_StaleValueReturnedWhileRefreshing( TestCase tc ) {
+			List<Runnable> pending = new java.util.Vector<Runnable>();
+			Cache<Integer, String> timed = new Cache<Integer, String>( new Counter() )
+				.refreshAfterWrite( 50L, TimeUnit.MILLISECONDS )
+				.executor( pending::add );
+			timed.get( 42 );
+			sleep( 100L );
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+			tc.assertEqual( 1, pending.size() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.refreshAfterWrite(long, TimeUnit)", desc = "Refreshed value replaces stale value" )
+		public void refreshAfterWrite_RefreshedValueReplacesStaleValue( TestCase tc ) {
+			Cache<Integer, String> timed = new Cache<Integer, String>( new Counter() )
+				.refreshAfterWrite( 50L, TimeUnit.MILLISECONDS )
+				.executor( Runnable::run );
+			timed.get( 42 );
+			sleep( 100L );
+			tc.assertEqual( "42:1", timed.get( 42 ) );
+			tc.assertEqual( "42:2", timed.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.refreshAfterWrite(long, TimeUnit)", desc = "Failed refresh keeps stale value" )
+		public void refreshAfterWrite_FailedRefreshKeepsStaleValue( TestCase tc ) {
+			AtomicInteger builds = new AtomicInteger();
+			Cache<Integer, String> timed = new Cache<Integer, String>( (x) -> {
+				if ( builds.incrementAndGet() > 1 ) {
+					throw new AppException( "Backend down" );
+				}
+				return "[" + x + "]";
+			}).refreshAfterWrite( 50L, TimeUnit.MILLISECONDS ).executor( Runnable::run );
+			timed.get( 42 );
+			sleep( 100L );
+			timed.get( 42 );
+			tc.assertEqual( "[42]", timed.get( 42 ) );
+			tc.assertTrue( builds.get() > 1 );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Throws AssertionError for null codec" )
+		public void diskTier_ThrowsAssertionerrorForNullCodec( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.diskTier( null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Throws AssertionError when not empty" )
+		public void diskTier_ThrowsAssertionerrorWhenNotEmpty( TestCase tc ) {
+			cache.get( 42 );
+			tc.expectError( AssertionError.class );
+			cache.diskTier( Codec.STRING );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Evicted value restored without build" )
+		public void diskTier_EvictedValueRestoredWithoutBuild( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).maximumSize( 10 ).diskTier( Codec.STRING );
+			for ( int i = 0; i < 100; i++ ) {
+				tiered.get( i );
+			}
+			for ( int i = 0; i < 100; i++ ) {
+				tc.assertEqual( i + ":" + (i + 1), tiered.get( i ) );
+			}
+			tc.assertEqual( 100L, tiered.stats().loadSuccessCount() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Collected value restored without build" )
+		public void diskTier_CollectedValueRestoredWithoutBuild( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).diskTier( Codec.STRING );
+			tiered.get( 42 );
+			// Simulate collection
+			tiered.map.get( 42 ).soft.clear();
+			tc.assertEqual( "42:1", tiered.get( 42 ) );
+			tc.assertEqual( 1L, tiered.stats().loadSuccessCount() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Expired value is not restored" )
+		public void diskTier_ExpiredValueIsNotRestored( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() )
+				.expireAfterWrite( 50L, TimeUnit.MILLISECONDS ).diskTier( Codec.STRING );
+			tiered.get( 42 );
+			tiered.map.get( 42 ).soft.clear();
+			sleep( 100L );
+			tc.assertEqual( "42:2", tiered.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Put replaces saved value" )
+		public void diskTier_PutReplacesSavedValue( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).maximumSize( 10 ).diskTier( Codec.STRING );
+			for ( int i = 0; i < 100; i++ ) {
+				tiered.get( i );
+			}
+			tiered.put( 0, "replaced" );
+			for ( int i = 100; i < 200; i++ ) {
+				tiered.get( i );
+			}
+			tc.assertEqual( "replaced", tiered.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Replaced values are freed" )
+		public void diskTier_ReplacedValuesAreFreed( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).diskTier( Codec.STRING );
+			for ( int n = 0; n < 100; n++ ) {
+				tiered.put( 0, String.format( "%09d", n ) );
+			}
+			tc.assertEqual( 9L, tiered.disk.store.length() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Removed values are freed" )
+		public void diskTier_RemovedValuesAreFreed( TestCase tc ) {
+			Cache<Integer, String> tiered = Cache.sorted( new Counter() ).maximumSize( 10 ).diskTier( Codec.STRING );
+			for ( int i = 0; i < 100; i++ ) {
+				tiered.get( i );
+			}
+			tc.assertTrue( tiered.disk.store.length() > 0L );
+			tiered.invalidateRange( 0, 100 );
+			tc.assertEqual( 0L, tiered.disk.store.length() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Clean up reclaims freed segments" )
+		public void diskTier_CleanUpReclaimsFreedSegments( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).diskTier( Codec.STRING );
+			tiered.disk = new DiskTier<Integer, String>( Codec.STRING, false, new ByteStore( 100L ) );
+			for ( int n = 0; n < 1000; n++ ) {
+				tiered.put( 0, String.format( "%09d", n ) );
+			}
+			tc.assertTrue( tiered.disk.store.segments() > 50 );
+			// A segment is disposed by the second pass after it is retired
+			tiered.cleanUp();
+			tiered.cleanUp();
+			tiered.cleanUp();
+			tc.assertEqual( 0, tiered.disk.store.reclaim() );
+			tiered.map.get( 0 ).soft.clear();
+			tc.assertEqual( "000000999", tiered.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Clean up moves values out of sparse segments" )
+		public void diskTier_CleanUpMovesValuesOutOfSparseSegments( TestCase tc ) {
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).diskTier( Codec.STRING );
+			tiered.disk = new DiskTier<Integer, String>( Codec.STRING, false, new ByteStore( 100L ) );
+			// Fill the first segment, then replace all but the first value
+			for ( int i = 0; i < 11; i++ ) {
+				tiered.put( i, String.format( "%09d", i ) );
+			}
+			for ( int i = 1; i < 11; i++ ) {
+				tiered.put( i, String.format( "%09d", -i ) );
+			}
+			tc.assertTrue( tiered.disk.store.isSparse( tiered.disk.index.get( 0 ).address ) );
+			tiered.cleanUp();
+			tc.assertTrue( tiered.disk.index.get( 0 ).address >= 100L );
+			tiered.map.get( 0 ).soft.clear();
+			tc.assertEqual( "000000000", tiered.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.diskTier(Codec)", desc = "Batch excludes restored keys" )
+		public void diskTier_BatchExcludesRestoredKeys( TestCase tc ) {
+			List<Collection<Integer>> batches = new ArrayList<Collection<Integer>>();
+			Cache<Integer, String> tiered = new Cache<Integer, String>( new Counter() ).diskTier( Codec.STRING )
+				.batchBuilder( (keys) -> {
+					batches.add( new ArrayList<Integer>( keys ) );
+					Map<Integer, String> result = new HashMap<Integer, String>();
+					keys.forEach( (k) -> result.put( k, "batch" + k ) );
+					return result;
+				});
+			tiered.get( 1 );
+			tiered.map.get( 1 ).soft.clear();
+			Map<Integer, String> values = tiered.getAll( Arrays.asList( 1, 2, 3 ) );
+			tc.assertEqual( "1:1", values.get( 1 ) );
+			tc.assertEqual( Arrays.asList( 2, 3 ), batches.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public void Cache.cleanUp()", desc = "Removes expired entries", weight = 2 )
+		public void cleanUp_RemovesExpiredEntries( TestCase tc ) {
+			cache.maximumSize( 100 ).expireAfterWrite( 10L, TimeUnit.MILLISECONDS );
+			for ( int i = 0; i < 50; i++ ) {
+				cache.get( i );
+			}
+			sleep( 2200L );
+			cache.cleanUp();
+			tc.assertTrue( cache.map.isEmpty() && cache.bounded.weight() == 0L );
+		}
+
+		private static final Codec<Integer> INTEGER = new Codec<Integer>() {
+			@Override
+			public byte[] encode( Integer value ) {
+				return value.toString().getBytes();
+			}
+			
+			@Override
+			public Integer decode( byte[] bytes ) {
+				return Integer.valueOf( new String( bytes ) );
+			}
+		};
+
+		@Test.Impl( src = "public Cache Cache.snapshotOnShutdown(String, int, Codec, Codec)", desc = "Throws AssertionError for empty name" )
+		public void snapshotOnShutdown_ThrowsAssertionerrorForEmptyName( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.snapshotOnShutdown( "", 10, INTEGER, null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.snapshotOnShutdown(String, int, Codec, Codec)", desc = "Throws AssertionError for non positive count" )
+		public void snapshotOnShutdown_ThrowsAssertionerrorForNonPositiveCount( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.snapshotOnShutdown( "CacheTest", 0, INTEGER, null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.snapshotOnShutdown(String, int, Codec, Codec)", desc = "Throws AssertionError for null key codec" )
+		public void snapshotOnShutdown_ThrowsAssertionerrorForNullKeyCodec( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.snapshotOnShutdown( "CacheTest", 10, null, null );
+		}
+
+		@Test.Impl( src = "public Cache Cache.snapshotOnShutdown(String, int, Codec, Codec)", desc = "Returns this cache" )
+		public void snapshotOnShutdown_ReturnsThisCache( TestCase tc ) {
+			tc.assertTrue( cache == cache.snapshotOnShutdown( "CacheTest", 10, INTEGER, null ) );
+		}
+
+		@Test.Impl( src = "public void Cache.snapshot()", desc = "Throws AssertionError when not configured" )
+		public void snapshot_ThrowsAssertionerrorWhenNotConfigured( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.snapshot();
+		}
+
+		@Test.Impl( src = "public void Cache.snapshot()", desc = "Saves hottest keys" )
+		public void snapshot_SavesHottestKeys( TestCase tc ) {
+			Cache<Integer, String> before = new Cache<Integer, String>( new Counter() ).maximumSize( 100 )
+				.snapshotOnShutdown( "CacheHot", 1, INTEGER, null );
+			for ( int i = 0; i < 50; i++ ) {
+				before.get( i );
+			}
+			for ( int i = 0; i < 10; i++ ) {
+				before.get( 7 );
+			}
+			before.snapshot();
+			
+			Cache<Integer, String> after = new Cache<Integer, String>( new Counter() ).maximumSize( 100 )
+				.snapshotOnShutdown( "CacheHot", 1, INTEGER, null );
+			after.warmStart().join();
+			tc.assertEqual( Collections.singleton( 7 ), after.map.keySet() );
+		}
+
+		@Test.Impl( src = "public void Cache.snapshot()", desc = "Saves at most count keys" )
+		public void snapshot_SavesAtMostCountKeys( TestCase tc ) {
+			cache.snapshotOnShutdown( "CacheCount", 10, INTEGER, null );
+			for ( int i = 0; i < 50; i++ ) {
+				cache.get( i );
+			}
+			cache.snapshot();
+			
+			Cache<Integer, String> after = new Cache<Integer, String>( new Counter() )
+				.snapshotOnShutdown( "CacheCount", 10, INTEGER, null );
+			after.warmStart().join();
+			tc.assertEqual( 10, after.map.size() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Throws AssertionError when not configured" )
+		public void warmStart_ThrowsAssertionerrorWhenNotConfigured( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.warmStart();
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Completes immediately without snapshot" )
+		public void warmStart_CompletesImmediatelyWithoutSnapshot( TestCase tc ) {
+			new LocalDir().sub( "cache" ).getFile( "CacheNone", LocalDir.Type.DATA ).delete();
+			cache.snapshotOnShutdown( "CacheNone", 10, INTEGER, null );
+			tc.assertTrue( cache.warmStart().isDone() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Restores saved values without build" )
+		public void warmStart_RestoresSavedValuesWithoutBuild( TestCase tc ) {
+			Cache<Integer, String> before = new Cache<Integer, String>( new Counter() )
+				.snapshotOnShutdown( "CacheValues", 100, INTEGER, Codec.STRING );
+			for ( int i = 0; i < 20; i++ ) {
+				before.get( i );
+			}
+			before.snapshot();
+			
+			Counter counter = new Counter();
+			Cache<Integer, String> after = new Cache<Integer, String>( counter )
+				.snapshotOnShutdown( "CacheValues", 100, INTEGER, Codec.STRING );
+			after.warmStart().join();
+			tc.assertEqual( "7:8", after.get( 7 ) );
+			tc.assertEqual( 0, counter.builds.get() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Builds saved keys" )
+		public void warmStart_BuildsSavedKeys( TestCase tc ) {
+			Cache<Integer, String> before = new Cache<Integer, String>( new Counter() )
+				.snapshotOnShutdown( "CacheKeys", 100, INTEGER, null );
+			for ( int i = 0; i < 20; i++ ) {
+				before.get( i );
+			}
+			before.snapshot();
+			
+			Counter counter = new Counter();
+			Cache<Integer, String> after = new Cache<Integer, String>( counter )
+				.snapshotOnShutdown( "CacheKeys", 100, INTEGER, null );
+			after.warmStart().join();
+			tc.assertEqual( 20, counter.builds.get() );
+			tc.assertEqual( 0L, after.stats().hitCount() );
+			after.get( 7 );
+			tc.assertEqual( 1L, after.stats().hitCount() );
+		}
 
-	/** A SoftReference that also holds the key */
-	private static final class SoftRef<K, V> extends SoftReference<V> {
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Batch builder called for saved keys" )
+		public void warmStart_BatchBuilderCalledForSavedKeys( TestCase tc ) {
+			Cache<Integer, String> before = new Cache<Integer, String>( new Counter() )
+				.snapshotOnShutdown( "CacheBatch", 100, INTEGER, null );
+			for ( int i = 0; i < 100; i++ ) {
+				before.get( i );
+			}
+			before.snapshot();
+			
+			MyBatchBuilder batch = new MyBatchBuilder();
+			Cache<Integer, String> after = new Cache<Integer, String>( new Counter() )
+				.batchBuilder( batch )
+				.snapshotOnShutdown( "CacheBatch", 100, INTEGER, null );
+			after.warmStart().join();
+			tc.assertEqual( 100, after.map.size() );
+			tc.assertEqual( 2, batch.batches.size() );
+		}
 
-		private final K key;
+		@Test.Impl( src = "public CompletableFuture Cache.warmStart()", desc = "Failed build does not fail warm start" )
+		public void warmStart_FailedBuildDoesNotFailWarmStart( TestCase tc ) {
+			Cache<Integer, String> before = new Cache<Integer, String>( new Counter() )
+				.snapshotOnShutdown( "CacheFail", 100, INTEGER, null );
+			for ( int i = 0; i < 10; i++ ) {
+				before.get( i );
+			}
+			before.snapshot();
+			
+			Cache<Integer, String> after = new Cache<Integer, String>( (k) -> {
+				if ( k == 3 ) {
+					throw new AppException( "Backend down" );
+				}
+				return "[" + k + "]";
+			}).snapshotOnShutdown( "CacheFail", 100, INTEGER, null );
+			after.warmStart().join();
+			tc.assertEqual( 9, after.map.size() );
+		}
 
-		SoftRef( K key, V value, ReferenceQueue<V> rq ) {
-			super( value, rq );
-			this.key = Assert.nonNull( key );
+		private static Cache<String, String> tenants() {
+			Cache<String, String> sorted = Cache.sorted( (k) -> "[" + k + "]" );
+			for ( String tenant : new String[] { "acme", "globex", "initech" } ) {
+				for ( int i = 0; i < 10; i++ ) {
+					sorted.get( tenant + "/" + i );
+				}
+			}
+			return sorted;
 		}
-	}
 
+		@Test.Impl( src = "public Cache Cache.sorted(Cache.Builder)", desc = "Null Builder throws Assertion Error" )
+		public void sorted_NullBuilderThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			Cache.sorted( null );
+		}
 
-	/** The builder that creates objects for this cache. **/
-	private final Builder<K, V> builder;
+		@Test.Impl( src = "public Cache Cache.sorted(Cache.Builder)", desc = "Supports range operations" )
+		public void sorted_SupportsRangeOperations( TestCase tc ) {
+			tc.assertEqual( 10L, tenants().streamRange( "globex/", "globex0" ).count() );
+		}
 
-	/** Maintains hard references to SoftReferece objects whose referent has been collected */
-	private final ReferenceQueue<V> rq;
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Throws AssertionError when not sorted" )
+		public void streamRange_ThrowsAssertionerrorWhenNotSorted( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.streamRange( 1, 10 );
+		}
 
-	/** The contents of the cache are stored here. **/
-	private final SortedMap<K, SoftRef<K, V>> map;
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Throws AssertionError for null bound" )
+		public void streamRange_ThrowsAssertionerrorForNullBound( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			tenants().streamRange( null, "b" );
+		}
 
-	/** Construct */
-	@Decl( "Null Builder throws Assertion Error" )
-	public Cache( Builder<K, V> builder ) {
-		this.builder = Assert.nonNull( builder );
-		this.rq = new ReferenceQueue<V>();
-		this.map = new TreeMap<K, SoftRef<K, V>>();
-	}
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Throws AssertionError for reversed bounds" )
+		public void streamRange_ThrowsAssertionerrorForReversedBounds( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			tenants().streamRange( "b", "a" );
+		}
 
-	/**
-	 * Return the value corresponding to the given key. If the value is not currently
-	 * held the associated builder is used to construct an instance.
-	 * 
-	 * @param key
-	 * @return
-	 * @throws AppException		If the builder is unable to construct the value.
-	 */
-	@Decl( "Null key throws Assertion Error" )
-	@Decl( "Values are not null" )
-	@Decl( "From empty cache returns valid object" )
-	@Decl( "Stored uncolllectable object returns same object" )
-	@Decl( "Put Get stress test" )
-	@Decl( "Multi thread stress test" )
-	public V get( K key ) throws AppException {
-		Assert.nonNull( key );
-		V value = null;
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Streams held entries in key order" )
+		public void streamRange_StreamsHeldEntriesInKeyOrder( TestCase tc ) {
+			List<String> keys = new ArrayList<String>();
+			tenants().streamRange( "acme/", "globex/3" ).forEach( (e) -> keys.add( e.getKey() ) );
+			List<String> sorted = new ArrayList<String>( keys );
+			Collections.sort( sorted );
+			tc.assertEqual( 13, keys.size() );
+			tc.assertEqual( sorted, keys );
+		}
 
-		synchronized ( this.map ) {
-			SoftRef<K, V> sr = this.map.get( key );
-			value = (sr == null) ? null : sr.get();
-			
-			this.flushQueue();
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Excludes upper bound" )
+		public void streamRange_ExcludesUpperBound( TestCase tc ) {
+			tc.assertEqual( 0L, tenants().streamRange( "acme/0", "acme/0" ).count() );
+		}
 
-			if ( value == null ) {
-				value = this.builder.make( key );
-				this.map.put( key, new SoftRef<K, V>( key, value, this.rq ) );
-			}
+		@Test.Impl( src = "public Stream Cache.streamRange(Object, Object)", desc = "Does not build missing keys" )
+		public void streamRange_DoesNotBuildMissingKeys( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			long loads = sorted.stats().loadSuccessCount();
+			sorted.streamRange( "a", "z" ).count();
+			tc.assertEqual( loads, sorted.stats().loadSuccessCount() );
 		}
 
-		return Assert.nonNull( value );
-	}
+		@Test.Impl( src = "public int Cache.invalidateRange(Object, Object)", desc = "Throws AssertionError when not sorted" )
+		public void invalidateRange_ThrowsAssertionerrorWhenNotSorted( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.invalidateRange( 1, 10 );
+		}
 
-	/**
-	 * Store a key-value pair. Values are held via a soft reference and may be collected.
-	 * 
-	 * @param key
-	 * @param value
-	 */
-	@Decl( "Null key throws Assertion Error" )
-	@Decl( "Null value throws Assertion Error" )
-	public void put( K key, V value ) {
-		Assert.nonNull( key );
-		Assert.nonNull( value );
+		@Test.Impl( src = "public int Cache.invalidateRange(Object, Object)", desc = "Removes keys in range" )
+		public void invalidateRange_RemovesKeysInRange( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			tc.assertEqual( 10, sorted.invalidateRange( "globex/", "globex0" ) );
+			tc.assertEqual( 0L, sorted.streamRange( "globex/", "globex0" ).count() );
+		}
 
-		synchronized ( this.map ) {
-			this.flushQueue();
-			this.map.put( key, new SoftRef<K, V>( key, value, this.rq ) );
+		@Test.Impl( src = "public int Cache.invalidateRange(Object, Object)", desc = "Keeps keys outside range" )
+		public void invalidateRange_KeepsKeysOutsideRange( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			sorted.invalidateRange( "globex/", "globex0" );
+			tc.assertEqual( 20, sorted.map.size() );
 		}
-	}
-	
-	/**
-	 * Remove all associations.
-	 */
-	// How important is this? To test need a custom value that has some non-reconstructed state
-	//@Decl( "Then get() retrieves distinct instance" )
-	@Decl( "Then get() retrieves equivalent value" )
-	@Decl( "Cache empty after" )
-	public void flush() {
-		synchronized ( this.map ) {
-			this.map.clear();
+
+		@Test.Impl( src = "public int Cache.invalidateRange(Object, Object)", desc = "Bounded cache weight is reduced" )
+		public void invalidateRange_BoundedCacheWeightIsReduced( TestCase tc ) {
+			Cache<Integer, String> sorted = Cache.sorted( new Counter() ).maximumSize( 100 );
+			for ( int i = 0; i < 50; i++ ) {
+				sorted.get( i );
+			}
+			sorted.invalidateRange( 10, 20 );
+			tc.assertEqual( 40L, sorted.bounded.weight() );
 		}
-		
-	}
 
-	/**
-	 * Queue contains references whose referents have been collected.
-	 * Remove these keys from the map.
-	 * 
-	 * Only called when lock on map is held.
-	 */
-	@SuppressWarnings("unchecked")
-	private void flushQueue() {
-		SoftRef<K, V> sr = null;
-		while ( (sr = (SoftRef<K, V>) this.rq.poll()) != null ) {
-			this.map.remove( sr.key );
+		@Test.Impl( src = "public int Cache.invalidateRange(Object, Object)", desc = "Removes saved values" )
+		public void invalidateRange_RemovesSavedValues( TestCase tc ) {
+			Counter counter = new Counter();
+			Cache<Integer, String> sorted = Cache.sorted( counter ).maximumSize( 10 ).diskTier( Codec.STRING );
+			for ( int i = 0; i < 100; i++ ) {
+				sorted.get( i );
+			}
+			sorted.invalidateRange( 0, 100 );
+			tc.assertEqual( "5:101", sorted.get( 5 ) );
 		}
-	}
 
-	@Override
-	@Test.Decl( "Result is not null" )
-	@Test.Decl( "Result is not empty" )
-	public String toString() {
-		return "Cache(" + this.map.size() + " keys)";
-	}
+		@Test.Impl( src = "public int Cache.invalidatePrefix(String)", desc = "Throws AssertionError for null prefix" )
+		public void invalidatePrefix_ThrowsAssertionerrorForNullPrefix( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			tenants().invalidatePrefix( null );
+		}
 
-	
-	
-	
-	
-	public static class Container implements TestContainer {
+		@Test.Impl( src = "public int Cache.invalidatePrefix(String)", desc = "Removes keys with prefix" )
+		public void invalidatePrefix_RemovesKeysWithPrefix( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			tc.assertEqual( 10, sorted.invalidatePrefix( "initech/" ) );
+			tc.assertEqual( 0L, sorted.streamRange( "initech", "initech0" ).count() );
+		}
 
-		@Override
-		public Class<?> subjectClass() {
-			return Cache.class;
+		@Test.Impl( src = "public int Cache.invalidatePrefix(String)", desc = "Keeps other keys" )
+		public void invalidatePrefix_KeepsOtherKeys( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			sorted.get( "acm" );
+			sorted.get( "acmf" );
+			sorted.invalidatePrefix( "acme" );
+			tc.assertEqual( 22, sorted.map.size() );
 		}
 
-		private static class MyBuilder implements Builder<Integer, String> {
-			@Override
-			public String make( Integer key ) throws AppException {
-				return Strings.rightJustify( key.toString(), 50, '_' );
-			}
+		@Test.Impl( src = "public int Cache.invalidatePrefix(String)", desc = "Empty prefix removes all" )
+		public void invalidatePrefix_EmptyPrefixRemovesAll( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			tc.assertEqual( 30, sorted.invalidatePrefix( "" ) );
 		}
-		
-		private static class Agent extends Thread {
-			private static int ITERATIONS = 100;		// Stress: 1000
-			private static int MAXIMUM = 1000;			// Stress: 10000
-			private static Cache<Integer, String> cache = new Cache<Integer, String>( new MyBuilder() );
-			private static void dispose() {
-				Agent.cache.flush();
-				Agent.cache = null;
-			}
-			
+
+		@Test.Impl( src = "public int Cache.invalidatePrefix(String)", desc = "Handles maximal character" )
+		public void invalidatePrefix_HandlesMaximalCharacter( TestCase tc ) {
+			Cache<String, String> sorted = tenants();
+			String max = "acme" + Character.MAX_VALUE;
+			sorted.get( max );
+			sorted.get( max + "x" );
+			tc.assertEqual( 2, sorted.invalidatePrefix( max ) );
+			tc.assertEqual( 30, sorted.map.size() );
+		}
+
+		// Fails until told otherwise, counting attempts
+		private static class Flaky implements Builder<Integer, String> {
+			private final AtomicInteger attempts = new AtomicInteger();
+			private volatile boolean down = true;
 			@Override
-			public void run() {
-				for ( int i = 0; i < ITERATIONS; i++ ) {
-					cache.get( (int) (Math.random() * MAXIMUM) );
-					cache.put( i,  "[" + i + "]" );
-					Thread.yield();
+			public String make( Integer key ) throws AppException {
+				this.attempts.incrementAndGet();
+				if ( this.down ) {
+					throw new AppException( "Backend down" );
 				}
-			}
-			
-			public Thread init() {
-				this.start();
-				return this;
+				return "[" + key + "]";
 			}
 		}
 		
-		private Cache<Integer, String> cache;
-		
-		@Override
-		public Procedure beforeEach() {
-			return new Procedure() {
-				@Override
-				public void call() {
-					cache = new Cache<Integer, String>( new MyBuilder() );
-				}
-				
-			};
+		private static AppException failure( Cache<Integer, String> cache, Integer key ) {
+			try {
+				cache.get( key );
+			} catch ( AppException e ) {
+				return e;
+			}
+			return null;
 		}
-		
-		@Override
-		public Procedure afterEach() {
-			return new Procedure() {
-				@Override
-				public void call() {
-					cache.flush();
-					cache = null;
-				}
-			};
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Throws AssertionError for non positive initial" )
+		public void failureBackoff_ThrowsAssertionerrorForNonPositiveInitial( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.failureBackoff( 0L, 1L, TimeUnit.SECONDS );
 		}
-		
-		@Test.Impl( src = "public Cache(Cache.Builder)", desc = "Null Builder throws Assertion Error" )
-		public void Cache_NullBuilderThrowsAssertionError( TestCase tc ) {
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Throws AssertionError for maximum less than initial" )
+		public void failureBackoff_ThrowsAssertionerrorForMaximumLessThanInitial( TestCase tc ) {
 			tc.expectError( AssertionError.class );
-			new Cache<String, String>( null );
+			cache.failureBackoff( 2L, 1L, TimeUnit.SECONDS );
 		}
 
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "From empty cache returns valid object" )
-		public void get_FromEmptyCacheReturnsValidObject( TestCase tc ) {
-			tc.assertEqual( "_________________________________________________0", 
-				cache.get(0)
-			);
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Fails fast with cached exception" )
+		public void failureBackoff_FailsFastWithCachedException( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky ).failureBackoff( 10L, 60L, TimeUnit.SECONDS );
+			AppException first = failure( guarded, 42 );
+			AppException second = failure( guarded, 42 );
+			tc.assertTrue( first != null && first == second );
+			tc.assertEqual( 1, flaky.attempts.get() );
 		}
 
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "Multi thread stress test", weight = 10 )
-		public void get_MultiThreadStressTest( TestCase tc ) {
-			tc.afterThis( new Procedure() {
-				public void call() { Agent.dispose(); }
-			});
-			ArrayList<Thread> agents = new ArrayList<Thread>();
-			for ( int i = 0; i < 5; i++ ) {
-				agents.add( new Agent().init() );
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Retries after backoff" )
+		public void failureBackoff_RetriesAfterBackoff( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky ).failureBackoff( 50L, 1000L, TimeUnit.MILLISECONDS );
+			failure( guarded, 42 );
+			flaky.down = false;
+			sleep( 100L );
+			tc.assertEqual( "[42]", guarded.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Backoff doubles on repeated failure" )
+		public void failureBackoff_BackoffDoublesOnRepeatedFailure( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky ).failureBackoff( 100L, 10000L, TimeUnit.MILLISECONDS );
+			failure( guarded, 42 );
+			sleep( 150L );
+			failure( guarded, 42 );
+			// Second backoff is 200 ms
+			sleep( 150L );
+			failure( guarded, 42 );
+			tc.assertEqual( 2, flaky.attempts.get() );
+			sleep( 100L );
+			failure( guarded, 42 );
+			tc.assertEqual( 3, flaky.attempts.get() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Backoff is capped at maximum" )
+		public void failureBackoff_BackoffIsCappedAtMaximum( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky ).failureBackoff( 50L, 50L, TimeUnit.MILLISECONDS );
+			for ( int i = 0; i < 4; i++ ) {
+				failure( guarded, 42 );
+				sleep( 70L );
 			}
-			for ( Thread thread : agents ) {
-				try {
-					thread.join();
-				} catch ( InterruptedException e ) {
-					e.printStackTrace();
-				}
+			tc.assertEqual( 4, flaky.attempts.get() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Success clears failure" )
+		public void failureBackoff_SuccessClearsFailure( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky ).failureBackoff( 50L, 1000L, TimeUnit.MILLISECONDS );
+			failure( guarded, 42 );
+			flaky.down = false;
+			sleep( 100L );
+			guarded.get( 42 );
+			tc.assertTrue( guarded.failures.isEmpty() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.failureBackoff(long, long, TimeUnit)", desc = "Batch excludes keys backing off" )
+		public void failureBackoff_BatchExcludesKeysBackingOff( TestCase tc ) {
+			Flaky flaky = new Flaky();
+			MyBatchBuilder batch = new MyBatchBuilder();
+			Cache<Integer, String> guarded = new Cache<Integer, String>( flaky )
+				.batchBuilder( batch )
+				.failureBackoff( 10L, 60L, TimeUnit.SECONDS );
+			AppException cached = failure( guarded, 1 );
+			try {
+				guarded.getAll( Arrays.asList( 1, 2, 3 ) );
+				tc.fail();
+			} catch ( AppException e ) {
+				tc.assertTrue( e == cached );
 			}
-			// Very simplistic test of concurrency. Should add consistency checking?
-			tc.assertTrue( true );
+			tc.assertEqual( Arrays.asList( 2, 3 ), batch.batches.get( 0 ) );
 		}
 
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "Null key throws Assertion Error" )
-		public void get_NullKeyThrowsAssertionError( TestCase tc ) {
-			tc.expectError( AssertionError.class );
-			cache.get( null );
+		@Test.Impl( src = "public void Cache.cleanUp()", desc = "Removes stale failures" )
+		public void cleanUp_RemovesStaleFailures( TestCase tc ) {
+			Cache<Integer, String> guarded = new Cache<Integer, String>( new Flaky() ).failureBackoff( 10L, 20L, TimeUnit.MILLISECONDS );
+			failure( guarded, 42 );
+			sleep( 100L );
+			guarded.cleanUp();
+			tc.assertTrue( guarded.failures.isEmpty() );
 		}
 
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "Put Get stress test", weight = 10 )
-		public void get_PutGetStressTest( TestCase tc ) {
-			LinkedList<String> values = new LinkedList<String>();
-			int i;
-			for ( i = 0; i < 10000; i++ ) {
-				values.add( cache.get( 713 * i -12345 ) );
+		// Calls get for each key on its own thread, all released together
+		private static List<Thread> missing( Cache<Integer, String> cache, Integer... keys ) {
+			CountDownLatch start = new CountDownLatch( 1 );
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( Integer key : keys ) {
+				Thread thread = new Thread( () -> {
+					try { start.await(); } catch ( InterruptedException e ) {}
+					cache.get( key );
+				});
+				thread.start();
+				threads.add( thread );
 			}
-			cache.flush();
-			i = 0;
-			for ( String s : values ) {
-				cache.put( i++, s );
+			start.countDown();
+			return threads;
+		}
+		
+		private static void join( List<Thread> threads ) {
+			for ( Thread thread : threads ) {
+				try { thread.join(); } catch ( InterruptedException e ) {}
 			}
-			boolean getIsConsistent = true;
-			i = 0;
-			for ( String s : values ) {
-				getIsConsistent &= s.equals( cache.get(i++) );
-			}			
-			tc.assertTrue( getIsConsistent );
 		}
 
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "Stored uncolllectable object returns same object", weight = 10 )
-		public void get_StoredUncolllectableObjectReturnsSameObject( TestCase tc ) {
-			cache = new Cache<Integer, String>( (x) -> Strings.rightJustify( x.toString(), 100000, '_' ) );
-			int curSize = cache.map.size();  // Should be 0
-			int i = 42;
-			String strongReference = cache.get(i++); // Can't be collected; size() now 1
-			while ( cache.map.size() > curSize ) {  // Size decreases after GC
-				curSize = cache.map.size();
-				for ( int j = 0; j < 100; j++ ) {  // Fill cache
-					cache.get( i++ );
-				}
-			}
-			// Some objects have been GC'd, but not our strongly held value
-			tc.assertTrue( strongReference == cache.get(42) );
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Throws AssertionError without batch builder" )
+		public void coalesceMisses_ThrowsAssertionerrorWithoutBatchBuilder( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.coalesceMisses( 2L, TimeUnit.MILLISECONDS, 256 );
 		}
 
-		@Test.Impl( src = "public void Cache.put(Comparable, Object)", desc = "Null key throws Assertion Error" )
-		public void put_NullKeyThrowsAssertionError( TestCase tc ) {
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Throws AssertionError for non positive window" )
+		public void coalesceMisses_ThrowsAssertionerrorForNonPositiveWindow( TestCase tc ) {
+			cache.batchBuilder( new MyBatchBuilder() );
 			tc.expectError( AssertionError.class );
-			cache.put( null,  "Foo" );
+			cache.coalesceMisses( 0L, TimeUnit.MILLISECONDS, 256 );
 		}
 
-		@Test.Impl( src = "public void Cache.put(Comparable, Object)", desc = "Null value throws Assertion Error" )
-		public void put_NullValueThrowsAssertionError( TestCase tc ) {
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Throws AssertionError for non positive max keys" )
+		public void coalesceMisses_ThrowsAssertionerrorForNonPositiveMaxKeys( TestCase tc ) {
+			cache.batchBuilder( new MyBatchBuilder() );
 			tc.expectError( AssertionError.class );
-			cache.put( 42,  null );
+			cache.coalesceMisses( 2L, TimeUnit.MILLISECONDS, 0 );
 		}
-		
-		@Test.Impl( src = "public Object Cache.get(Comparable)", desc = "Values are not null" )
-		public void get_ValuesAreNotNull( TestCase tc ) {
-			tc.assertTrue( cache.get(42) != null );
+
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Concurrent misses built together" )
+		public void coalesceMisses_ConcurrentMissesBuiltTogether( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch ).coalesceMisses( 500L, TimeUnit.MILLISECONDS, 256 );
+			join( missing( cache, 1, 2, 3, 4, 5 ) );
+			tc.assertEqual( 1, batch.batches.size() );
+			tc.assertEqual( 5, batch.batches.get( 0 ).size() );
+			tc.assertEqual( "[3]", cache.get( 3 ) );
 		}
 
-		@Test.Impl( src = "public void Cache.flush()", desc = "Cache empty after" )
-		public void flush_CacheEmptyAfter( TestCase tc ) {
-			for ( int i = 0; i < 1000; i++ ) {
-				cache.get(i);
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Full batch built without waiting" )
+		public void coalesceMisses_FullBatchBuiltWithoutWaiting( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch ).coalesceMisses( 10L, TimeUnit.SECONDS, 4 );
+			long start = System.nanoTime();
+			join( missing( cache, 1, 2, 3, 4 ) );
+			tc.assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 5L ) );
+			tc.assertEqual( 1, batch.batches.size() );
+			tc.assertEqual( 4, batch.batches.get( 0 ).size() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Single miss built after window" )
+		public void coalesceMisses_SingleMissBuiltAfterWindow( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch ).coalesceMisses( 50L, TimeUnit.MILLISECONDS, 256 );
+			long start = System.nanoTime();
+			tc.assertEqual( "[7]", cache.get( 7 ) );
+			tc.assertTrue( System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50L ) );
+			tc.assertEqual( Arrays.asList( 7 ), batch.batches.get( 0 ) );
+		}
+
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Asynchronous misses built together" )
+		public void coalesceMisses_AsynchronousMissesBuiltTogether( TestCase tc ) {
+			MyBatchBuilder batch = new MyBatchBuilder();
+			cache.batchBuilder( batch ).coalesceMisses( 100L, TimeUnit.MILLISECONDS, 256 );
+			CompletableFuture<String> first = cache.getAsync( 1 );
+			CompletableFuture<String> second = cache.getAsync( 2 );
+			tc.assertEqual( "[1]", first.join() );
+			tc.assertEqual( "[2]", second.join() );
+			tc.assertEqual( 1, batch.batches.size() );
+		}
+
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Open window does not keep cache reachable" )
+		public void coalesceMisses_OpenWindowDoesNotKeepCacheReachable( TestCase tc ) throws InterruptedException {
+			List<WeakReference<Cache<Integer, String>>> refs = new ArrayList<WeakReference<Cache<Integer, String>>>();
+			CompletableFuture<String> pending = this.openWindow( refs );
+			for ( int i = 0; i < 50 && refs.get( 0 ).get() != null; i++ ) {
+				System.gc();
+				Thread.sleep( 20L );
 			}
-			cache.flush();
-			tc.assertEqual( cache.map.size(), 0 );
+			tc.assertTrue( refs.get( 0 ).get() == null );
+			boolean failed = false;
+			try {
+				pending.join();
+			} catch ( CompletionException e ) {
+				failed = e.getCause() instanceof AppException;
+			}
+			tc.assertTrue( failed );
 		}
 
-		@Test.Impl( src = "public void Cache.flush()", desc = "Then get() retrieves equivalent value" )
-		public void flush_ThenGetRetrievesEquivalentValue( TestCase tc ) {
-			String orig = cache.get( 42 );
-			cache.flush();
-			tc.assertEqual( orig ,  cache.get(42) );
+		/* A miss in the open window of a cache that is then dropped */
+		private CompletableFuture<String> openWindow( List<WeakReference<Cache<Integer, String>>> refs ) {
+			Cache<Integer, String> dropped = new Cache<Integer, String>( new Counter() )
+				.batchBuilder( new MyBatchBuilder() ).coalesceMisses( 1L, TimeUnit.SECONDS, 256 );
+			refs.add( new WeakReference<Cache<Integer, String>>( dropped ) );
+			return dropped.getAsync( 1 );
+		}
+
+		@Test.Impl( src = "public Cache Cache.coalesceMisses(long, TimeUnit, int)", desc = "Batch failure fails waiting requests" )
+		public void coalesceMisses_BatchFailureFailsWaitingRequests( TestCase tc ) {
+			cache.batchBuilder( (keys) -> { throw new AppException( "Backend down" ); } )
+				.coalesceMisses( 100L, TimeUnit.MILLISECONDS, 256 );
+			CompletableFuture<String> first = cache.getAsync( 1 );
+			CompletableFuture<String> second = cache.getAsync( 2 );
+			int failed = 0;
+			for ( CompletableFuture<String> future : Arrays.asList( first, second ) ) {
+				try {
+					future.join();
+				} catch ( CompletionException e ) {
+					failed += e.getCause() instanceof AppException ? 1 : 0;
+				}
+			}
+			tc.assertEqual( 2, failed );
 		}
 
 		@Test.Impl( src = "public String Cache.toString()", desc = "Result is not empty" )
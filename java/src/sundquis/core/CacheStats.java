@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import sundquis.core.Test.Decl;
+
+/**
+ * Immutable snapshot of the counters maintained by a {@link Cache}.
+ *
+ * Counts are cumulative from the construction of the cache; use {@link #minus(CacheStats)}
+ * to obtain the activity over an interval.
+ */
+public final class CacheStats {
+
+	private final long hitCount;
+
+	private final long missCount;
+
+	private final long loadSuccessCount;
+
+	private final long loadFailureCount;
+
+	// Nanoseconds spent in Builder.make, successful or not
+	private final long totalLoadTime;
+
+	private final long evictionCount;
+
+	// Soft references whose referent was collected
+	private final long collectedCount;
+
+	/** Construct a snapshot; all counts must be non-negative */
+	@Decl( "Throws AssertionError for negative count" )
+	public CacheStats( long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+			long totalLoadTime, long evictionCount, long collectedCount ) {
+		Assert.isTrue( hitCount >= 0 && missCount >= 0 && loadSuccessCount >= 0 && loadFailureCount >= 0 );
+		Assert.isTrue( totalLoadTime >= 0 && evictionCount >= 0 && collectedCount >= 0 );
+
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.loadSuccessCount = loadSuccessCount;
+		this.loadFailureCount = loadFailureCount;
+		this.totalLoadTime = totalLoadTime;
+		this.evictionCount = evictionCount;
+		this.collectedCount = collectedCount;
+	}
+
+	/** Number of lookups that found a value */
+	@Test.Skip
+	public long hitCount() {
+		return this.hitCount;
+	}
+
+	/** Number of lookups that did not find a value */
+	@Test.Skip
+	public long missCount() {
+		return this.missCount;
+	}
+
+	/** Number of values successfully made by the builder */
+	@Test.Skip
+	public long loadSuccessCount() {
+		return this.loadSuccessCount;
+	}
+
+	/** Number of times the builder threw */
+	@Test.Skip
+	public long loadFailureCount() {
+		return this.loadFailureCount;
+	}
+
+	/** Total nanoseconds spent making values */
+	@Test.Skip
+	public long totalLoadTime() {
+		return this.totalLoadTime;
+	}
+
+	/** Number of entries removed by the eviction policy */
+	@Test.Skip
+	public long evictionCount() {
+		return this.evictionCount;
+	}
+
+	/** Number of soft references found collected */
+	@Test.Skip
+	public long collectedCount() {
+		return this.collectedCount;
+	}
+
+	/** Total number of lookups */
+	@Decl( "Is sum of hits and misses" )
+	public long requestCount() {
+		return this.hitCount + this.missCount;
+	}
+
+	/** Fraction of lookups that found a value; 1.0 when there have been no lookups */
+	@Decl( "Is one when no requests" )
+	@Decl( "Is ratio of hits to requests" )
+	public double hitRate() {
+		long requests = this.requestCount();
+		return requests == 0L ? 1.0 : (double) this.hitCount / requests;
+	}
+
+	/** Average nanoseconds per load; 0.0 when there have been no loads */
+	@Decl( "Is zero when no loads" )
+	@Decl( "Includes failed loads" )
+	public double averageLoadPenalty() {
+		long loads = this.loadSuccessCount + this.loadFailureCount;
+		return loads == 0L ? 0.0 : (double) this.totalLoadTime / loads;
+	}
+
+	/**
+	 * The activity since an earlier snapshot. Negative differences are reported as zero.
+	 *
+	 * @param earlier
+	 * @return
+	 */
+	@Decl( "Throws AssertionError for null" )
+	@Decl( "Is difference of counts" )
+	public CacheStats minus( CacheStats earlier ) {
+		Assert.nonNull( earlier );
+
+		return new CacheStats(
+			Math.max( 0L, this.hitCount - earlier.hitCount ),
+			Math.max( 0L, this.missCount - earlier.missCount ),
+			Math.max( 0L, this.loadSuccessCount - earlier.loadSuccessCount ),
+			Math.max( 0L, this.loadFailureCount - earlier.loadFailureCount ),
+			Math.max( 0L, this.totalLoadTime - earlier.totalLoadTime ),
+			Math.max( 0L, this.evictionCount - earlier.evictionCount ),
+			Math.max( 0L, this.collectedCount - earlier.collectedCount )
+		);
+	}
+
+	@Override
+	@Decl( "Indicates hit rate" )
+	public String toString() {
+		return "CacheStats(hits = " + this.hitCount + ", misses = " + this.missCount
+			+ ", hitRate = " + String.format( "%.3f", this.hitRate() )
+			+ ", loads = " + this.loadSuccessCount + ", failures = " + this.loadFailureCount
+			+ ", avgLoadNanos = " + (long) this.averageLoadPenalty()
+			+ ", evictions = " + this.evictionCount + ", collected = " + this.collectedCount + ")";
+	}
+
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return CacheStats.class;
+		}
+
+		private static CacheStats EMPTY = new CacheStats( 0, 0, 0, 0, 0, 0, 0 );
+
+		private static CacheStats SOME = new CacheStats( 30, 10, 8, 2, 1000, 5, 7 );
+
+		@Test.Impl( src = "public CacheStats(long, long, long, long, long, long, long)", desc = "Throws AssertionError for negative count" )
+		public void CacheStats_ThrowsAssertionerrorForNegativeCount( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new CacheStats( 0, 0, 0, 0, -1, 0, 0 );
+		}
+
+		@Test.Impl( src = "public long CacheStats.requestCount()", desc = "Is sum of hits and misses" )
+		public void requestCount_IsSumOfHitsAndMisses( TestCase tc ) {
+			tc.assertEqual( 40L, SOME.requestCount() );
+		}
+
+		@Test.Impl( src = "public double CacheStats.hitRate()", desc = "Is one when no requests" )
+		public void hitRate_IsOneWhenNoRequests( TestCase tc ) {
+			tc.assertEqual( 1.0, EMPTY.hitRate() );
+		}
+
+		@Test.Impl( src = "public double CacheStats.hitRate()", desc = "Is ratio of hits to requests" )
+		public void hitRate_IsRatioOfHitsToRequests( TestCase tc ) {
+			tc.assertEqual( 0.75, SOME.hitRate() );
+		}
+
+		@Test.Impl( src = "public double CacheStats.averageLoadPenalty()", desc = "Is zero when no loads" )
+		public void averageLoadPenalty_IsZeroWhenNoLoads( TestCase tc ) {
+			tc.assertEqual( 0.0, EMPTY.averageLoadPenalty() );
+		}
+
+		@Test.Impl( src = "public double CacheStats.averageLoadPenalty()", desc = "Includes failed loads" )
+		public void averageLoadPenalty_IncludesFailedLoads( TestCase tc ) {
+			tc.assertEqual( 100.0, SOME.averageLoadPenalty() );
+		}
+
+		@Test.Impl( src = "public CacheStats CacheStats.minus(CacheStats)", desc = "Throws AssertionError for null" )
+		public void minus_ThrowsAssertionerrorForNull( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			SOME.minus( null );
+		}
+
+		@Test.Impl( src = "public CacheStats CacheStats.minus(CacheStats)", desc = "Is difference of counts" )
+		public void minus_IsDifferenceOfCounts( TestCase tc ) {
+			CacheStats later = new CacheStats( 35, 12, 9, 3, 1500, 6, 10 );
+			CacheStats delta = later.minus( SOME );
+			tc.assertEqual( 5L, delta.hitCount() );
+			tc.assertEqual( 2L, delta.missCount() );
+			tc.assertEqual( 1L, delta.loadSuccessCount() );
+			tc.assertEqual( 1L, delta.loadFailureCount() );
+			tc.assertEqual( 500L, delta.totalLoadTime() );
+			tc.assertEqual( 1L, delta.evictionCount() );
+			tc.assertEqual( 3L, delta.collectedCount() );
+		}
+
+		@Test.Impl( src = "public String CacheStats.toString()", desc = "Indicates hit rate" )
+		public void toString_IndicatesHitRate( TestCase tc ) {
+			tc.assertTrue( SOME.toString().contains( "hitRate = 0.750" ) );
+		}
+
+	}
+
+	public static void main(String[] args) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println("\nDone!");
+	}
+
+}
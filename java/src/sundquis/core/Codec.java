@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts values to and from bytes, for storage outside the heap.
+ *
+ * Decoding the result of {@code encode} must produce a value equivalent to the original.
+ */
+@Test.Skip
+public interface Codec<V> {
+
+	public byte[] encode( V value );
+
+	public V decode( byte[] bytes );
+
+	public static final Codec<String> STRING = new Codec<String>() {
+		@Override
+		public byte[] encode( String value ) {
+			return value.getBytes( StandardCharsets.UTF_8 );
+		}
+
+		@Override
+		public String decode( byte[] bytes ) {
+			return new String( bytes, StandardCharsets.UTF_8 );
+		}
+	};
+
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sundquis.core.Test.Decl;
+
+/**
+ * Concurrent cache of values keyed by {@code long}, with the semantics of {@link Cache}:
+ * values are made by a builder when not held, at most once per key at a time, and are
+ * held via soft references.
+ *
+ * Keys are stored unboxed in an open addressing table with linear probing. Reads do not
+ * lock and a hit allocates nothing. Writes are made under a lock; the table is never
+ * modified in place except to add a key or replace the reference for a key, and grows by
+ * replacement, dropping keys whose values have been collected.
+ */
+public final class LongCache<V> {
+
+	/**
+	 * Makes the value for a key that is not held. A Builder must never make null objects.
+	 */
+	@Test.Skip
+	@FunctionalInterface
+	public interface Builder<V> {
+		public V make( long key ) throws AppException;
+	}
+
+	// Release/acquire access to the references so that a reader sees the key of an occupied slot
+	private static final VarHandle REFS = MethodHandles.arrayElementVarHandle( SoftReference[].class );
+
+	private static final int MIN_CAPACITY = 16;
+
+
+	/** Keys and references; a slot is empty while its reference is null */
+	private static final class Table<V> {
+
+		private final long[] keys;
+
+		private final SoftReference<V>[] refs;
+
+		private final int mask;
+
+		// Occupied slots; guarded by the lock
+		private int size;
+
+		@SuppressWarnings( "unchecked" )
+		Table( int capacity ) {
+			this.keys = new long[ capacity ];
+			this.refs = (SoftReference<V>[]) new SoftReference<?>[ capacity ];
+			this.mask = capacity - 1;
+			this.size = 0;
+		}
+	}
+
+
+	private final Builder<V> builder;
+
+	/** Replaced when the table grows */
+	private volatile Table<V> table;
+
+	/** Values currently being built, at most one per key, and the load statistics */
+	private final Cache.SingleFlight<Long, V> loads;
+
+	/** Guards writes to the table */
+	private final ReentrantLock lock;
+
+	// Statistics not kept by the loads
+	private final LongAdder collected = new LongAdder();
+
+	/** Construct */
+	@Decl( "Null Builder throws Assertion Error" )
+	public LongCache( Builder<V> builder ) {
+		this.builder = Assert.nonNull( builder );
+		this.table = new Table<V>( MIN_CAPACITY );
+		this.loads = new Cache.SingleFlight<Long, V>();
+		this.lock = new ReentrantLock();
+	}
+
+	/**
+	 * Return the value corresponding to the given key. If the value is not currently
+	 * held the builder is used to construct an instance.
+	 *
+	 * @param key
+	 * @return
+	 * @throws AppException		If the builder is unable to construct the value.
+	 */
+	@Decl( "Returns built value" )
+	@Decl( "Held value is not rebuilt" )
+	@Decl( "Accepts zero and negative keys" )
+	@Decl( "Holds many keys" )
+	@Decl( "Collected value is rebuilt" )
+	@Decl( "Builder called once per key under contention" )
+	@Decl( "Failed build is not cached" )
+	@Decl( "Hit allocates nothing" )
+	public V get( long key ) throws AppException {
+		V value = LongCache.find( this.table, key );
+		if ( value == null ) {
+			this.loads.misses.increment();
+			value = this.load( key );
+		} else {
+			this.loads.hits.increment();
+		}
+
+		return Assert.nonNull( value );
+	}
+
+	/**
+	 * Store a key-value pair. Values are held via a soft reference and may be collected.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	@Decl( "Null value throws Assertion Error" )
+	@Decl( "Replaces held value" )
+	public void put( long key, V value ) {
+		Assert.nonNull( value );
+
+		this.store( key, value );
+	}
+
+	private static int hash( long key ) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/* The live value for the key; null if absent or collected */
+	@SuppressWarnings( "unchecked" )
+	private static <V> V find( Table<V> table, long key ) {
+		for ( int i = LongCache.hash( key ) & table.mask; ; i = (i + 1) & table.mask ) {
+			SoftReference<V> ref = (SoftReference<V>) REFS.getAcquire( table.refs, i );
+			if ( ref == null ) {
+				return null;
+			}
+			if ( table.keys[i] == key ) {
+				return ref.get();
+			}
+		}
+	}
+
+	/*
+	 * The first thread to miss on a key registers a future and runs the builder.
+	 * Other threads missing on the same key wait for that future instead of building.
+	 */
+	private V load( long key ) {
+		return this.loads.load( key, (k) -> LongCache.find( this.table, k ), this::build, this::store );
+	}
+
+	/* Call the builder, recording the outcome */
+	private V build( long key ) {
+		return this.loads.build( key, this.builder::make );
+	}
+
+	private void store( long key, V value ) {
+		this.lock.lock();
+		try {
+			Table<V> table = this.table;
+			if ( 2 * (table.size + 1) > table.keys.length ) {
+				table = this.grow( table );
+			}
+			LongCache.insert( table, key, new SoftReference<V>( value ) );
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/* Add or replace the reference for the key. Only called when the lock is held. */
+	private static <V> void insert( Table<V> table, long key, SoftReference<V> ref ) {
+		int i = LongCache.hash( key ) & table.mask;
+		while ( table.refs[i] != null && table.keys[i] != key ) {
+			i = (i + 1) & table.mask;
+		}
+		if ( table.refs[i] == null ) {
+			table.keys[i] = key;
+			table.size++;
+		}
+		REFS.setRelease( table.refs, i, ref );
+	}
+
+	/* Replace the table by one sized for the live entries. Only called when the lock is held. */
+	private Table<V> grow( Table<V> old ) {
+		int live = 0;
+		for ( SoftReference<V> ref : old.refs ) {
+			if ( ref != null && ref.get() != null ) {
+				live++;
+			}
+		}
+		this.collected.add( old.size - live );
+
+		Table<V> table = new Table<V>( Math.max( MIN_CAPACITY, Integer.highestOneBit( live + 1 ) << 2 ) );
+		for ( int i = 0; i < old.refs.length; i++ ) {
+			SoftReference<V> ref = old.refs[i];
+			if ( ref != null && ref.get() != null ) {
+				LongCache.insert( table, old.keys[i], ref );
+			}
+		}
+		this.table = table;
+		return table;
+	}
+
+	/**
+	 * Remove all associations.
+	 */
+	@Decl( "Cache empty after" )
+	@Decl( "Then get() rebuilds value" )
+	public void flush() {
+		this.lock.lock();
+		try {
+			this.table = new Table<V>( MIN_CAPACITY );
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * A snapshot of the counters for this cache. Entries are never evicted; collected
+	 * values are counted when their keys are dropped as the table grows.
+	 *
+	 * @return
+	 */
+	@Decl( "Counts hits and misses" )
+	@Decl( "Counts loads" )
+	public CacheStats stats() {
+		return this.loads.stats( 0L, this.collected.sum() );
+	}
+
+	@Override
+	@Decl( "Indicates number of keys" )
+	public String toString() {
+		return "LongCache(" + this.table.size + " keys)";
+	}
+
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return LongCache.class;
+		}
+
+		// Each value records the build count
+		private static class Counter implements Builder<String> {
+			private final AtomicInteger builds = new AtomicInteger();
+			@Override
+			public String make( long key ) throws AppException {
+				return key + ":" + this.builds.incrementAndGet();
+			}
+		}
+
+		private LongCache<String> cache;
+
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				public void call() {
+					cache = new LongCache<String>( new Counter() );
+				}
+			};
+		}
+
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				public void call() {
+					cache = null;
+				}
+			};
+		}
+
+		@Test.Impl( src = "public LongCache(LongCache.Builder)", desc = "Null Builder throws Assertion Error" )
+		public void LongCache_NullBuilderThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new LongCache<String>( null );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Returns built value" )
+		public void get_ReturnsBuiltValue( TestCase tc ) {
+			tc.assertEqual( "42:1", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Held value is not rebuilt" )
+		public void get_HeldValueIsNotRebuilt( TestCase tc ) {
+			cache.get( 42 );
+			tc.assertEqual( "42:1", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Accepts zero and negative keys" )
+		public void get_AcceptsZeroAndNegativeKeys( TestCase tc ) {
+			tc.assertEqual( "0:1", cache.get( 0 ) );
+			tc.assertEqual( "-1:2", cache.get( -1 ) );
+			tc.assertEqual( "0:1", cache.get( 0 ) );
+			tc.assertEqual( Long.MIN_VALUE + ":3", cache.get( Long.MIN_VALUE ) );
+			tc.assertEqual( "-1:2", cache.get( -1 ) );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Holds many keys" )
+		public void get_HoldsManyKeys( TestCase tc ) {
+			// Keys that differ only in the high word
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.put( (long) i << 32, "" + i );
+			}
+			boolean all = true;
+			for ( int i = 0; i < 10000; i++ ) {
+				all &= cache.get( (long) i << 32 ).equals( "" + i );
+			}
+			tc.assertTrue( all );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Collected value is rebuilt" )
+		public void get_CollectedValueIsRebuilt( TestCase tc ) {
+			cache.get( 42 );
+			// Simulate collection
+			for ( SoftReference<String> ref : cache.table.refs ) {
+				if ( ref != null ) {
+					ref.clear();
+				}
+			}
+			tc.assertEqual( "42:2", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Builder called once per key under contention" )
+		public void get_BuilderCalledOncePerKeyUnderContention( TestCase tc ) throws InterruptedException {
+			AtomicInteger builds = new AtomicInteger();
+			CountDownLatch start = new CountDownLatch( 1 );
+			LongCache<String> slow = new LongCache<String>( (k) -> {
+				builds.incrementAndGet();
+				try {
+					Thread.sleep( 50L );
+				} catch ( InterruptedException e ) {}
+				return "[" + k + "]";
+			});
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int i = 0; i < 8; i++ ) {
+				Thread thread = new Thread( () -> {
+					try {
+						start.await();
+					} catch ( InterruptedException e ) {}
+					slow.get( 42 );
+				});
+				thread.start();
+				threads.add( thread );
+			}
+			start.countDown();
+			for ( Thread thread : threads ) {
+				thread.join();
+			}
+			tc.assertEqual( 1, builds.get() );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Failed build is not cached" )
+		public void get_FailedBuildIsNotCached( TestCase tc ) {
+			AtomicInteger builds = new AtomicInteger();
+			LongCache<String> flaky = new LongCache<String>( (k) -> {
+				if ( builds.incrementAndGet() == 1 ) {
+					throw new AppException( "Backend down" );
+				}
+				return "[" + k + "]";
+			});
+			try {
+				flaky.get( 42 );
+			} catch ( AppException e ) {}
+			tc.assertEqual( "[42]", flaky.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object LongCache.get(long)", desc = "Hit allocates nothing" )
+		public void get_HitAllocatesNothing( TestCase tc ) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			// Warm up, including one-time allocation by the statistics counters
+			for ( int n = 0; n < 1000; n++ ) {
+				for ( int i = 0; i < 100; i++ ) {
+					cache.get( i );
+				}
+			}
+			int found = 0;
+			long before = bean.getCurrentThreadAllocatedBytes();
+			for ( int n = 0; n < 1000; n++ ) {
+				for ( int i = 0; i < 100; i++ ) {
+					found += cache.get( i ) == null ? 0 : 1;
+				}
+			}
+			long allocated = bean.getCurrentThreadAllocatedBytes() - before;
+			tc.assertEqual( 100000, found );
+			// Allow for the measurement itself
+			tc.assertTrue( allocated < 1024L );
+		}
+
+		@Test.Impl( src = "public void LongCache.put(long, Object)", desc = "Null value throws Assertion Error" )
+		public void put_NullValueThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( 42, null );
+		}
+
+		@Test.Impl( src = "public void LongCache.put(long, Object)", desc = "Replaces held value" )
+		public void put_ReplacesHeldValue( TestCase tc ) {
+			cache.get( 42 );
+			cache.put( 42, "replaced" );
+			tc.assertEqual( "replaced", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public void LongCache.flush()", desc = "Cache empty after" )
+		public void flush_CacheEmptyAfter( TestCase tc ) {
+			for ( int i = 0; i < 100; i++ ) {
+				cache.get( i );
+			}
+			cache.flush();
+			tc.assertEqual( 0, cache.table.size );
+		}
+
+		@Test.Impl( src = "public void LongCache.flush()", desc = "Then get() rebuilds value" )
+		public void flush_ThenGetRebuildsValue( TestCase tc ) {
+			cache.get( 42 );
+			cache.flush();
+			tc.assertEqual( "42:2", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public CacheStats LongCache.stats()", desc = "Counts hits and misses" )
+		public void stats_CountsHitsAndMisses( TestCase tc ) {
+			cache.get( 1 );
+			cache.get( 1 );
+			cache.get( 2 );
+			tc.assertEqual( 1L, cache.stats().hitCount() );
+			tc.assertEqual( 2L, cache.stats().missCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats LongCache.stats()", desc = "Counts loads" )
+		public void stats_CountsLoads( TestCase tc ) {
+			cache.get( 1 );
+			cache.get( 2 );
+			tc.assertEqual( 2L, cache.stats().loadSuccessCount() );
+		}
+
+		@Test.Impl( src = "public String LongCache.toString()", desc = "Indicates number of keys" )
+		public void toString_IndicatesNumberOfKeys( TestCase tc ) {
+			cache.get( 42 );
+			tc.assertEqual( "LongCache(1 keys)", cache.toString() );
+		}
+
+	}
+
+	public static void main(String[] args) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println("\nDone!");
+	}
+
+}
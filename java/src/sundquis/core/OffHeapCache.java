@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sundquis.core.Test.Decl;
+
+/**
+ * Concurrent cache of serialized values held outside the Java heap.
+ *
+ * Values are encoded by a {@code Codec} into slabs of direct memory; the heap holds only
+ * an index from keys to locations. The slabs are filled in turn, and once the capacity is
+ * allocated the oldest slab is reclaimed to make room. Entries read since their slab was
+ * last reclaimed are given a second chance and moved to the start of the reclaimed slab;
+ * the others are evicted.
+ *
+ * Reads do not lock. A slab carries a generation that changes whenever it is reclaimed, and
+ * a reader that sees the generation change while copying a value treats the read as a miss.
+ * A miss registers a future for the key so that the builder runs at most once per key at a time.
+ *
+ * Direct memory is limited by the JVM option {@code -XX:MaxDirectMemorySize}.
+ */
+public final class OffHeapCache<K, V> {
+
+	private static final int MB = 1 << 20;
+
+	// Configurable largest slab of direct memory in bytes (64 MB default)
+	private static int SLAB_SIZE = Property.get( "slabSize", 64 * MB, Property.INTEGER );
+
+	// Small capacities are still divided so that reclaiming a slab evicts a fraction of the entries
+	private static final int MIN_SLABS = 16;
+
+
+	/** A region of direct memory filled from the start */
+	private static final class Slab<K> {
+
+		private final ByteBuffer buffer;
+
+		// Changes when the slab is reclaimed
+		private volatile long generation;
+
+		// Bytes used; guarded by the lock
+		private int limit;
+
+		// Entries written since the slab was last reclaimed, live or not; guarded by the lock
+		private List<Entry<K>> entries;
+
+		Slab( int size, long generation ) {
+			this.buffer = ByteBuffer.allocateDirect( size );
+			this.generation = generation;
+			this.limit = 0;
+			this.entries = new ArrayList<Entry<K>>();
+		}
+	}
+
+	/** The location of a value. An entry is never moved; moving a value replaces its entry. */
+	private static final class Entry<K> {
+
+		private final K key;
+		private final int slab;
+		private final long generation;
+		private final int offset;
+		private final int length;
+
+		// Set by readers, cleared when the slab is reclaimed
+		private volatile boolean referenced;
+
+		Entry( K key, int slab, long generation, int offset, int length ) {
+			this.key = key;
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+			this.referenced = false;
+		}
+	}
+
+
+	private final Cache.Builder<K, V> builder;
+
+	private final Codec<V> codec;
+
+	private final long capacity;
+
+	private final int slabSize;
+
+	/** Allocated on demand; written under the lock, null after flush */
+	private final Slab<K>[] slabs;
+
+	/** The slab being filled; guarded by the lock */
+	private int current;
+
+	/** Source of slab generations; guarded by the lock */
+	private long generations;
+
+	/** Locations of the values, the only per-entry state on the heap */
+	private final ConcurrentMap<K, Entry<K>> index;
+
+	/** Values currently being built, at most one per key, and the load statistics */
+	private final Cache.SingleFlight<K, V> loads;
+
+	/** Guards writes to the slabs */
+	private final ReentrantLock lock;
+
+	// Statistics not kept by the loads
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Construct a cache holding at most {@code capacity} bytes of encoded values in direct
+	 * memory. Memory is allocated as needed, one slab at a time.
+	 *
+	 * @param builder
+	 * 		Makes values that are not held
+	 * @param codec
+	 * 		Converts values to and from the bytes held off the heap
+	 * @param capacity
+	 * 		Maximum bytes of direct memory
+	 */
+	@Decl( "Throws AssertionError for null builder" )
+	@Decl( "Throws AssertionError for null codec" )
+	@Decl( "Throws AssertionError for non positive capacity" )
+	@Decl( "Allocates no memory" )
+	@Decl( "Allocated memory never exceeds capacity" )
+	@Decl( "Allocated memory never exceeds capacity not a multiple of the slab size" )
+	public OffHeapCache( Cache.Builder<K, V> builder, Codec<V> codec, long capacity ) {
+		Assert.nonNull( builder );
+		Assert.nonNull( codec );
+		Assert.isTrue( capacity > 0L );
+
+		this.builder = builder;
+		this.codec = codec;
+		this.capacity = capacity;
+		this.slabSize = (int) Math.min( SLAB_SIZE, Math.max( 1L, capacity / MIN_SLABS ) );
+		@SuppressWarnings( "unchecked" )
+		// Rounded down, so that full slabs never exceed the capacity
+		Slab<K>[] slabs = (Slab<K>[]) new Slab<?>[ (int) (capacity / this.slabSize) ];
+		this.slabs = slabs;
+		this.current = 0;
+		this.generations = 0L;
+		this.index = new ConcurrentHashMap<K, Entry<K>>();
+		this.loads = new Cache.SingleFlight<K, V>();
+		this.lock = new ReentrantLock();
+	}
+
+	/**
+	 * Return the value corresponding to the given key. If the value is not currently
+	 * held the builder is used to construct an instance. Values whose encoding is larger
+	 * than a slab are returned but not held.
+	 *
+	 * @param key
+	 * @return
+	 * @throws AppException		If the builder is unable to construct the value.
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Returns built value" )
+	@Decl( "Held value is not rebuilt" )
+	@Decl( "Builder called once per key under contention" )
+	@Decl( "Failed build is not cached" )
+	@Decl( "Oversized value is returned but not held" )
+	@Decl( "Recently read entries survive reclamation" )
+	@Decl( "Readers see consistent values while slabs are reclaimed" )
+	public V get( K key ) throws AppException {
+		Assert.nonNull( key );
+
+		V value = this.lookup( key );
+		if ( value == null ) {
+			value = this.load( key );
+		}
+
+		return Assert.nonNull( value );
+	}
+
+	/**
+	 * Store a key-value pair, replacing any held value.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Null value throws Assertion Error" )
+	@Decl( "Replaces held value" )
+	public void put( K key, V value ) {
+		Assert.nonNull( key );
+		Assert.nonNull( value );
+
+		this.store( key, value );
+	}
+
+	/* The held value, recording a hit or miss; null on a miss */
+	private V lookup( K key ) {
+		Entry<K> entry = this.index.get( key );
+		V value = (entry == null) ? null : this.read( entry );
+		if ( value == null ) {
+			this.loads.misses.increment();
+		} else {
+			this.loads.hits.increment();
+			entry.referenced = true;
+		}
+		return value;
+	}
+
+	/* Decode the value; null if the slab has been reclaimed or released */
+	private V read( Entry<K> entry ) {
+		Slab<K> slab = this.slabs[ entry.slab ];
+		if ( slab == null || slab.generation != entry.generation ) {
+			return null;
+		}
+
+		byte[] data = new byte[ entry.length ];
+		slab.buffer.get( entry.offset, data );
+		// The copy must not be reordered after the second check of the generation
+		VarHandle.acquireFence();
+		if ( slab.generation != entry.generation ) {
+			return null;
+		}
+		return this.codec.decode( data );
+	}
+
+	/*
+	 * The first thread to miss on a key registers a future and runs the builder.
+	 * Other threads missing on the same key wait for that future instead of building.
+	 */
+	private V load( K key ) {
+		return this.loads.load( key, this::held, this::build, this::store );
+	}
+
+	/* The value held for the key, without recording a hit or miss; null if none */
+	private V held( K key ) {
+		Entry<K> entry = this.index.get( key );
+		return (entry == null) ? null : this.read( entry );
+	}
+
+	/* Call the builder, recording the outcome */
+	private V build( K key ) {
+		return this.loads.build( key, this.builder::make );
+	}
+
+	/* Encode outside the lock, then copy into the current slab */
+	private void store( K key, V value ) {
+		byte[] data = Assert.nonNull( this.codec.encode( value ) );
+		if ( data.length > this.slabSize ) {
+			this.index.remove( key );
+			return;
+		}
+
+		this.lock.lock();
+		try {
+			Slab<K> slab = this.reserve( data.length );
+			this.index.put( key, this.write( slab, key, data ) );
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/* Append to the slab, which must have room. Only called when the lock is held. */
+	private Entry<K> write( Slab<K> slab, K key, byte[] data ) {
+		Entry<K> entry = new Entry<K>( key, this.current, slab.generation, slab.limit, data.length );
+		slab.buffer.put( slab.limit, data );
+		slab.limit += data.length;
+		slab.entries.add( entry );
+		return entry;
+	}
+
+	/*
+	 * The slab with room for {@code length} bytes, allocating or reclaiming slabs as needed.
+	 * After a full cycle of second chances every entry is evicted, so this terminates.
+	 * Only called when the lock is held.
+	 */
+	private Slab<K> reserve( int length ) {
+		Slab<K> slab = this.slabs[ this.current ];
+		if ( slab == null ) {
+			slab = new Slab<K>( this.slabSize, ++this.generations );
+			this.slabs[ this.current ] = slab;
+		}
+
+		for ( int attempt = 0; this.slabSize - slab.limit < length; attempt++ ) {
+			this.current = (this.current + 1) % this.slabs.length;
+			slab = this.slabs[ this.current ];
+			if ( slab == null ) {
+				slab = new Slab<K>( this.slabSize, ++this.generations );
+				this.slabs[ this.current ] = slab;
+			} else {
+				this.reclaim( slab, attempt < this.slabs.length );
+			}
+		}
+		return slab;
+	}
+
+	/*
+	 * Evict the live entries of the current slab, except that entries read since the last
+	 * reclamation are moved to the start of the slab if {@code retain} is true.
+	 * Only called when the lock is held.
+	 */
+	private void reclaim( Slab<K> slab, boolean retain ) {
+		List<Entry<K>> kept = new ArrayList<Entry<K>>();
+		List<byte[]> data = new ArrayList<byte[]>();
+		for ( Entry<K> entry : slab.entries ) {
+			if ( this.index.get( entry.key ) != entry ) {
+				// Replaced or removed
+				continue;
+			}
+			if ( retain && entry.referenced ) {
+				byte[] bytes = new byte[ entry.length ];
+				slab.buffer.get( entry.offset, bytes );
+				kept.add( entry );
+				data.add( bytes );
+			} else {
+				this.index.remove( entry.key, entry );
+				this.evictions.increment();
+			}
+		}
+
+		slab.generation = ++this.generations;
+		// Readers must see the new generation before any of the overwritten bytes
+		VarHandle.storeStoreFence();
+		slab.limit = 0;
+		slab.entries = new ArrayList<Entry<K>>();
+		for ( int i = 0; i < kept.size(); i++ ) {
+			Entry<K> old = kept.get( i );
+			this.index.replace( old.key, old, this.write( slab, old.key, data.get( i ) ) );
+		}
+	}
+
+	/**
+	 * Remove all associations and release the direct memory. Memory is allocated again
+	 * as values are stored.
+	 */
+	@Decl( "Cache empty after" )
+	@Decl( "Releases slabs" )
+	@Decl( "Then get() rebuilds value" )
+	public void flush() {
+		this.lock.lock();
+		try {
+			this.index.clear();
+			for ( int i = 0; i < this.slabs.length; i++ ) {
+				this.slabs[i] = null;
+			}
+			this.current = 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * A snapshot of the counters for this cache. Values are never collected, so the
+	 * collected count is zero.
+	 *
+	 * @return
+	 */
+	@Decl( "Counts hits and misses" )
+	@Decl( "Counts loads" )
+	@Decl( "Counts evictions" )
+	public CacheStats stats() {
+		return this.loads.stats( this.evictions.sum(), 0L );
+	}
+
+	@Override
+	@Decl( "Indicates keys and capacity" )
+	public String toString() {
+		return "OffHeapCache(" + this.index.size() + " keys, " + this.capacity + " bytes)";
+	}
+
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return OffHeapCache.class;
+		}
+
+		// Each value records the build count
+		private static class Counter implements Cache.Builder<Integer, String> {
+			private final AtomicInteger builds = new AtomicInteger();
+			@Override
+			public String make( Integer key ) throws AppException {
+				return key + ":" + this.builds.incrementAndGet();
+			}
+		}
+
+		private OffHeapCache<Integer, String> cache;
+
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				public void call() {
+					cache = new OffHeapCache<Integer, String>( new Counter(), Codec.STRING, 16 * 1024 );
+				}
+			};
+		}
+
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				public void call() {
+					cache = null;
+				}
+			};
+		}
+
+		private long allocated() {
+			long total = 0L;
+			for ( Slab<Integer> slab : cache.slabs ) {
+				total += slab == null ? 0L : slab.buffer.capacity();
+			}
+			return total;
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Throws AssertionError for null builder" )
+		public void OffHeapCache_ThrowsAssertionerrorForNullBuilder( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new OffHeapCache<Integer, String>( null, Codec.STRING, 1024 );
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Throws AssertionError for null codec" )
+		public void OffHeapCache_ThrowsAssertionerrorForNullCodec( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new OffHeapCache<Integer, String>( new Counter(), null, 1024 );
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Throws AssertionError for non positive capacity" )
+		public void OffHeapCache_ThrowsAssertionerrorForNonPositiveCapacity( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new OffHeapCache<Integer, String>( new Counter(), Codec.STRING, 0 );
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Allocates no memory" )
+		public void OffHeapCache_AllocatesNoMemory( TestCase tc ) {
+			tc.assertEqual( 0L, this.allocated() );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Null key throws Assertion Error" )
+		public void get_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.get( null );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Returns built value" )
+		public void get_ReturnsBuiltValue( TestCase tc ) {
+			tc.assertEqual( "42:1", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Held value is not rebuilt" )
+		public void get_HeldValueIsNotRebuilt( TestCase tc ) {
+			cache.get( 42 );
+			tc.assertEqual( "42:1", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Builder called once per key under contention" )
+		public void get_BuilderCalledOncePerKeyUnderContention( TestCase tc ) throws InterruptedException {
+			AtomicInteger builds = new AtomicInteger();
+			CountDownLatch start = new CountDownLatch( 1 );
+			OffHeapCache<Integer, String> slow = new OffHeapCache<Integer, String>( (k) -> {
+				builds.incrementAndGet();
+				try {
+					Thread.sleep( 50L );
+				} catch ( InterruptedException e ) {}
+				return "[" + k + "]";
+			}, Codec.STRING, 1024 );
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int i = 0; i < 8; i++ ) {
+				Thread thread = new Thread( () -> {
+					try {
+						start.await();
+					} catch ( InterruptedException e ) {}
+					slow.get( 42 );
+				});
+				thread.start();
+				threads.add( thread );
+			}
+			start.countDown();
+			for ( Thread thread : threads ) {
+				thread.join();
+			}
+			tc.assertEqual( 1, builds.get() );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Failed build is not cached" )
+		public void get_FailedBuildIsNotCached( TestCase tc ) {
+			AtomicInteger builds = new AtomicInteger();
+			OffHeapCache<Integer, String> flaky = new OffHeapCache<Integer, String>( (k) -> {
+				if ( builds.incrementAndGet() == 1 ) {
+					throw new AppException( "Backend down" );
+				}
+				return "[" + k + "]";
+			}, Codec.STRING, 1024 );
+			try {
+				flaky.get( 42 );
+			} catch ( AppException e ) {}
+			tc.assertEqual( "[42]", flaky.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Oversized value is returned but not held" )
+		public void get_OversizedValueIsReturnedButNotHeld( TestCase tc ) {
+			String big = Strings.rightJustify( "x", 2048, '_' );
+			OffHeapCache<Integer, String> small = new OffHeapCache<Integer, String>( (k) -> big, Codec.STRING, 1024 );
+			tc.assertEqual( big, small.get( 42 ) );
+			tc.assertTrue( small.index.isEmpty() );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.put(Object, Object)", desc = "Null key throws Assertion Error" )
+		public void put_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( null, "" );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.put(Object, Object)", desc = "Null value throws Assertion Error" )
+		public void put_NullValueThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( 42, null );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.put(Object, Object)", desc = "Replaces held value" )
+		public void put_ReplacesHeldValue( TestCase tc ) {
+			cache.get( 42 );
+			cache.put( 42, "replaced" );
+			tc.assertEqual( "replaced", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.flush()", desc = "Cache empty after" )
+		public void flush_CacheEmptyAfter( TestCase tc ) {
+			for ( int i = 0; i < 100; i++ ) {
+				cache.get( i );
+			}
+			cache.flush();
+			tc.assertTrue( cache.index.isEmpty() );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.flush()", desc = "Releases slabs" )
+		public void flush_ReleasesSlabs( TestCase tc ) {
+			for ( int i = 0; i < 100; i++ ) {
+				cache.get( i );
+			}
+			cache.flush();
+			tc.assertEqual( 0L, this.allocated() );
+		}
+
+		@Test.Impl( src = "public void OffHeapCache.flush()", desc = "Then get() rebuilds value" )
+		public void flush_ThenGetRebuildsValue( TestCase tc ) {
+			cache.get( 42 );
+			cache.flush();
+			tc.assertEqual( "42:2", cache.get( 42 ) );
+		}
+
+		@Test.Impl( src = "public CacheStats OffHeapCache.stats()", desc = "Counts hits and misses" )
+		public void stats_CountsHitsAndMisses( TestCase tc ) {
+			cache.get( 1 );
+			cache.get( 1 );
+			cache.get( 2 );
+			tc.assertEqual( 1L, cache.stats().hitCount() );
+			tc.assertEqual( 2L, cache.stats().missCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats OffHeapCache.stats()", desc = "Counts loads" )
+		public void stats_CountsLoads( TestCase tc ) {
+			cache.get( 1 );
+			cache.get( 2 );
+			tc.assertEqual( 2L, cache.stats().loadSuccessCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats OffHeapCache.stats()", desc = "Counts evictions" )
+		public void stats_CountsEvictions( TestCase tc ) {
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.get( i );
+			}
+			tc.assertTrue( cache.stats().evictionCount() > 0L );
+			tc.assertEqual( 10000L, cache.index.size() + cache.stats().evictionCount() );
+		}
+
+		@Test.Impl( src = "public String OffHeapCache.toString()", desc = "Indicates keys and capacity" )
+		public void toString_IndicatesKeysAndCapacity( TestCase tc ) {
+			cache.get( 42 );
+			tc.assertEqual( "OffHeapCache(1 keys, 16384 bytes)", cache.toString() );
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Allocated memory never exceeds capacity" )
+		public void OffHeapCache_AllocatedMemoryNeverExceedsCapacity( TestCase tc ) {
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.get( i );
+				tc.assertTrue( this.allocated() <= 16 * 1024 );
+			}
+		}
+
+		@Test.Impl( src = "public OffHeapCache(Cache.Builder, Codec, long)", desc = "Allocated memory never exceeds capacity not a multiple of the slab size" )
+		public void OffHeapCache_AllocatedMemoryNeverExceedsCapacityNotAMultipleOfTheSlabSize( TestCase tc ) {
+			// Slabs of 62 bytes
+			cache = new OffHeapCache<Integer, String>( new Counter(), Codec.STRING, 1000 );
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.get( i );
+				tc.assertTrue( this.allocated() <= 1000 );
+			}
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Recently read entries survive reclamation" )
+		public void get_RecentlyReadEntriesSurviveReclamation( TestCase tc ) {
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.get( i );
+				cache.get( -1 );
+			}
+			tc.assertEqual( "-1:2", cache.get( -1 ) );
+		}
+
+		@Test.Impl( src = "public Object OffHeapCache.get(Object)", desc = "Readers see consistent values while slabs are reclaimed" )
+		public void get_ReadersSeeConsistentValuesWhileSlabsAreReclaimed( TestCase tc ) throws InterruptedException {
+			OffHeapCache<Integer, String> shared = new OffHeapCache<Integer, String>(
+				(k) -> Strings.rightJustify( k.toString(), 50, '_' ), Codec.STRING, 16 * 1024 );
+			AtomicInteger errors = new AtomicInteger();
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int t = 0; t < 4; t++ ) {
+				final int seed = t;
+				Thread thread = new Thread( () -> {
+					for ( int i = 0; i < 20000; i++ ) {
+						Integer key = (i * 7 + seed * 13) % 1000;
+						if ( ! shared.get( key ).equals( Strings.rightJustify( key.toString(), 50, '_' ) ) ) {
+							errors.incrementAndGet();
+						}
+					}
+				});
+				thread.start();
+				threads.add( thread );
+			}
+			for ( Thread thread : threads ) {
+				thread.join();
+			}
+			tc.assertEqual( 0, errors.get() );
+		}
+
+	}
+
+	public static void main(String[] args) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println("\nDone!");
+	}
+
+}
@@ -75,6 +75,9 @@ public class Property {
 	@Test.Skip
 	public static final Function<String, Long> LONG = (s) -> Long.parseLong(s);
 	
+	@Test.Skip
+	public static final Function<String, Double> DOUBLE = (s) -> Double.parseDouble(s);
+	
 	@Test.Skip
 	public static final Function<String, Boolean> BOOLEAN = (s) -> Boolean.parseBoolean(s);
 	
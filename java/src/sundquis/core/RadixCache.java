@@ -0,0 +1,879 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ *
+ */
+
+package sundquis.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import sundquis.core.Test.Decl;
+
+/**
+ * Concurrent cache of values keyed by {@code String}, with the semantics of {@link Cache}:
+ * values are made by a builder when not held, at most once per key at a time, and are
+ * held via soft references.
+ *
+ * Keys are stored in a compressed radix tree. Each node holds only the characters that
+ * distinguish it from its parent, so a prefix shared by many keys, such as a package or
+ * property name, is stored once and key strings are not retained. Children are held in
+ * arrays sized to fit, searched by their first character.
+ *
+ * Nodes are immutable. Writes are made under a lock by copying the path from the root
+ * and replacing the root; reads do not lock, see a consistent tree, and a hit allocates
+ * nothing. Each time the number of keys doubles, keys whose values have been collected
+ * are dropped and their nodes removed.
+ */
+public final class RadixCache<V> {
+
+	private static final char[] NO_CHARS = new char[0];
+
+	// Fewest keys at which collected keys are dropped
+	private static final int MIN_SWEEP = 16;
+
+	/** A key is held at a node when its reference is not null */
+	private static final class Node<V> {
+
+		// The characters from the parent; empty only at the root
+		private final char[] edge;
+
+		// The first character of the edge of each child, ascending
+		private final char[] labels;
+
+		private final Node<V>[] children;
+
+		private final SoftReference<V> ref;
+
+		Node( char[] edge, char[] labels, Node<V>[] children, SoftReference<V> ref ) {
+			this.edge = edge;
+			this.labels = labels;
+			this.children = children;
+			this.ref = ref;
+		}
+
+		@SuppressWarnings( "unchecked" )
+		Node( char[] edge, SoftReference<V> ref ) {
+			this( edge, NO_CHARS, (Node<V>[]) new Node<?>[0], ref );
+		}
+
+		Node<V> withRef( SoftReference<V> ref ) {
+			return new Node<V>( this.edge, this.labels, this.children, ref );
+		}
+
+		Node<V> withEdge( char[] edge ) {
+			return new Node<V>( edge, this.labels, this.children, this.ref );
+		}
+
+		Node<V> withChild( int index, Node<V> child ) {
+			Node<V>[] children = this.children.clone();
+			children[index] = child;
+			return new Node<V>( this.edge, this.labels, children, this.ref );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		Node<V> adding( int index, Node<V> child ) {
+			int n = this.labels.length;
+			char[] labels = new char[n + 1];
+			Node<V>[] children = (Node<V>[]) new Node<?>[n + 1];
+			System.arraycopy( this.labels, 0, labels, 0, index );
+			System.arraycopy( this.children, 0, children, 0, index );
+			labels[index] = child.edge[0];
+			children[index] = child;
+			System.arraycopy( this.labels, index, labels, index + 1, n - index );
+			System.arraycopy( this.children, index, children, index + 1, n - index );
+			return new Node<V>( this.edge, labels, children, this.ref );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		Node<V> removing( int index ) {
+			int n = this.labels.length;
+			char[] labels = new char[n - 1];
+			Node<V>[] children = (Node<V>[]) new Node<?>[n - 1];
+			System.arraycopy( this.labels, 0, labels, 0, index );
+			System.arraycopy( this.children, 0, children, 0, index );
+			System.arraycopy( this.labels, index + 1, labels, index, n - index - 1 );
+			System.arraycopy( this.children, index + 1, children, index, n - index - 1 );
+			return new Node<V>( this.edge, labels, children, this.ref );
+		}
+	}
+
+
+	private final Cache.Builder<String, V> builder;
+
+	/** Replaced by every write */
+	private volatile Node<V> root;
+
+	/** Keys held in the tree; guarded by the lock */
+	private int size;
+
+	/** Collected keys are dropped when the size exceeds this; guarded by the lock */
+	private int sweepAt;
+
+	/** Values currently being built, at most one per key, and the load statistics */
+	private final Cache.SingleFlight<String, V> loads;
+
+	/** Guards writes to the tree */
+	private final ReentrantLock lock;
+
+	// Statistics not kept by the loads
+	private final LongAdder collected = new LongAdder();
+
+	/** Construct */
+	@Decl( "Null Builder throws Assertion Error" )
+	public RadixCache( Cache.Builder<String, V> builder ) {
+		this.builder = Assert.nonNull( builder );
+		this.root = new Node<V>( NO_CHARS, null );
+		this.size = 0;
+		this.sweepAt = MIN_SWEEP;
+		this.loads = new Cache.SingleFlight<String, V>();
+		this.lock = new ReentrantLock();
+	}
+
+	/**
+	 * Return the value corresponding to the given key. If the value is not currently
+	 * held the builder is used to construct an instance.
+	 *
+	 * @param key
+	 * @return
+	 * @throws AppException		If the builder is unable to construct the value.
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Returns built value" )
+	@Decl( "Held value is not rebuilt" )
+	@Decl( "Accepts empty key" )
+	@Decl( "Distinguishes key that is prefix of another" )
+	@Decl( "Holds many keys" )
+	@Decl( "Collected value is rebuilt" )
+	@Decl( "Builder called once per key under contention" )
+	@Decl( "Failed build is not cached" )
+	@Decl( "Hit allocates nothing" )
+	public V get( String key ) throws AppException {
+		Assert.nonNull( key );
+
+		V value = RadixCache.find( this.root, key );
+		if ( value == null ) {
+			this.loads.misses.increment();
+			value = this.load( key );
+		} else {
+			this.loads.hits.increment();
+		}
+
+		return Assert.nonNull( value );
+	}
+
+	/**
+	 * Store a key-value pair. Values are held via a soft reference and may be collected.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	@Decl( "Null key throws Assertion Error" )
+	@Decl( "Null value throws Assertion Error" )
+	@Decl( "Replaces held value" )
+	@Decl( "Stores shared prefix once" )
+	@Decl( "Drops collected keys as keys are added" )
+	public void put( String key, V value ) {
+		Assert.nonNull( key );
+		Assert.nonNull( value );
+
+		this.store( key, value );
+	}
+
+	/**
+	 * Stream the held entries whose keys start with the given prefix, in key order.
+	 * Missing keys are not built, and the stream does not affect statistics. The stream
+	 * reflects the tree when this method is called.
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	@Decl( "Null prefix throws Assertion Error" )
+	@Decl( "Streams keys with prefix in order" )
+	@Decl( "Prefix may end within shared characters" )
+	@Decl( "Empty prefix streams all" )
+	@Decl( "Unknown prefix streams nothing" )
+	@Decl( "Skips collected values" )
+	public Stream<Map.Entry<String, V>> streamPrefix( String prefix ) {
+		Assert.nonNull( prefix );
+
+		List<Map.Entry<String, V>> entries = new ArrayList<Map.Entry<String, V>>();
+		Node<V> node = this.root;
+		int i = 0;
+		while ( i < prefix.length() ) {
+			int c = Arrays.binarySearch( node.labels, prefix.charAt( i ) );
+			if ( c < 0 ) {
+				return entries.stream();
+			}
+			node = node.children[c];
+			int matched = RadixCache.common( node.edge, prefix, i );
+			if ( matched < node.edge.length && i + matched < prefix.length() ) {
+				return entries.stream();
+			}
+			i += node.edge.length;
+		}
+
+		// The prefix may end within the edge of the last node
+		StringBuilder key = new StringBuilder( prefix.substring( 0, i - node.edge.length ) ).append( node.edge );
+		RadixCache.collect( node, key, entries );
+		return entries.stream();
+	}
+
+	/**
+	 * Remove the entries whose keys start with the given prefix. Builds in progress are
+	 * not cancelled.
+	 *
+	 * @param prefix
+	 * @return
+	 * 		The number of keys removed
+	 */
+	@Decl( "Null prefix throws Assertion Error" )
+	@Decl( "Removes keys with prefix" )
+	@Decl( "Keeps other keys" )
+	@Decl( "Empty prefix removes all" )
+	@Decl( "Then get() rebuilds value" )
+	public int invalidatePrefix( String prefix ) {
+		Assert.nonNull( prefix );
+
+		this.lock.lock();
+		try {
+			int[] removed = new int[1];
+			if ( prefix.isEmpty() ) {
+				removed[0] = this.size;
+				this.root = new Node<V>( NO_CHARS, null );
+			} else {
+				this.root = RadixCache.prune( this.root, prefix, 0, removed );
+			}
+			this.size -= removed[0];
+			return removed[0];
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/* The node holding exactly the key, or null. The root edge is empty. */
+	private static <V> Node<V> locate( Node<V> root, String key ) {
+		Node<V> node = root;
+		int i = 0;
+		while ( i < key.length() ) {
+			int c = Arrays.binarySearch( node.labels, key.charAt( i ) );
+			if ( c < 0 ) {
+				return null;
+			}
+			node = node.children[c];
+			if ( RadixCache.common( node.edge, key, i ) < node.edge.length ) {
+				return null;
+			}
+			i += node.edge.length;
+		}
+		return node;
+	}
+
+	/* The live value for the key; null if absent or collected */
+	private static <V> V find( Node<V> root, String key ) {
+		Node<V> node = RadixCache.locate( root, key );
+		return node == null || node.ref == null ? null : node.ref.get();
+	}
+
+	/* The number of leading characters of the edge matching the key from the given position */
+	private static int common( char[] edge, String key, int from ) {
+		int n = Math.min( edge.length, key.length() - from );
+		int i = 0;
+		while ( i < n && edge[i] == key.charAt( from + i ) ) {
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * Copy of the node, whose edge ends at position i of the key, holding the reference
+	 * for the key. Shared nodes are not modified.
+	 */
+	private static <V> Node<V> insert( Node<V> node, String key, int i, SoftReference<V> ref ) {
+		if ( i == key.length() ) {
+			return node.withRef( ref );
+		}
+
+		int c = Arrays.binarySearch( node.labels, key.charAt( i ) );
+		if ( c < 0 ) {
+			return node.adding( -c - 1, new Node<V>( key.substring( i ).toCharArray(), ref ) );
+		}
+
+		Node<V> child = node.children[c];
+		int matched = RadixCache.common( child.edge, key, i );
+		if ( matched == child.edge.length ) {
+			return node.withChild( c, RadixCache.insert( child, key, i + matched, ref ) );
+		}
+
+		// Split the edge of the child at the first difference
+		Node<V> rest = child.withEdge( Arrays.copyOfRange( child.edge, matched, child.edge.length ) );
+		Node<V> split = new Node<V>( Arrays.copyOf( child.edge, matched ), null ).adding( 0, rest );
+		return node.withChild( c, RadixCache.insert( split, key, i + matched, ref ) );
+	}
+
+	/*
+	 * Copy of the node, whose edge ends at position i of the prefix, without the keys
+	 * that start with the prefix. Counts the keys removed.
+	 */
+	private static <V> Node<V> prune( Node<V> node, String prefix, int i, int[] removed ) {
+		int c = Arrays.binarySearch( node.labels, prefix.charAt( i ) );
+		if ( c < 0 ) {
+			return node;
+		}
+
+		Node<V> child = node.children[c];
+		int matched = RadixCache.common( child.edge, prefix, i );
+		if ( i + matched == prefix.length() ) {
+			removed[0] += RadixCache.count( child );
+			return node.removing( c );
+		}
+		if ( matched < child.edge.length ) {
+			return node;
+		}
+
+		Node<V> pruned = RadixCache.prune( child, prefix, i + matched, removed );
+		if ( pruned == child ) {
+			return node;
+		}
+		Node<V> merged = RadixCache.compress( pruned, child );
+		return merged == null ? node.removing( c ) : node.withChild( c, merged );
+	}
+
+	/*
+	 * Restore path compression for a pruned copy of a non-root node: null if it holds no
+	 * keys, or merged with its only child when it holds no key itself. The root is never
+	 * compressed since its edge must remain empty.
+	 */
+	private static <V> Node<V> compress( Node<V> pruned, Node<V> original ) {
+		if ( original.edge.length == 0 || pruned.ref != null || pruned.children.length > 1 ) {
+			return pruned;
+		}
+		if ( pruned.children.length == 0 ) {
+			return null;
+		}
+
+		Node<V> only = pruned.children[0];
+		char[] edge = Arrays.copyOf( pruned.edge, pruned.edge.length + only.edge.length );
+		System.arraycopy( only.edge, 0, edge, pruned.edge.length, only.edge.length );
+		return only.withEdge( edge );
+	}
+
+	/* The number of keys in the subtree */
+	private static <V> int count( Node<V> node ) {
+		int count = node.ref == null ? 0 : 1;
+		for ( Node<V> child : node.children ) {
+			count += RadixCache.count( child );
+		}
+		return count;
+	}
+
+	/* Add the live entries of the subtree in key order; the key holds the characters through this node */
+	private static <V> void collect( Node<V> node, StringBuilder key, List<Map.Entry<String, V>> entries ) {
+		V value = node.ref == null ? null : node.ref.get();
+		if ( value != null ) {
+			entries.add( new AbstractMap.SimpleImmutableEntry<String, V>( key.toString(), value ) );
+		}
+		int length = key.length();
+		for ( Node<V> child : node.children ) {
+			key.append( child.edge );
+			RadixCache.collect( child, key, entries );
+			key.setLength( length );
+		}
+	}
+
+	/*
+	 * The first thread to miss on a key registers a future and runs the builder.
+	 * Other threads missing on the same key wait for that future instead of building.
+	 */
+	private V load( String key ) {
+		return this.loads.load( key, (k) -> RadixCache.find( this.root, k ), this::build, this::store );
+	}
+
+	/* Call the builder, recording the outcome */
+	private V build( String key ) {
+		return this.loads.build( key, this.builder::make );
+	}
+
+	private void store( String key, V value ) {
+		this.lock.lock();
+		try {
+			Node<V> held = RadixCache.locate( this.root, key );
+			if ( held == null || held.ref == null ) {
+				this.size++;
+			} else if ( held.ref.get() == null ) {
+				this.collected.increment();
+			}
+			this.root = RadixCache.insert( this.root, key, 0, new SoftReference<V>( value ) );
+			if ( this.size > this.sweepAt ) {
+				this.sweep();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/* Drop the keys whose values have been collected. Only called when the lock is held. */
+	private void sweep() {
+		int[] removed = new int[1];
+		this.root = RadixCache.sweep( this.root, removed );
+		this.size -= removed[0];
+		this.collected.add( removed[0] );
+		this.sweepAt = Math.max( MIN_SWEEP, 2 * this.size );
+	}
+
+	/*
+	 * Copy of the node without the keys whose values have been collected, or the node
+	 * itself if none were. Counts the keys removed.
+	 */
+	private static <V> Node<V> sweep( Node<V> node, int[] removed ) {
+		Node<V> swept = node;
+		if ( node.ref != null && node.ref.get() == null ) {
+			swept = node.withRef( null );
+			removed[0]++;
+		}
+		for ( int c = node.children.length - 1; c >= 0; c-- ) {
+			Node<V> child = node.children[c];
+			Node<V> pruned = RadixCache.sweep( child, removed );
+			if ( pruned != child ) {
+				Node<V> merged = RadixCache.compress( pruned, child );
+				swept = merged == null ? swept.removing( c ) : swept.withChild( c, merged );
+			}
+		}
+		return swept;
+	}
+
+	/**
+	 * Remove all associations.
+	 */
+	@Decl( "Cache empty after" )
+	@Decl( "Then get() rebuilds value" )
+	public void flush() {
+		this.invalidatePrefix( "" );
+	}
+
+	/**
+	 * A snapshot of the counters for this cache. Entries are never evicted; collected
+	 * values are counted when their keys are rebuilt, replaced or dropped.
+	 *
+	 * @return
+	 */
+	@Decl( "Counts hits and misses" )
+	@Decl( "Counts loads" )
+	@Decl( "Counts collected values" )
+	public CacheStats stats() {
+		return this.loads.stats( 0L, this.collected.sum() );
+	}
+
+	@Override
+	@Decl( "Indicates number of keys" )
+	public String toString() {
+		return "RadixCache(" + this.size + " keys)";
+	}
+
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return RadixCache.class;
+		}
+
+		// Each value records the build count
+		private static class Counter implements Cache.Builder<String, String> {
+			private final AtomicInteger builds = new AtomicInteger();
+			@Override
+			public String make( String key ) throws AppException {
+				return key + ":" + this.builds.incrementAndGet();
+			}
+		}
+
+		private RadixCache<String> cache;
+
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				public void call() {
+					cache = new RadixCache<String>( new Counter() );
+				}
+			};
+		}
+
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				public void call() {
+					cache = null;
+				}
+			};
+		}
+
+		private static final String[] CLASSES = {
+			"sundquis.core.Cache", "sundquis.core.Cache.Builder", "sundquis.core.Codec",
+			"sundquis.core.IntCache", "sundquis.util.FrequencySketch", "sundquis.core.CacheStats"
+		};
+
+		private void putClasses() {
+			for ( String name : CLASSES ) {
+				cache.put( name, name );
+			}
+		}
+
+		private static List<String> keys( Stream<Map.Entry<String, String>> entries ) {
+			return entries.map( Map.Entry::getKey ).collect( Collectors.toList() );
+		}
+
+		// Characters stored on the edges of the subtree
+		private static int chars( Node<String> node ) {
+			int chars = node.edge.length;
+			for ( Node<String> child : node.children ) {
+				chars += chars( child );
+			}
+			return chars;
+		}
+
+		private static void clear( Node<String> node ) {
+			if ( node.ref != null ) {
+				node.ref.clear();
+			}
+			for ( Node<String> child : node.children ) {
+				clear( child );
+			}
+		}
+
+		@Test.Impl( src = "public RadixCache(Cache.Builder)", desc = "Null Builder throws Assertion Error" )
+		public void RadixCache_NullBuilderThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new RadixCache<String>( null );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Null key throws Assertion Error" )
+		public void get_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.get( null );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Returns built value" )
+		public void get_ReturnsBuiltValue( TestCase tc ) {
+			tc.assertEqual( "key:1", cache.get( "key" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Held value is not rebuilt" )
+		public void get_HeldValueIsNotRebuilt( TestCase tc ) {
+			cache.get( "key" );
+			tc.assertEqual( "key:1", cache.get( "key" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Accepts empty key" )
+		public void get_AcceptsEmptyKey( TestCase tc ) {
+			tc.assertEqual( ":1", cache.get( "" ) );
+			tc.assertEqual( "a:2", cache.get( "a" ) );
+			tc.assertEqual( ":1", cache.get( "" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Distinguishes key that is prefix of another" )
+		public void get_DistinguishesKeyThatIsPrefixOfAnother( TestCase tc ) {
+			cache.get( "sundquis.core.Cache.Builder" );
+			cache.get( "sundquis.core.Cache" );
+			cache.get( "sundquis.core" );
+			tc.assertEqual( "sundquis.core.Cache.Builder:1", cache.get( "sundquis.core.Cache.Builder" ) );
+			tc.assertEqual( "sundquis.core.Cache:2", cache.get( "sundquis.core.Cache" ) );
+			tc.assertEqual( "sundquis.core:3", cache.get( "sundquis.core" ) );
+			tc.assertEqual( "sundquis.core.C:4", cache.get( "sundquis.core.C" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Holds many keys" )
+		public void get_HoldsManyKeys( TestCase tc ) {
+			for ( int i = 0; i < 10000; i++ ) {
+				cache.put( "key." + Integer.toString( i * 7919, 36 ), "" + i );
+			}
+			boolean all = true;
+			for ( int i = 0; i < 10000; i++ ) {
+				all &= cache.get( "key." + Integer.toString( i * 7919, 36 ) ).equals( "" + i );
+			}
+			tc.assertTrue( all );
+			tc.assertEqual( 0L, cache.stats().missCount() );
+		}
+
+		@Test.Impl( src = "public void RadixCache.put(String, Object)", desc = "Drops collected keys as keys are added" )
+		public void put_DropsCollectedKeysAsKeysAreAdded( TestCase tc ) {
+			this.putClasses();
+			clear( cache.root );
+			for ( int i = 0; i < 40; i++ ) {
+				cache.put( "key" + i, "" + i );
+			}
+			tc.assertEqual( "RadixCache(40 keys)", cache.toString() );
+			tc.assertTrue( RadixCache.locate( cache.root, "sundquis.core.Cache" ) == null );
+			// The nodes of the dropped keys are removed, and the remaining path is merged
+			tc.assertEqual( 1, cache.root.children.length );
+			tc.assertEqual( "key", new String( cache.root.children[0].edge ) );
+			tc.assertEqual( (long) CLASSES.length, cache.stats().collectedCount() );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Collected value is rebuilt" )
+		public void get_CollectedValueIsRebuilt( TestCase tc ) {
+			cache.get( "key" );
+			// Simulate collection
+			clear( cache.root );
+			tc.assertEqual( "key:2", cache.get( "key" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Builder called once per key under contention" )
+		public void get_BuilderCalledOncePerKeyUnderContention( TestCase tc ) throws InterruptedException {
+			AtomicInteger builds = new AtomicInteger();
+			CountDownLatch start = new CountDownLatch( 1 );
+			RadixCache<String> slow = new RadixCache<String>( (k) -> {
+				builds.incrementAndGet();
+				try {
+					Thread.sleep( 50L );
+				} catch ( InterruptedException e ) {}
+				return "[" + k + "]";
+			});
+			List<Thread> threads = new ArrayList<Thread>();
+			for ( int i = 0; i < 8; i++ ) {
+				Thread thread = new Thread( () -> {
+					try {
+						start.await();
+					} catch ( InterruptedException e ) {}
+					slow.get( "key" );
+				});
+				thread.start();
+				threads.add( thread );
+			}
+			start.countDown();
+			for ( Thread thread : threads ) {
+				thread.join();
+			}
+			tc.assertEqual( 1, builds.get() );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Failed build is not cached" )
+		public void get_FailedBuildIsNotCached( TestCase tc ) {
+			AtomicInteger builds = new AtomicInteger();
+			RadixCache<String> flaky = new RadixCache<String>( (k) -> {
+				if ( builds.incrementAndGet() == 1 ) {
+					throw new AppException( "Backend down" );
+				}
+				return "[" + k + "]";
+			});
+			try {
+				flaky.get( "key" );
+			} catch ( AppException e ) {}
+			tc.assertEqual( "[key]", flaky.get( "key" ) );
+		}
+
+		@Test.Impl( src = "public Object RadixCache.get(String)", desc = "Hit allocates nothing" )
+		public void get_HitAllocatesNothing( TestCase tc ) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			this.putClasses();
+			// Warm up, including one-time allocation by the statistics counters
+			for ( int n = 0; n < 100000; n++ ) {
+				for ( String name : CLASSES ) {
+					cache.get( name );
+				}
+			}
+			int found = 0;
+			long before = bean.getCurrentThreadAllocatedBytes();
+			for ( int n = 0; n < 10000; n++ ) {
+				for ( String name : CLASSES ) {
+					found += cache.get( name ) == null ? 0 : 1;
+				}
+			}
+			long allocated = bean.getCurrentThreadAllocatedBytes() - before;
+			tc.assertEqual( 10000 * CLASSES.length, found );
+			// Allow for the measurement itself
+			tc.assertTrue( allocated < 1024L );
+		}
+
+		@Test.Impl( src = "public void RadixCache.put(String, Object)", desc = "Null key throws Assertion Error" )
+		public void put_NullKeyThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( null, "value" );
+		}
+
+		@Test.Impl( src = "public void RadixCache.put(String, Object)", desc = "Null value throws Assertion Error" )
+		public void put_NullValueThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.put( "key", null );
+		}
+
+		@Test.Impl( src = "public void RadixCache.put(String, Object)", desc = "Replaces held value" )
+		public void put_ReplacesHeldValue( TestCase tc ) {
+			cache.get( "key" );
+			cache.put( "key", "replaced" );
+			tc.assertEqual( "replaced", cache.get( "key" ) );
+			tc.assertEqual( "RadixCache(1 keys)", cache.toString() );
+		}
+
+		@Test.Impl( src = "public void RadixCache.put(String, Object)", desc = "Stores shared prefix once" )
+		public void put_StoresSharedPrefixOnce( TestCase tc ) {
+			int total = 0;
+			for ( int i = 0; i < 100; i++ ) {
+				String key = "sundquis.core.property.value" + i;
+				cache.put( key, key );
+				total += key.length();
+			}
+			// 28 shared characters, then at most two per key
+			tc.assertTrue( chars( cache.root ) <= 28 + 2 * 100 );
+			tc.assertTrue( chars( cache.root ) < total / 10 );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Null prefix throws Assertion Error" )
+		public void streamPrefix_NullPrefixThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.streamPrefix( null );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Streams keys with prefix in order" )
+		public void streamPrefix_StreamsKeysWithPrefixInOrder( TestCase tc ) {
+			this.putClasses();
+			tc.assertEqual( Arrays.asList( "sundquis.core.Cache", "sundquis.core.Cache.Builder", "sundquis.core.CacheStats", "sundquis.core.Codec" ),
+				keys( cache.streamPrefix( "sundquis.core.C" ) ) );
+			tc.assertEqual( "sundquis.core.Codec", cache.streamPrefix( "sundquis.core.Co" ).findFirst().get().getValue() );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Prefix may end within shared characters" )
+		public void streamPrefix_PrefixMayEndWithinSharedCharacters( TestCase tc ) {
+			this.putClasses();
+			tc.assertEqual( Arrays.asList( "sundquis.util.FrequencySketch" ), keys( cache.streamPrefix( "sundquis.u" ) ) );
+			tc.assertEqual( 5L, cache.streamPrefix( "sundquis.co" ).count() );
+			tc.assertEqual( 6L, cache.streamPrefix( "sund" ).count() );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Empty prefix streams all" )
+		public void streamPrefix_EmptyPrefixStreamsAll( TestCase tc ) {
+			this.putClasses();
+			List<String> sorted = new ArrayList<String>( Arrays.asList( CLASSES ) );
+			sorted.sort( null );
+			tc.assertEqual( sorted, keys( cache.streamPrefix( "" ) ) );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Unknown prefix streams nothing" )
+		public void streamPrefix_UnknownPrefixStreamsNothing( TestCase tc ) {
+			this.putClasses();
+			tc.assertEqual( 0L, cache.streamPrefix( "sundquis.corf" ).count() );
+			tc.assertEqual( 0L, cache.streamPrefix( "java" ).count() );
+			tc.assertEqual( 0L, cache.streamPrefix( "sundquis.core.Cache.Builder.X" ).count() );
+		}
+
+		@Test.Impl( src = "public Stream RadixCache.streamPrefix(String)", desc = "Skips collected values" )
+		public void streamPrefix_SkipsCollectedValues( TestCase tc ) {
+			this.putClasses();
+			clear( cache.root );
+			cache.put( "sundquis.core.Codec", "codec" );
+			tc.assertEqual( Arrays.asList( "sundquis.core.Codec" ), keys( cache.streamPrefix( "sundquis" ) ) );
+		}
+
+		@Test.Impl( src = "public int RadixCache.invalidatePrefix(String)", desc = "Null prefix throws Assertion Error" )
+		public void invalidatePrefix_NullPrefixThrowsAssertionError( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			cache.invalidatePrefix( null );
+		}
+
+		@Test.Impl( src = "public int RadixCache.invalidatePrefix(String)", desc = "Removes keys with prefix" )
+		public void invalidatePrefix_RemovesKeysWithPrefix( TestCase tc ) {
+			this.putClasses();
+			tc.assertEqual( 3, cache.invalidatePrefix( "sundquis.core.Cach" ) );
+			tc.assertEqual( 0L, cache.streamPrefix( "sundquis.core.Cach" ).count() );
+			tc.assertEqual( "RadixCache(3 keys)", cache.toString() );
+		}
+
+		@Test.Impl( src = "public int RadixCache.invalidatePrefix(String)", desc = "Keeps other keys" )
+		public void invalidatePrefix_KeepsOtherKeys( TestCase tc ) {
+			this.putClasses();
+			cache.invalidatePrefix( "sundquis.core.Cache." );
+			cache.invalidatePrefix( "sundquis.core.I" );
+			tc.assertEqual( Arrays.asList( "sundquis.core.Cache", "sundquis.core.CacheStats", "sundquis.core.Codec", "sundquis.util.FrequencySketch" ),
+				keys( cache.streamPrefix( "" ) ) );
+			tc.assertEqual( "sundquis.core.Cache", cache.get( "sundquis.core.Cache" ) );
+			tc.assertEqual( 0L, cache.stats().missCount() );
+		}
+
+		@Test.Impl( src = "public int RadixCache.invalidatePrefix(String)", desc = "Empty prefix removes all" )
+		public void invalidatePrefix_EmptyPrefixRemovesAll( TestCase tc ) {
+			this.putClasses();
+			tc.assertEqual( CLASSES.length, cache.invalidatePrefix( "" ) );
+			tc.assertEqual( 0L, cache.streamPrefix( "" ).count() );
+		}
+
+		@Test.Impl( src = "public int RadixCache.invalidatePrefix(String)", desc = "Then get() rebuilds value" )
+		public void invalidatePrefix_ThenGetRebuildsValue( TestCase tc ) {
+			cache.get( "a.b" );
+			cache.get( "a.c" );
+			cache.invalidatePrefix( "a.b" );
+			tc.assertEqual( "a.b:3", cache.get( "a.b" ) );
+			tc.assertEqual( "a.c:2", cache.get( "a.c" ) );
+		}
+
+		@Test.Impl( src = "public void RadixCache.flush()", desc = "Cache empty after" )
+		public void flush_CacheEmptyAfter( TestCase tc ) {
+			this.putClasses();
+			cache.flush();
+			tc.assertEqual( 0, cache.size );
+			tc.assertEqual( 0, cache.root.children.length );
+		}
+
+		@Test.Impl( src = "public void RadixCache.flush()", desc = "Then get() rebuilds value" )
+		public void flush_ThenGetRebuildsValue( TestCase tc ) {
+			cache.get( "key" );
+			cache.flush();
+			tc.assertEqual( "key:2", cache.get( "key" ) );
+		}
+
+		@Test.Impl( src = "public CacheStats RadixCache.stats()", desc = "Counts hits and misses" )
+		public void stats_CountsHitsAndMisses( TestCase tc ) {
+			cache.get( "a" );
+			cache.get( "a" );
+			cache.get( "b" );
+			tc.assertEqual( 1L, cache.stats().hitCount() );
+			tc.assertEqual( 2L, cache.stats().missCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats RadixCache.stats()", desc = "Counts loads" )
+		public void stats_CountsLoads( TestCase tc ) {
+			cache.get( "a" );
+			cache.get( "b" );
+			tc.assertEqual( 2L, cache.stats().loadSuccessCount() );
+		}
+
+		@Test.Impl( src = "public CacheStats RadixCache.stats()", desc = "Counts collected values" )
+		public void stats_CountsCollectedValues( TestCase tc ) {
+			cache.get( "a" );
+			clear( cache.root );
+			cache.get( "a" );
+			tc.assertEqual( 1L, cache.stats().collectedCount() );
+		}
+
+		@Test.Impl( src = "public String RadixCache.toString()", desc = "Indicates number of keys" )
+		public void toString_IndicatesNumberOfKeys( TestCase tc ) {
+			cache.get( "key" );
+			tc.assertEqual( "RadixCache(1 keys)", cache.toString() );
+		}
+
+	}
+
+	public static void main(String[] args) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println("\nDone!");
+	}
+
+}
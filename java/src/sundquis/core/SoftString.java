@@ -13,12 +13,30 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.lang.ref.Cleaner;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import sundquis.core.Test;
 
@@ -26,49 +44,238 @@ import sundquis.core.Test;
 /**
  * Strings represented by soft references to byte arrays.
  * 
- * NOT thread safe
+ * Thread safe. Construction, {@code toString}, {@code toStringAsync}, {@code compareTo}
+ * and {@link #load(Collection)} may be called from any thread, concurrently with the
+ * background compactor and with the cleaner that frees the storage of collected strings.
+ * The compactor moves stored bytes only while holding the lock of their location, and a
+ * read that finds its bytes moved retries at the new address. The cleaner runs only once
+ * no thread can reach the string, so it never frees bytes that a read still needs. Two
+ * threads reading the same collected string may both read it from storage; either result
+ * is kept. A read must not outlast two compaction passes, after which the segment it
+ * started in may be disposed.
  */
 public class SoftString implements Comparable<SoftString> {
 
 	// Where the persistent data resides
 	private static class Location {
 
-		private static final List<ByteFile> BYTE_FILES = new ArrayList<ByteFile>();
+		// Locations of reachable strings; scanned by compaction
+		private static final Set<Location> LIVE = ConcurrentHashMap.newKeySet();
 		
-		private final int fileIndex;
-		private final int offset;
+		// Shared locations by the first half of their fingerprint; also guards the counts
+		private static final Map<Long, Location> INDEX = new HashMap<Long, Location>();
+		
+		private final ByteStore store;
+		
+		// Replaced when compaction moves the bytes; written while synchronized
+		private volatile long address;
+		
+		// Bytes stored
 		private final int length;
 		
-		private Location( String s ) {
+		// Bytes of the string; larger than the length when the stored bytes are compressed
+		private final int size;
+		
+		// Set once the string is collected; guarded by this
+		private boolean freed;
+		
+		// The fingerprint of the bytes, when in the index
+		private final boolean indexed;
+		private final long key;
+		private final long check;
+		
+		// Number of strings sharing this location; guarded by INDEX
+		private int refs;
+		
+		private Location( ByteStore store, byte[] data, boolean indexed, long key, long check ) {
+			byte[] stored = data.length >= COMPRESS_THRESHOLD && COMPRESS_THRESHOLD > 0 ? deflate( data ) : data;
+			
+			this.store = store;
+			this.address = store.add( stored );
+			this.length = stored.length;
+			this.size = data.length;
+			this.freed = false;
+			this.indexed = indexed;
+			this.key = key;
+			this.check = check;
+			this.refs = 1;
+			LIVE.add( this );
+		}
+		
+		/* A location holding the string, shared with identical strings when deduplicating */
+		private static Location of( ByteStore store, String s ) {
 			byte[] data = s.getBytes();
+			if ( ! DEDUP ) {
+				return new Location( store, data, false, 0L, 0L );
+			}
 			
-			ByteFile file = null;
-			int i = 0;
-			while ( file == null && i < BYTE_FILES.size() ) {
-				if ( BYTE_FILES.get( i ).canAppend( data.length ) ) {
-					file = BYTE_FILES.get( i );
-				} else {
-					i++;
+			ByteBuffer fingerprint = ByteBuffer.wrap( fingerprint( data ) );
+			long key = fingerprint.getLong();
+			long check = fingerprint.getLong();
+			synchronized ( INDEX ) {
+				Location location = INDEX.get( key );
+				if ( location != null && location.store == store && location.check == check
+					&& location.size == data.length && location.isLive() ) {
+					location.refs++;
+					return location;
 				}
 			}
-			if ( file == null ) {
-				file = new ByteFile();
-				BYTE_FILES.add( file );
+			
+			Location location = new Location( store, data, true, key, check );
+			synchronized ( INDEX ) {
+				INDEX.put( key, location );
+			}
+			return location;
+		}
+		
+		private static byte[] fingerprint( byte[] data ) {
+			try {
+				return MessageDigest.getInstance( "SHA-256" ).digest( data );
+			} catch ( NoSuchAlgorithmException e ) {
+				throw new AppException( e );
+			}
+		}
+		
+		private synchronized boolean isLive() {
+			return ! this.freed;
+		}
+		
+		/* The compressed bytes, or the original bytes if compression does not reduce the size */
+		private static byte[] deflate( byte[] data ) {
+			Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+			try {
+				deflater.setInput( data );
+				deflater.finish();
+				byte[] result = new byte[ data.length ];
+				int count = deflater.deflate( result );
+				return deflater.finished() && count < data.length ? Arrays.copyOf( result, count ) : data;
+			} finally {
+				deflater.end();
+			}
+		}
+		
+		/* The string represented by the stored bytes */
+		private String decode( byte[] bytes, int offset ) {
+			if ( this.length == this.size ) {
+				return new String( bytes, offset, this.length );
 			}
 			
-			this.fileIndex = i;
-			this.offset = file.add( data );
-			this.length = data.length;
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput( bytes, offset, this.length );
+				byte[] data = new byte[ this.size ];
+				if ( inflater.inflate( data ) != this.size || ! inflater.finished() ) {
+					throw new AppException( "Corrupt compressed string at " + this.address );
+				}
+				return new String( data );
+			} catch ( DataFormatException e ) {
+				throw new AppException( e );
+			} finally {
+				inflater.end();
+			}
 		}
 		
 		private String get() {
-			return new String( BYTE_FILES.get( this.fileIndex ).read( this.offset, this.length ) );
+			while ( true ) {
+				long address = this.address;
+				try {
+					return this.decode( this.store.read( address, this.length ), 0 );
+				} catch ( AppException e ) {
+					// Moved during the read, and the original segment retired
+					if ( address == this.address ) {
+						throw e;
+					}
+				}
+			}
+		}
+		
+		private CompletableFuture<String> getAsync() {
+			long address = this.address;
+			return this.store.readAsync( address, this.length )
+				.handle( (buffer, e) -> {
+					if ( e == null ) {
+						return CompletableFuture.completedFuture( 
+							this.decode( buffer.array(), buffer.arrayOffset() + buffer.position() ) );
+					}
+					// Moved during the read, and the original segment retired
+					return address == this.address ? CompletableFuture.<String>failedFuture( e ) : this.getAsync();
+				})
+				.thenCompose( (future) -> future );
+		}
+		
+		/* Run by the cleaner once a string sharing this location is unreachable */
+		private void release() {
+			synchronized ( INDEX ) {
+				if ( --this.refs > 0 ) {
+					return;
+				}
+				if ( this.indexed ) {
+					INDEX.remove( this.key, this );
+				}
+			}
+			this.free();
+		}
+		
+		/* Release the storage once no string needs it */
+		private synchronized void free() {
+			if ( ! this.freed ) {
+				this.freed = true;
+				LIVE.remove( this );
+				if ( this.length > 0 ) {
+					this.store.free( this.address, this.length );
+				}
+			}
+		}
+		
+		/* Move the bytes out of a sparse segment; false if they stay */
+		private synchronized boolean relocate() {
+			if ( this.freed || this.length == 0 || ! this.store.isSparse( this.address ) ) {
+				return false;
+			}
+			this.address = this.store.relocate( this.address, this.length );
+			return true;
 		}
 	}
+	
+	// Frees the storage of collected strings
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	// Runs compaction in the background
+	private static class Compactor {
+		private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor( (r) -> {
+			Thread thread = new Thread( r, "SoftString.Compactor" );
+			thread.setDaemon( true );
+			return thread;
+		});
+		
+		static {
+			EXECUTOR.scheduleWithFixedDelay( () -> {
+				try {
+					SoftString.compact();
+				} catch ( AppException e ) {
+					Fatal.warning( "SoftString compaction failed: " + e );
+				}
+			}, COMPACT_SECONDS, COMPACT_SECONDS, TimeUnit.SECONDS );
+		}
+		
+		private static void start() {}
+	}
+	
+	// Holds the bytes of strings at or above the threshold
+	private static ByteStore STORE = new ByteStore();
+	
+	// Configurable seconds between compaction passes
+	private static long COMPACT_SECONDS = Property.get( "compactSeconds", 60L, Property.LONG );
 
 	
 	// Configurable minimum string length for soft references
 	private static Integer THRESHOLD = Property.get( "threshold", 50, Property.INTEGER );
+	
+	// Configurable minimum length in bytes for compressed storage (1024 default, 0 disables)
+	private static int COMPRESS_THRESHOLD = Property.get( "compressThreshold", 1024, Property.INTEGER );
+	
+	// Configurable sharing of storage by identical strings
+	private static boolean DEDUP = Property.get( "dedup", false, Property.BOOLEAN );
 
 	
 	private final Location location;
@@ -77,11 +284,15 @@ public class SoftString implements Comparable<SoftString> {
 	@SuppressWarnings("unused")
 	private final String hard;
 	
-	private SoftReference<String> ref;
+	// Also replaced when an asynchronous read completes
+	private volatile SoftReference<String> ref;
 
 	/**
 	 * Create string reference; if the length is less than {@code THRESHOLD} use a
-	 * hard reference, otherwise use a soft reference backed by disk storage.
+	 * hard reference, otherwise use a soft reference backed by disk storage. The stored
+	 * bytes are compressed if there are at least {@code compressThreshold} of them. When
+	 * {@code dedup} is set, identical strings share their stored bytes, which are freed once
+	 * the last of them is collected.
 	 *  
 	 * @param s
 	 * 		The string to represent
@@ -92,6 +303,17 @@ public class SoftString implements Comparable<SoftString> {
 	@Test.Decl( "Can construct empty" )
 	@Test.Decl( "Can construct short strings" )
 	@Test.Decl( "Can construct long strings" )
+	@Test.Decl( "Compresses large strings" )
+	@Test.Decl( "Stores incompressible strings uncompressed" )
+	@Test.Decl( "Leaves strings below compression threshold" )
+	@Test.Decl( "Compressed strings are readable" )
+	@Test.Decl( "Compressed strings read asynchronously" )
+	@Test.Decl( "Compressed strings load together" )
+	@Test.Decl( "Identical strings share storage" )
+	@Test.Decl( "Distinct strings are stored separately" )
+	@Test.Decl( "Deduplication is configurable" )
+	@Test.Decl( "Shared storage freed after last string collected" )
+	@Test.Decl( "Shared strings remain readable after compaction" )
 	public SoftString( String s ) {
 		Assert.nonNull( s );
 		
@@ -99,8 +321,10 @@ public class SoftString implements Comparable<SoftString> {
 			this.location = null;
 			this.hard = s;
 		} else {
-			this.location = new Location( s );
+			this.location = Location.of( SoftString.STORE, s );
 			this.hard = null;
+			SoftString.CLEANER.register( this, this.location::release );
+			Compactor.start();
 		}
 		this.ref = new SoftReference<String>( s );
 	}
@@ -117,6 +341,96 @@ public class SoftString implements Comparable<SoftString> {
 		return result;
 	}
 	
+	/**
+	 * The string, without waiting for storage. A string that is held completes immediately;
+	 * otherwise its bytes are read asynchronously, so that a caller needing many strings
+	 * can read them at once.
+	 * 
+	 * @return
+	 */
+	@Test.Decl( "Held string completes immediately" )
+	@Test.Decl( "Reads stored string" )
+	@Test.Decl( "Many strings read at once" )
+	@Test.Decl( "Holds string after read" )
+	public CompletableFuture<String> toStringAsync() {
+		String result = this.ref.get();
+		if ( result != null ) {
+			return CompletableFuture.completedFuture( result );
+		}
+		
+		return this.location.getAsync().thenApply( (s) -> {
+			this.ref = new SoftReference<String>( s );
+			return s;
+		});
+	}
+	
+	/**
+	 * Read back every collected string in the collection in one pass over storage. Call
+	 * before sorting or scanning many strings that may have been collected, so that their
+	 * bytes are read in storage order with neighbouring strings sharing reads, instead of
+	 * one small random read per string.
+	 * 
+	 * @param strings
+	 */
+	@Test.Decl( "Throws AssertionError for null" )
+	@Test.Decl( "Restores collected strings" )
+	@Test.Decl( "Ignores held strings" )
+	@Test.Decl( "Loads strings from many segments" )
+	public static void load( Collection<? extends SoftString> strings ) {
+		Assert.nonNull( strings );
+		
+		Map<ByteStore, List<SoftString>> cold = new IdentityHashMap<ByteStore, List<SoftString>>();
+		for ( SoftString soft : strings ) {
+			if ( soft.location != null && soft.ref.get() == null ) {
+				cold.computeIfAbsent( soft.location.store, (store) -> new ArrayList<SoftString>() ).add( soft );
+			}
+		}
+		
+		for ( Map.Entry<ByteStore, List<SoftString>> entry : cold.entrySet() ) {
+			List<SoftString> list = entry.getValue();
+			long[] addresses = new long[ list.size() ];
+			int[] counts = new int[ list.size() ];
+			for ( int i = 0; i < addresses.length; i++ ) {
+				addresses[i] = list.get( i ).location.address;
+				counts[i] = list.get( i ).location.length;
+			}
+			
+			byte[][] bytes = null;
+			try {
+				bytes = entry.getKey().readMany( addresses, counts );
+			} catch ( AppException e ) {
+				// Some were moved by compaction and the original segment retired
+				list.forEach( SoftString::toString );
+				continue;
+			}
+			for ( int i = 0; i < bytes.length; i++ ) {
+				list.get( i ).ref = new SoftReference<String>( list.get( i ).location.decode( bytes[i], 0 ) );
+			}
+		}
+	}
+	
+	/**
+	 * Move the stored bytes of reachable strings out of sparse segments, so that those
+	 * segments are retired, and dispose the segments retired by the previous pass. Runs
+	 * periodically in the background, as configured by {@code compactSeconds}.
+	 * 
+	 * @return
+	 * 		The number of strings moved
+	 */
+	@Test.Decl( "Reclaims space of collected strings" )
+	@Test.Decl( "Moves strings from sparse segments" )
+	@Test.Decl( "Strings remain readable" )
+	@Test.Decl( "Leaves dense segments" )
+	public static synchronized int compact() {
+		SoftString.STORE.reclaim();
+		
+		int moved = 0;
+		for ( Location location : Location.LIVE ) {
+			moved += location.relocate() ? 1 : 0;
+		}
+		return moved;
+	}
+	
 	@Override
 	@Test.Decl( "Can sort large collections" )
 	public int compareTo( SoftString other ) {
@@ -211,6 +525,184 @@ public class SoftString implements Comparable<SoftString> {
 			tc.assertEqual( arg,  soft.toString() );
 		}
 
+		private static String json( int n ) {
+			StringBuilder sb = new StringBuilder( "[" );
+			for ( int i = 0; i < n; i++ ) {
+				sb.append( "{\"id\": " ).append( i ).append( ", \"name\": \"record\", \"active\": true}, " );
+			}
+			return sb.append( "]" ).toString();
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Compresses large strings" )
+		public void SoftString_CompressesLargeStrings( TestCase tc ) {
+			this.useStore( 1000000L );
+			try {
+				soft = new SoftString( json( 100 ) );
+				tc.assertTrue( SoftString.STORE.length() * 5 < json( 100 ).length() );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Stores incompressible strings uncompressed" )
+		public void SoftString_StoresIncompressibleStringsUncompressed( TestCase tc ) {
+			this.useStore( 1000000L );
+			COMPRESS_THRESHOLD = 10;
+			try {
+				// No repetition, so the compressed form is larger
+				soft = new SoftString( "abcdefghijklmnop" );
+				tc.assertEqual( 16L, SoftString.STORE.length() );
+				soft.ref = new SoftReference<String>( null );
+				tc.assertEqual( "abcdefghijklmnop", soft.toString() );
+			} finally {
+				COMPRESS_THRESHOLD = 1024;
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Leaves strings below compression threshold" )
+		public void SoftString_LeavesStringsBelowCompressionThreshold( TestCase tc ) {
+			this.useStore( 1000000L );
+			try {
+				String small = json( 100 ).substring( 0, COMPRESS_THRESHOLD - 1 );
+				soft = new SoftString( small );
+				tc.assertEqual( (long) small.length(), SoftString.STORE.length() );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Compressed strings are readable" )
+		public void SoftString_CompressedStringsAreReadable( TestCase tc ) {
+			soft = new SoftString( json( 1000 ) );
+			soft.ref = new SoftReference<String>( null );
+			tc.assertEqual( json( 1000 ), soft.toString() );
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Compressed strings read asynchronously" )
+		public void SoftString_CompressedStringsReadAsynchronously( TestCase tc ) {
+			soft = new SoftString( json( 1000 ) );
+			SoftString.STORE.sync( ByteFile.Sync.WRITE );
+			soft.ref = new SoftReference<String>( null );
+			tc.assertEqual( json( 1000 ), soft.toStringAsync().join() );
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Compressed strings load together" )
+		public void SoftString_CompressedStringsLoadTogether( TestCase tc ) {
+			List<SoftString> strings = new ArrayList<SoftString>();
+			for ( int i = 1; i <= 20; i++ ) {
+				strings.add( new SoftString( json( 10 * i ) ) );
+				strings.get( i - 1 ).ref = new SoftReference<String>( null );
+			}
+			SoftString.load( strings );
+			boolean pass = true;
+			for ( int i = 1; i <= 20; i++ ) {
+				pass &= json( 10 * i ).equals( strings.get( i - 1 ).ref.get() );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Identical strings share storage" )
+		public void SoftString_IdenticalStringsShareStorage( TestCase tc ) {
+			this.useStore( 1000000L );
+			DEDUP = true;
+			try {
+				SoftString first = new SoftString( json( 10 ) );
+				SoftString second = new SoftString( json( 10 ) );
+				tc.assertTrue( first.location == second.location );
+				tc.assertEqual( (long) first.location.length, SoftString.STORE.length() );
+				second.ref = new SoftReference<String>( null );
+				tc.assertEqual( json( 10 ), second.toString() );
+			} finally {
+				DEDUP = false;
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Distinct strings are stored separately" )
+		public void SoftString_DistinctStringsAreStoredSeparately( TestCase tc ) {
+			this.useStore( 1000000L );
+			DEDUP = true;
+			try {
+				SoftString first = new SoftString( json( 10 ) );
+				SoftString second = new SoftString( json( 11 ) );
+				tc.assertFalse( first.location == second.location );
+				tc.assertEqual( json( 11 ), second.location.get() );
+			} finally {
+				DEDUP = false;
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Deduplication is configurable" )
+		public void SoftString_DeduplicationIsConfigurable( TestCase tc ) {
+			this.useStore( 1000000L );
+			try {
+				SoftString first = new SoftString( json( 10 ) );
+				SoftString second = new SoftString( json( 10 ) );
+				tc.assertFalse( first.location == second.location );
+				tc.assertEqual( 2L * first.location.length, SoftString.STORE.length() );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Shared storage freed after last string collected" )
+		public void SoftString_SharedStorageFreedAfterLastStringCollected( TestCase tc ) throws InterruptedException {
+			this.useStore( 1000000L );
+			DEDUP = true;
+			try {
+				SoftString kept = new SoftString( json( 10 ) );
+				Location location = kept.location;
+				new SoftString( json( 10 ) );
+				for ( int i = 0; i < 50 && this.refs( location ) > 1; i++ ) {
+					System.gc();
+					Thread.sleep( 20L );
+				}
+				tc.assertEqual( 1, this.refs( location ) );
+				tc.assertEqual( (long) location.length, SoftString.STORE.length() );
+				
+				kept = null;
+				for ( int i = 0; i < 50 && location.isLive(); i++ ) {
+					System.gc();
+					Thread.sleep( 20L );
+				}
+				tc.assertEqual( 0L, SoftString.STORE.length() );
+				tc.assertFalse( new SoftString( json( 10 ) ).location == location );
+			} finally {
+				DEDUP = false;
+				this.restoreStore();
+			}
+		}
+		
+		private int refs( Location location ) {
+			synchronized ( Location.INDEX ) {
+				return location.refs;
+			}
+		}
+
+		@Test.Impl( src = "public SoftString(String)", desc = "Shared strings remain readable after compaction" )
+		public void SoftString_SharedStringsRemainReadableAfterCompaction( TestCase tc ) {
+			DEDUP = true;
+			List<SoftString> kept = this.sparse();
+			try {
+				List<SoftString> copies = new ArrayList<SoftString>();
+				boolean shared = true;
+				for ( SoftString soft : kept ) {
+					copies.add( new SoftString( soft.toString() ) );
+					shared &= soft.location == copies.get( copies.size() - 1 ).location;
+				}
+				tc.assertTrue( shared );
+				tc.assertEqual( kept.size(), SoftString.compact() );
+				SoftString.compact();
+				tc.assertTrue( readable( kept ) );
+				tc.assertTrue( readable( copies ) );
+			} finally {
+				DEDUP = false;
+				this.restoreStore();
+			}
+		}
+
 		@Test.Impl( src = "public SoftString(String)", desc = "Throws assertion error for null strings" )
 		public void SoftString_ThrowsAssertionErrorForNullStrings( TestCase tc ) {
 			tc.expectError( AssertionError.class );
@@ -252,6 +744,203 @@ public class SoftString implements Comparable<SoftString> {
 			tc.assertTrue( match );
 		}
 
+		// Strings of 40 characters
+		private static List<SoftString> forty( int count ) {
+			List<SoftString> strings = new ArrayList<SoftString>();
+			for ( int i = 0; i < count; i++ ) {
+				strings.add( new SoftString( Strings.rightJustify( "" + i, 40, '.' ) ) );
+			}
+			return strings;
+		}
+		
+		private static boolean readable( List<SoftString> strings ) {
+			boolean pass = true;
+			for ( SoftString soft : strings ) {
+				String expected = soft.toString();
+				soft.ref = new SoftReference<String>( null );
+				pass &= expected.equals( soft.toString() );
+			}
+			return pass;
+		}
+		
+		private ByteStore original;
+		
+		private void useStore( long segmentSize ) {
+			this.original = SoftString.STORE;
+			SoftString.STORE = new ByteStore( segmentSize );
+		}
+		
+		private void restoreStore() {
+			SoftString.STORE.dispose();
+			SoftString.STORE = this.original;
+		}
+
+		@Test.Impl( src = "public CompletableFuture SoftString.toStringAsync()", desc = "Held string completes immediately" )
+		public void toStringAsync_HeldStringCompletesImmediately( TestCase tc ) {
+			soft = new SoftString( "A string that is held" );
+			CompletableFuture<String> future = soft.toStringAsync();
+			tc.assertTrue( future.isDone() );
+			tc.assertEqual( "A string that is held", future.join() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture SoftString.toStringAsync()", desc = "Reads stored string" )
+		public void toStringAsync_ReadsStoredString( TestCase tc ) {
+			soft = new SoftString( "A string that has been collected" );
+			// Simulate collection
+			soft.ref = new SoftReference<String>( null );
+			tc.assertEqual( "A string that has been collected", soft.toStringAsync().join() );
+		}
+
+		@Test.Impl( src = "public CompletableFuture SoftString.toStringAsync()", desc = "Many strings read at once" )
+		public void toStringAsync_ManyStringsReadAtOnce( TestCase tc ) {
+			List<SoftString> strings = forty( 1000 );
+			SoftString.STORE.sync( ByteFile.Sync.WRITE );
+			List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+			for ( SoftString soft : strings ) {
+				soft.ref = new SoftReference<String>( null );
+				futures.add( soft.toStringAsync() );
+			}
+			boolean pass = true;
+			for ( int i = 0; i < 1000; i++ ) {
+				pass &= Strings.rightJustify( "" + i, 40, '.' ).equals( futures.get( i ).join() );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public CompletableFuture SoftString.toStringAsync()", desc = "Holds string after read" )
+		public void toStringAsync_HoldsStringAfterRead( TestCase tc ) {
+			soft = new SoftString( "A string that has been collected" );
+			soft.ref = new SoftReference<String>( null );
+			String result = soft.toStringAsync().join();
+			tc.assertTrue( result == soft.ref.get() );
+		}
+
+		@Test.Impl( src = "public void SoftString.load(Collection)", desc = "Throws AssertionError for null" )
+		public void load_ThrowsAssertionerrorForNull( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			SoftString.load( null );
+		}
+
+		@Test.Impl( src = "public void SoftString.load(Collection)", desc = "Restores collected strings" )
+		public void load_RestoresCollectedStrings( TestCase tc ) {
+			List<SoftString> strings = forty( 100 );
+			for ( SoftString soft : strings ) {
+				soft.ref = new SoftReference<String>( null );
+			}
+			SoftString.load( strings );
+			boolean pass = true;
+			for ( int i = 0; i < 100; i++ ) {
+				pass &= Strings.rightJustify( "" + i, 40, '.' ).equals( strings.get( i ).ref.get() );
+			}
+			tc.assertTrue( pass );
+		}
+
+		@Test.Impl( src = "public void SoftString.load(Collection)", desc = "Ignores held strings" )
+		public void load_IgnoresHeldStrings( TestCase tc ) {
+			soft = new SoftString( "A string that is held" );
+			String held = soft.ref.get();
+			SoftString.load( List.of( soft, new SoftString( "" ) ) );
+			tc.assertTrue( held == soft.ref.get() );
+		}
+
+		@Test.Impl( src = "public void SoftString.load(Collection)", desc = "Loads strings from many segments" )
+		public void load_LoadsStringsFromManySegments( TestCase tc ) {
+			this.useStore( 100L );
+			try {
+				List<SoftString> strings = forty( 20 );
+				Collections.shuffle( strings );
+				for ( SoftString soft : strings ) {
+					soft.ref = new SoftReference<String>( null );
+				}
+				SoftString.load( strings );
+				Collections.sort( strings );
+				boolean pass = true;
+				for ( int i = 0; i < 20; i++ ) {
+					pass &= strings.get( i ).ref.get() != null;
+					pass &= Strings.rightJustify( "" + i, 40, '.' ).equals( strings.get( i ).toString() );
+				}
+				tc.assertTrue( pass );
+				tc.assertEqual( 10, SoftString.STORE.segments() );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public int SoftString.compact()", desc = "Reclaims space of collected strings" )
+		public void compact_ReclaimsSpaceOfCollectedStrings( TestCase tc ) throws InterruptedException {
+			this.useStore( 100L );
+			try {
+				forty( 10 );
+				List<SoftString> kept = forty( 1 );
+				for ( int i = 0; i < 50 && SoftString.STORE.length() > 40L; i++ ) {
+					System.gc();
+					Thread.sleep( 20L );
+				}
+				tc.assertEqual( 40L, SoftString.STORE.length() );
+				SoftString.compact();
+				// Retired by the cleaner, kept by the pass, disposed by the next
+				tc.assertTrue( SoftString.STORE.reclaim() > 0 );
+				tc.assertEqual( 0, SoftString.STORE.reclaim() );
+				tc.assertTrue( readable( kept ) );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		/*
+		 * Three strings fill a segment. Simulates collection of two strings in each of the 
+		 * first three segments; the fourth segment is full and active. Returns the others.
+		 */
+		private List<SoftString> sparse() {
+			this.useStore( 120L );
+			List<SoftString> strings = forty( 12 );
+			List<SoftString> kept = new ArrayList<SoftString>();
+			for ( int i = 0; i < 9; i++ ) {
+				if ( i % 3 == 2 ) {
+					kept.add( strings.get( i ) );
+				} else {
+					strings.get( i ).location.free();
+				}
+			}
+			return kept;
+		}
+
+		@Test.Impl( src = "public int SoftString.compact()", desc = "Moves strings from sparse segments" )
+		public void compact_MovesStringsFromSparseSegments( TestCase tc ) {
+			List<SoftString> kept = this.sparse();
+			try {
+				tc.assertEqual( kept.size(), SoftString.compact() );
+				tc.assertEqual( 0, SoftString.compact() );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public int SoftString.compact()", desc = "Strings remain readable" )
+		public void compact_StringsRemainReadable( TestCase tc ) {
+			List<SoftString> kept = this.sparse();
+			try {
+				SoftString.compact();
+				// Disposes the segments retired by the first pass
+				SoftString.compact();
+				tc.assertTrue( readable( kept ) );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
+		@Test.Impl( src = "public int SoftString.compact()", desc = "Leaves dense segments" )
+		public void compact_LeavesDenseSegments( TestCase tc ) {
+			this.useStore( 100L );
+			try {
+				List<SoftString> strings = forty( 10 );
+				tc.assertEqual( 0, SoftString.compact() );
+				tc.assertTrue( readable( strings ) );
+			} finally {
+				this.restoreStore();
+			}
+		}
+
 		@Test.Impl( src = "public int SoftString.compareTo(SoftString)", desc = "Can sort large collections" )
 		public void compareTo_CanSortLargeCollections( TestCase tc ) throws FileNotFoundException, IOException {
 			
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 by TS Sundquist
+ *
+ * All rights reserved.
+ */
+
+package sundquis.util;
+
+import sundquis.core.Assert;
+import sundquis.core.Procedure;
+import sundquis.core.Test;
+import sundquis.core.TestCase;
+import sundquis.core.TestContainer;
+
+/**
+ * Approximate popularity of elements, used as an admission filter by bounded caches.
+ *
+ * A count-min sketch of four-bit counters, four counters per element, sixteen counters
+ * packed per {@code long}. Counts saturate at 15. After a sample of increments proportional
+ * to the capacity all counters are halved so that the history ages.
+ *
+ * NOT thread safe
+ */
+public class FrequencySketch<E> {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	// Largest table allocated; a power of two
+	private static final int MAX_TABLE_LENGTH = 1 << 30;
+
+
+	// Packed counters
+	private long[] table;
+
+	// table.length - 1
+	private int tableMask;
+
+	// Number of increments before counters are halved
+	private int sampleSize;
+
+	// Increments since the last reset
+	private int size;
+
+	/**
+	 * Construct a sketch suitable for tracking about {@code maximumSize} distinct elements.
+	 *
+	 * @param maximumSize
+	 */
+	@Test.Decl( "Throws assertion error for non positive size" )
+	public FrequencySketch( long maximumSize ) {
+		Assert.isTrue( maximumSize > 0 );
+		this.ensureCapacity( maximumSize );
+	}
+
+	/**
+	 * Grow the sketch, if needed, to track about {@code maximumSize} elements.
+	 * Growing discards the accumulated history.
+	 *
+	 * @param maximumSize
+	 */
+	@Test.Decl( "Growing discards history" )
+	@Test.Decl( "Does not shrink" )
+	public void ensureCapacity( long maximumSize ) {
+		int capacity = (int) Math.min( Math.max( maximumSize, 8L ), MAX_TABLE_LENGTH );
+		if ( this.table != null && this.table.length >= capacity ) {
+			return;
+		}
+
+		int length = Integer.highestOneBit( capacity - 1 ) << 1;
+		this.table = new long[ length ];
+		this.tableMask = length - 1;
+		this.sampleSize = (int) Math.min( 10L * capacity, Integer.MAX_VALUE );
+		this.size = 0;
+	}
+
+	/**
+	 * The estimated number of occurrences of the element, at most 15.
+	 *
+	 * @param elt
+	 * @return
+	 */
+	@Test.Decl( "Throws assertion error for null element" )
+	@Test.Decl( "Zero for unseen element" )
+	@Test.Decl( "Saturates at fifteen" )
+	public int frequency( E elt ) {
+		Assert.nonNull( elt );
+
+		int hash = FrequencySketch.spread( elt.hashCode() );
+		int start = (hash & 3) << 2;
+		int frequency = 15;
+		for ( int i = 0; i < 4; i++ ) {
+			int index = this.indexOf( hash, i );
+			int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min( frequency, count );
+		}
+		return frequency;
+	}
+
+	/**
+	 * Record an occurrence of the element.
+	 *
+	 * @param elt
+	 */
+	@Test.Decl( "Throws assertion error for null element" )
+	@Test.Decl( "Increases frequency" )
+	@Test.Decl( "Periodically halves frequencies" )
+	public void increment( E elt ) {
+		Assert.nonNull( elt );
+
+		int hash = FrequencySketch.spread( elt.hashCode() );
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for ( int i = 0; i < 4; i++ ) {
+			added |= this.incrementAt( this.indexOf( hash, i ), start + i );
+		}
+
+		if ( added && ++this.size == this.sampleSize ) {
+			this.reset();
+		}
+	}
+
+	// Increment the j-th counter of table[i] unless saturated
+	private boolean incrementAt( int i, int j ) {
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		if ( (this.table[i] & mask) != mask ) {
+			this.table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	// Halve every counter
+	private void reset() {
+		int odd = 0;
+		for ( int i = 0; i < this.table.length; i++ ) {
+			odd += Long.bitCount( this.table[i] & ONE_MASK );
+			this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+		}
+		this.size = (this.size >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf( int hash, int i ) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & this.tableMask;
+	}
+
+	// Protect against poor hash codes
+	private static int spread( int x ) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	@Override
+	@Test.Decl( "Indicates table length" )
+	public String toString() {
+		return "FrequencySketch(" + this.table.length + " words)";
+	}
+
+
+
+
+	public static class Container implements TestContainer {
+
+		@Override
+		public Class<?> subjectClass() {
+			return FrequencySketch.class;
+		}
+
+		private FrequencySketch<Integer> sketch;
+
+		@Override
+		public Procedure beforeEach() {
+			return new Procedure() {
+				public void call() {
+					sketch = new FrequencySketch<Integer>( 512 );
+				}
+			};
+		}
+
+		@Override
+		public Procedure afterEach() {
+			return new Procedure() {
+				public void call() {
+					sketch = null;
+				}
+			};
+		}
+
+		@Test.Impl( src = "public FrequencySketch(long)", desc = "Throws assertion error for non positive size" )
+		public void FrequencySketch_ThrowsAssertionErrorForNonPositiveSize( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			new FrequencySketch<Integer>( 0 );
+		}
+
+		@Test.Impl( src = "public void FrequencySketch.ensureCapacity(long)", desc = "Growing discards history" )
+		public void ensureCapacity_GrowingDiscardsHistory( TestCase tc ) {
+			sketch.increment( 42 );
+			sketch.ensureCapacity( 100000 );
+			tc.assertEqual( 0, sketch.frequency( 42 ) );
+		}
+
+		@Test.Impl( src = "public void FrequencySketch.ensureCapacity(long)", desc = "Does not shrink" )
+		public void ensureCapacity_DoesNotShrink( TestCase tc ) {
+			sketch.increment( 42 );
+			sketch.ensureCapacity( 10 );
+			tc.assertEqual( 1, sketch.frequency( 42 ) );
+		}
+
+		@Test.Impl( src = "public int FrequencySketch.frequency(Object)", desc = "Throws assertion error for null element" )
+		public void frequency_ThrowsAssertionErrorForNullElement( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			sketch.frequency( null );
+		}
+
+		@Test.Impl( src = "public int FrequencySketch.frequency(Object)", desc = "Zero for unseen element" )
+		public void frequency_ZeroForUnseenElement( TestCase tc ) {
+			tc.assertEqual( 0, sketch.frequency( 42 ) );
+		}
+
+		@Test.Impl( src = "public int FrequencySketch.frequency(Object)", desc = "Saturates at fifteen" )
+		public void frequency_SaturatesAtFifteen( TestCase tc ) {
+			for ( int i = 0; i < 100; i++ ) {
+				sketch.increment( 42 );
+			}
+			tc.assertEqual( 15, sketch.frequency( 42 ) );
+		}
+
+		@Test.Impl( src = "public void FrequencySketch.increment(Object)", desc = "Throws assertion error for null element" )
+		public void increment_ThrowsAssertionErrorForNullElement( TestCase tc ) {
+			tc.expectError( AssertionError.class );
+			sketch.increment( null );
+		}
+
+		@Test.Impl( src = "public void FrequencySketch.increment(Object)", desc = "Increases frequency" )
+		public void increment_IncreasesFrequency( TestCase tc ) {
+			sketch.increment( 42 );
+			sketch.increment( 42 );
+			sketch.increment( 42 );
+			tc.assertEqual( 3, sketch.frequency( 42 ) );
+		}
+
+		@Test.Impl( src = "public void FrequencySketch.increment(Object)", desc = "Periodically halves frequencies" )
+		public void increment_PeriodicallyHalvesFrequencies( TestCase tc ) {
+			for ( int i = 0; i < 8; i++ ) {
+				sketch.increment( 42 );
+			}
+			int before = sketch.frequency( 42 );
+			// Enough distinct increments to reach the sample size
+			for ( int i = 1000; i < 1000 + 10 * 512; i++ ) {
+				sketch.increment( i );
+			}
+			tc.assertTrue( sketch.frequency( 42 ) <= before / 2 );
+		}
+
+		@Test.Impl( src = "public String FrequencySketch.toString()", desc = "Indicates table length" )
+		public void toString_IndicatesTableLength( TestCase tc ) {
+			tc.assertEqual( "FrequencySketch(512 words)", sketch.toString() );
+		}
+
+	}
+
+	public static void main( String[] args ) {
+		System.out.println();
+
+		new Test( Container.class ).eval();
+		Test.printResults();
+
+		System.out.println( "\nDone!" );
+	}
+
+}